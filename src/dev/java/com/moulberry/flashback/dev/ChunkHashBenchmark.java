@@ -0,0 +1,115 @@
+package com.moulberry.flashback.dev;
+
+import com.moulberry.flashback.io.AsyncReplaySaver;
+import com.moulberry.flashback.record.RecordingMetrics;
+import io.netty.buffer.ByteBuf;
+import net.fabricmc.fabric.api.client.command.v2.FabricClientCommandSource;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.multiplayer.ClientLevel;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.chat.Component;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientGamePacketListener;
+import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
+import net.minecraft.network.protocol.game.GameProtocols;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.LevelChunk;
+import org.apache.commons.io.FileUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Times AsyncReplaySaver#writeGamePackets with the chunks currently loaded on the client. The first round writes every
+// chunk to the chunk cache, the following rounds only go through the dedup lookup
+// The same chunks are then run through LegacyChunkDedup, the SHA-512 based dedup it replaced. That only hashes, the
+// encoding and writing of new chunks isn't included in its first round
+public class ChunkHashBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void run(FabricClientCommandSource source) {
+        ClientLevel level = Minecraft.getInstance().level;
+        if (level == null || Minecraft.getInstance().player == null) {
+            source.sendError(Component.literal("Not in a world"));
+            return;
+        }
+
+        List<Packet<? super ClientGamePacketListener>> packets = new ArrayList<>();
+        ChunkPos center = Minecraft.getInstance().player.chunkPosition();
+        int radius = Minecraft.getInstance().options.getEffectiveRenderDistance();
+        for (int x = center.x - radius; x <= center.x + radius; x++) {
+            for (int z = center.z - radius; z <= center.z + radius; z++) {
+                LevelChunk chunk = level.getChunkSource().getChunk(x, z, false);
+                if (chunk != null) {
+                    packets.add(new ClientboundLevelChunkWithLightPacket(chunk, level.getLightEngine(), null, null));
+                }
+            }
+        }
+
+        if (packets.isEmpty()) {
+            source.sendError(Component.literal("No chunks loaded"));
+            return;
+        }
+
+        StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> gamePacketCodec = GameProtocols.CLIENTBOUND_TEMPLATE
+            .bind(RegistryFriendlyByteBuf.decorator(level.registryAccess())).codec();
+
+        RecordingMetrics metrics = new RecordingMetrics();
+        AsyncReplaySaver saver = new AsyncReplaySaver(level.registryAccess(), metrics);
+
+        long firstNanos = 0;
+        long dedupNanos = 0;
+        try {
+            for (int round = 0; round < ROUNDS + 1; round++) {
+                long start = System.nanoTime();
+                saver.writeGamePackets(gamePacketCodec, packets);
+
+                CompletableFuture<Void> done = new CompletableFuture<>();
+                saver.submit(writer -> done.complete(null));
+                done.join();
+
+                if (round == 0) {
+                    firstNanos = System.nanoTime() - start;
+                } else {
+                    dedupNanos += System.nanoTime() - start;
+                }
+            }
+        } finally {
+            Path folder = saver.finish();
+            try {
+                FileUtils.deleteDirectory(folder.toFile());
+            } catch (IOException ignored) {}
+        }
+
+        LegacyChunkDedup legacyDedup = new LegacyChunkDedup();
+        long legacyFirstNanos = 0;
+        long legacyDedupNanos = 0;
+        for (int round = 0; round < ROUNDS + 1; round++) {
+            long start = System.nanoTime();
+            for (Packet<? super ClientGamePacketListener> packet : packets) {
+                legacyDedup.dedup((ClientboundLevelChunkWithLightPacket) packet);
+            }
+
+            if (round == 0) {
+                legacyFirstNanos = System.nanoTime() - start;
+            } else {
+                legacyDedupNanos += System.nanoTime() - start;
+            }
+        }
+
+        long samples = (long) packets.size() * ROUNDS;
+        source.sendFeedback(Component.literal(String.format("Wrote %d chunks, then %d times through dedup", packets.size(), ROUNDS)));
+        source.sendFeedback(Component.literal(String.format("First write: %.1fus/chunk (SHA-512 hash only: %.1fus/chunk)",
+            firstNanos / 1000.0 / packets.size(), legacyFirstNanos / 1000.0 / packets.size())));
+        source.sendFeedback(Component.literal(String.format("Dedup hit: %.1fus/chunk (SHA-512: %.1fus/chunk)",
+            dedupNanos / 1000.0 / samples, legacyDedupNanos / 1000.0 / samples)));
+        for (String line : metrics.getDebugLines()) {
+            source.sendFeedback(Component.literal(line));
+        }
+    }
+
+}
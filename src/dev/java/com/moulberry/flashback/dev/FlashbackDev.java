@@ -0,0 +1,22 @@
+package com.moulberry.flashback.dev;
+
+import net.fabricmc.api.ClientModInitializer;
+import net.fabricmc.fabric.api.client.command.v2.ClientCommandManager;
+import net.fabricmc.fabric.api.client.command.v2.ClientCommandRegistrationCallback;
+
+// Developer tools that are only loaded by the runDevClient task, never shipped in the jar
+public class FlashbackDev implements ClientModInitializer {
+
+    @Override
+    public void onInitializeClient() {
+        ClientCommandRegistrationCallback.EVENT.register((dispatcher, registryAccess) -> {
+            var flashbackDev = ClientCommandManager.literal("flashback_dev");
+            flashbackDev.then(ClientCommandManager.literal("benchmark_chunk_hash").executes(command -> {
+                ChunkHashBenchmark.run(command.getSource());
+                return 0;
+            }));
+            dispatcher.register(flashbackDev);
+        });
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.moulberry.flashback.dev;
+
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.network.protocol.game.ClientboundLevelChunkPacketData;
+import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
+import net.minecraft.world.level.block.entity.BlockEntityType;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// The chunk dedup that AsyncReplaySaver used before the chunk cache was keyed by a hash of the encoded packet:
+// a SHA-512 over the chunk data, the re-serialized light data and the sorted block entity NBT, looked up by its hashCode
+// Only kept so that ChunkHashBenchmark can compare against it
+public class LegacyChunkDedup {
+
+    private record Entry(int x, int z, byte[] bigHash, int index) {}
+
+    private final Int2ObjectMap<List<Entry>> entries = new Int2ObjectOpenHashMap<>();
+    private int totalEntries = 0;
+
+    // Returns the index of an identical chunk that was seen before, or -1 if the chunk is new
+    public int dedup(ClientboundLevelChunkWithLightPacket packet) {
+        byte[] bigHash = computePacketBigHash(packet);
+        int hashCode = Arrays.hashCode(bigHash);
+
+        List<Entry> list = this.entries.computeIfAbsent(hashCode, k -> new ArrayList<>(1));
+        for (Entry entry : list) {
+            if (entry.x == packet.getX() && entry.z == packet.getZ() && Arrays.compare(entry.bigHash, bigHash) == 0) {
+                return entry.index;
+            }
+        }
+
+        list.add(new Entry(packet.getX(), packet.getZ(), bigHash, this.totalEntries));
+        this.totalEntries += 1;
+        return -1;
+    }
+
+    private static byte[] computePacketBigHash(ClientboundLevelChunkWithLightPacket packet) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException e) {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e2) {
+                throw new RuntimeException(e2);
+            }
+        }
+
+        digest.update(intToByteArray(packet.getX()));
+        digest.update(intToByteArray(packet.getZ()));
+        digest.update(packet.getChunkData().buffer);
+
+        FriendlyByteBuf frenBuffer = new FriendlyByteBuf(Unpooled.buffer());
+
+        packet.lightData.write(frenBuffer);
+        digest.update(frenBuffer.array(), 0, frenBuffer.writerIndex());
+        frenBuffer.resetWriterIndex();
+
+        // Sort to ensure stable ordering
+        var copy = new ArrayList<>(packet.getChunkData().blockEntitiesData);
+        copy.sort(Comparator.comparingInt(a -> (a.y << 8) | a.packedXZ));
+
+        for (ClientboundLevelChunkPacketData.BlockEntityInfo blockEntitiesData : copy) {
+            digest.update((byte) blockEntitiesData.packedXZ);
+            digest.update(intToByteArray(blockEntitiesData.y));
+            digest.update(BlockEntityType.getKey(blockEntitiesData.type).toString().getBytes(StandardCharsets.UTF_8));
+            if (blockEntitiesData.tag != null) {
+                frenBuffer.writeNbt(blockEntitiesData.tag);
+                digest.update(frenBuffer.array(), 0, frenBuffer.writerIndex());
+                frenBuffer.resetWriterIndex();
+            } else {
+                digest.update("NO_TAG".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        return digest.digest();
+    }
+
+    private static byte[] intToByteArray(int value) {
+        return new byte[] {
+                (byte)(value >>> 24),
+                (byte)(value >>> 16),
+                (byte)(value >>> 8),
+                (byte)value};
+    }
+
+}
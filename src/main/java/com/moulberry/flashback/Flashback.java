@@ -37,6 +37,7 @@ import com.moulberry.flashback.packet.FlashbackRemoteExperience;
 import com.moulberry.flashback.packet.FlashbackRemoteFoodData;
 import com.moulberry.flashback.packet.FlashbackRemoteSelectHotbarSlot;
 import com.moulberry.flashback.packet.FlashbackRemoteSetSlot;
+import com.moulberry.flashback.packet.FlashbackRetainEntities;
 import com.moulberry.flashback.packet.FlashbackSetBorderLerpStartTime;
 import com.moulberry.flashback.packet.FlashbackVoiceChatSound;
 import com.moulberry.flashback.playback.EmptyLevelSource;
@@ -54,6 +55,8 @@ import com.moulberry.flashback.state.EditorStateManager;
 import com.moulberry.flashback.visuals.AccurateEntityPositionHandler;
 import com.moulberry.flashback.visuals.ShaderManager;
 import com.seibel.distanthorizons.api.DhApi;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
 import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.client.command.v2.ClientCommandManager;
@@ -184,6 +187,7 @@ public class Flashback implements ModInitializer, ClientModInitializer {
         PayloadTypeRegistry.playS2C().register(FlashbackForceClientTick.TYPE, StreamCodec.unit(FlashbackForceClientTick.INSTANCE));
         PayloadTypeRegistry.playS2C().register(FlashbackClearParticles.TYPE, StreamCodec.unit(FlashbackClearParticles.INSTANCE));
         PayloadTypeRegistry.playS2C().register(FlashbackClearEntities.TYPE, StreamCodec.unit(FlashbackClearEntities.INSTANCE));
+        PayloadTypeRegistry.playS2C().register(FlashbackRetainEntities.TYPE, FlashbackRetainEntities.STREAM_CODEC);
         PayloadTypeRegistry.playS2C().register(FlashbackInstantlyLerp.TYPE, StreamCodec.unit(FlashbackInstantlyLerp.INSTANCE));
         PayloadTypeRegistry.playS2C().register(FlashbackRemoteSelectHotbarSlot.TYPE, FlashbackRemoteSelectHotbarSlot.STREAM_CODEC);
         PayloadTypeRegistry.playS2C().register(FlashbackRemoteExperience.TYPE, FlashbackRemoteExperience.STREAM_CODEC);
@@ -207,6 +211,7 @@ public class Flashback implements ModInitializer, ClientModInitializer {
         config = FlashbackConfig.tryLoadFromFolder(configFolder);
 
         TempFolderProvider.tryDeleteStaleFolders(TempFolderProvider.TempFolderType.SERVER);
+        TempFolderProvider.tryDeleteStaleFolders(TempFolderProvider.TempFolderType.PLAYBACK_CACHE);
 
         Path recordingFolder = TempFolderProvider.getTypedTempFolder(TempFolderProvider.TempFolderType.RECORDING);
         if (Files.exists(recordingFolder)) {
@@ -228,10 +233,7 @@ public class Flashback implements ModInitializer, ClientModInitializer {
             TempFolderProvider.tryDeleteStaleFolders(TempFolderProvider.TempFolderType.RECORDING);
         }
 
-        // Delete partial exports
-        try {
-            FileUtils.deleteDirectory(Path.of("replay_export_temp").toFile());
-        } catch (Exception ignored) {}
+        this.deletePartialExports();
 
         this.deleteUnusedReplayStates();
 
@@ -242,6 +244,8 @@ public class Flashback implements ModInitializer, ClientModInitializer {
         ActionRegistry.register(ActionMoveEntities.INSTANCE);
         ActionRegistry.register(ActionLevelChunkCached.INSTANCE);
         ActionRegistry.register(ActionAccuratePlayerPosition.INSTANCE);
+        ActionRegistry.register(ActionSeekPoint.INSTANCE);
+        ActionRegistry.register(ActionMoveEntitiesDelta.INSTANCE);
 
         KeyframeRegistry.register(CameraKeyframeType.INSTANCE);
         KeyframeRegistry.register(CameraOrbitKeyframeType.INSTANCE);
@@ -276,6 +280,17 @@ public class Flashback implements ModInitializer, ClientModInitializer {
             }
         });
 
+        ClientPlayNetworking.registerGlobalReceiver(FlashbackRetainEntities.TYPE, (payload, context) -> {
+            if (Flashback.isInReplay()) {
+                IntSet retain = new IntOpenHashSet(payload.entityIds());
+                for (Entity entity : Minecraft.getInstance().level.entitiesForRendering()) {
+                    if (entity != null && !(entity instanceof Player) && !retain.contains(entity.getId())) {
+                        entity.discard();
+                    }
+                }
+            }
+        });
+
         ClientPlayNetworking.registerGlobalReceiver(FlashbackInstantlyLerp.TYPE, (payload, context) -> {
             if (Flashback.isInReplay()) {
                 for (Entity entity : Minecraft.getInstance().level.entitiesForRendering()) {
@@ -646,6 +661,39 @@ public class Flashback implements ModInitializer, ClientModInitializer {
         RECORDER.addMarker(new ReplayMarker(colour, position, description));
     }
 
+    // Removes everything an export left behind when the game was closed, including lossless intermediates that
+    // were still waiting in the TranscodeQueue. Finished segments are kept so that the export can be continued
+    private void deletePartialExports() {
+        Path exportTempDir = Path.of("replay_export_temp");
+        if (!Files.isDirectory(exportTempDir)) {
+            return;
+        }
+
+        long currentTime = System.currentTimeMillis();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(exportTempDir)) {
+            for (Path path : directoryStream) {
+                String filename = path.getFileName().toString();
+
+                if (filename.startsWith("segments_") && Files.isDirectory(path)) {
+                    long lastModified = Files.getLastModifiedTime(path).toMillis();
+                    if (Math.abs(currentTime - lastModified) < Duration.ofDays(30).toMillis()) {
+                        continue;
+                    }
+                } else {
+                    LOGGER.warn("Deleting unfinished export file {}", filename);
+                }
+
+                if (Files.isDirectory(path)) {
+                    FileUtils.deleteDirectory(path.toFile());
+                } else {
+                    Files.deleteIfExists(path);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to delete partial exports", e);
+        }
+    }
+
     private void deleteUnusedReplayStates() {
         Path flashbackDir = Flashback.getDataDirectory();
         Path replayDir = Flashback.getReplayFolder();
@@ -0,0 +1,90 @@
+package com.moulberry.flashback;
+
+import io.netty.buffer.ByteBuf;
+
+// Streaming MurmurHash3 (x64, 128-bit) over a region of a ByteBuf
+// Not cryptographic, callers should fall back to a full comparison when hashes match
+public class Hash128 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    public static void hash(ByteBuf buf, int offset, int length, long[] out) {
+        long h1 = 0;
+        long h2 = 0;
+
+        int end = offset + length;
+        int blocksEnd = offset + (length & ~15);
+
+        for (int i = offset; i < blocksEnd; i += 16) {
+            long k1 = buf.getLongLE(i);
+            long k2 = buf.getLongLE(i + 8);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        int tail = end - blocksEnd;
+        for (int i = tail - 1; i >= 8; i--) {
+            k2 ^= (buf.getByte(blocksEnd + i) & 0xFFL) << ((i - 8) * 8);
+        }
+        for (int i = Math.min(tail, 8) - 1; i >= 0; i--) {
+            k1 ^= (buf.getByte(blocksEnd + i) & 0xFFL) << (i * 8);
+        }
+
+        if (tail > 8) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+        if (tail > 0) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        out[0] = h1;
+        out[1] = h2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+}
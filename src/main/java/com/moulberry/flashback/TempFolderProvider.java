@@ -15,7 +15,8 @@ public class TempFolderProvider {
 
     public enum TempFolderType {
         SERVER("server"),
-        RECORDING("recording");
+        RECORDING("recording"),
+        PLAYBACK_CACHE("playback_cache");
 
         private final String id;
 
@@ -0,0 +1,26 @@
+package com.moulberry.flashback.action;
+
+import com.moulberry.flashback.Flashback;
+import com.moulberry.flashback.playback.ReplayServer;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.resources.ResourceLocation;
+
+// Quantized replacement for ActionMoveEntities, see QuantizedEntityPosition for the encoding
+public class ActionMoveEntitiesDelta implements Action {
+
+    private static final ResourceLocation NAME = Flashback.createResourceLocation("action/move_entities_delta");
+    public static final ActionMoveEntitiesDelta INSTANCE = new ActionMoveEntitiesDelta();
+    private ActionMoveEntitiesDelta() {
+    }
+
+    @Override
+    public ResourceLocation name() {
+        return NAME;
+    }
+
+    @Override
+    public void handle(ReplayServer replayServer, RegistryFriendlyByteBuf friendlyByteBuf) {
+        replayServer.handleMoveEntitiesDelta(friendlyByteBuf);
+    }
+
+}
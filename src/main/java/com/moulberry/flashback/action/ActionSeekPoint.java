@@ -0,0 +1,29 @@
+package com.moulberry.flashback.action;
+
+import com.moulberry.flashback.Flashback;
+import com.moulberry.flashback.playback.ReplayServer;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.resources.ResourceLocation;
+
+public class ActionSeekPoint implements Action {
+
+    private static final ResourceLocation NAME = Flashback.createResourceLocation("action/seek_point_optional");
+    public static final ActionSeekPoint INSTANCE = new ActionSeekPoint();
+    private ActionSeekPoint() {
+    }
+
+    @Override
+    public ResourceLocation name() {
+        return NAME;
+    }
+
+    @Override
+    public void handle(ReplayServer replayServer, RegistryFriendlyByteBuf friendlyByteBuf) {
+        // Seek points contain a full snapshot which is only used when seeking, see ReplayReader#handleSeekPoint
+        friendlyByteBuf.skipBytes(friendlyByteBuf.readableBytes());
+
+        // The recorder starts delta encoding entity movement from scratch after every seek point
+        replayServer.resetEntityPositionDeltas();
+    }
+
+}
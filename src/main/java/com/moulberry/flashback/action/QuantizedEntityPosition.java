@@ -0,0 +1,133 @@
+package com.moulberry.flashback.action;
+
+import net.minecraft.network.FriendlyByteBuf;
+import org.jetbrains.annotations.Nullable;
+
+// Entity position in 1/4096ths of a block (the same precision as vanilla's relative move packets)
+// with angles in 1/65536ths of a turn
+//
+// Each entry is written relative to the previous position that was written for the same entity id. The recorder
+// and the replay server both forget those previous positions at every snapshot and seek point, so decoding can
+// start from any of them
+public record QuantizedEntityPosition(long x, long y, long z, short yaw, short pitch, short headYaw, boolean onGround) {
+
+    private static final double POSITION_SCALE = 4096.0;
+    private static final float ANGLE_SCALE = 65536.0f / 360.0f;
+
+    private static final int FLAG_X = 1;
+    private static final int FLAG_Y = 1 << 1;
+    private static final int FLAG_Z = 1 << 2;
+    private static final int FLAG_YAW = 1 << 3;
+    private static final int FLAG_PITCH = 1 << 4;
+    private static final int FLAG_HEAD_YAW = 1 << 5;
+    private static final int FLAG_ON_GROUND = 1 << 6;
+    private static final int FLAG_ABSOLUTE = 1 << 7;
+
+    public static QuantizedEntityPosition quantize(double x, double y, double z, float yaw, float pitch, float headYaw, boolean onGround) {
+        return new QuantizedEntityPosition(Math.round(x * POSITION_SCALE), Math.round(y * POSITION_SCALE), Math.round(z * POSITION_SCALE),
+            quantizeAngle(yaw), quantizeAngle(pitch), quantizeAngle(headYaw), onGround);
+    }
+
+    private static short quantizeAngle(float angle) {
+        // Wraps around, angles are stored in the range [-180, 180)
+        return (short) Math.round(angle * ANGLE_SCALE);
+    }
+
+    public double decodeX() {
+        return this.x / POSITION_SCALE;
+    }
+
+    public double decodeY() {
+        return this.y / POSITION_SCALE;
+    }
+
+    public double decodeZ() {
+        return this.z / POSITION_SCALE;
+    }
+
+    public float decodeYaw() {
+        return this.yaw / ANGLE_SCALE;
+    }
+
+    public float decodePitch() {
+        return this.pitch / ANGLE_SCALE;
+    }
+
+    public float decodeHeadYaw() {
+        return this.headYaw / ANGLE_SCALE;
+    }
+
+    // A flags byte says which fields follow, unchanged fields are left out entirely
+    public void write(FriendlyByteBuf friendlyByteBuf, @Nullable QuantizedEntityPosition previous) {
+        if (previous == null) {
+            friendlyByteBuf.writeByte(FLAG_ABSOLUTE | (this.onGround ? FLAG_ON_GROUND : 0));
+            friendlyByteBuf.writeVarLong(zigZag(this.x));
+            friendlyByteBuf.writeVarLong(zigZag(this.y));
+            friendlyByteBuf.writeVarLong(zigZag(this.z));
+            friendlyByteBuf.writeShort(this.yaw);
+            friendlyByteBuf.writeShort(this.pitch);
+            friendlyByteBuf.writeShort(this.headYaw);
+            return;
+        }
+
+        int flags = this.onGround ? FLAG_ON_GROUND : 0;
+        if (this.x != previous.x) flags |= FLAG_X;
+        if (this.y != previous.y) flags |= FLAG_Y;
+        if (this.z != previous.z) flags |= FLAG_Z;
+        if (this.yaw != previous.yaw) flags |= FLAG_YAW;
+        if (this.pitch != previous.pitch) flags |= FLAG_PITCH;
+        if (this.headYaw != previous.headYaw) flags |= FLAG_HEAD_YAW;
+
+        friendlyByteBuf.writeByte(flags);
+        if ((flags & FLAG_X) != 0) friendlyByteBuf.writeVarLong(zigZag(this.x - previous.x));
+        if ((flags & FLAG_Y) != 0) friendlyByteBuf.writeVarLong(zigZag(this.y - previous.y));
+        if ((flags & FLAG_Z) != 0) friendlyByteBuf.writeVarLong(zigZag(this.z - previous.z));
+        if ((flags & FLAG_YAW) != 0) friendlyByteBuf.writeShort(this.yaw);
+        if ((flags & FLAG_PITCH) != 0) friendlyByteBuf.writeShort(this.pitch);
+        if ((flags & FLAG_HEAD_YAW) != 0) friendlyByteBuf.writeShort(this.headYaw);
+    }
+
+    public static QuantizedEntityPosition read(FriendlyByteBuf friendlyByteBuf, @Nullable QuantizedEntityPosition previous) {
+        int flags = friendlyByteBuf.readUnsignedByte();
+        boolean onGround = (flags & FLAG_ON_GROUND) != 0;
+
+        if ((flags & FLAG_ABSOLUTE) != 0) {
+            long x = unZigZag(friendlyByteBuf.readVarLong());
+            long y = unZigZag(friendlyByteBuf.readVarLong());
+            long z = unZigZag(friendlyByteBuf.readVarLong());
+            short yaw = friendlyByteBuf.readShort();
+            short pitch = friendlyByteBuf.readShort();
+            short headYaw = friendlyByteBuf.readShort();
+            return new QuantizedEntityPosition(x, y, z, yaw, pitch, headYaw, onGround);
+        }
+
+        if (previous == null) {
+            throw new IllegalStateException("Relative entity movement without a previous position");
+        }
+
+        long x = (flags & FLAG_X) != 0 ? previous.x + unZigZag(friendlyByteBuf.readVarLong()) : previous.x;
+        long y = (flags & FLAG_Y) != 0 ? previous.y + unZigZag(friendlyByteBuf.readVarLong()) : previous.y;
+        long z = (flags & FLAG_Z) != 0 ? previous.z + unZigZag(friendlyByteBuf.readVarLong()) : previous.z;
+        short yaw = (flags & FLAG_YAW) != 0 ? friendlyByteBuf.readShort() : previous.yaw;
+        short pitch = (flags & FLAG_PITCH) != 0 ? friendlyByteBuf.readShort() : previous.pitch;
+        short headYaw = (flags & FLAG_HEAD_YAW) != 0 ? friendlyByteBuf.readShort() : previous.headYaw;
+        return new QuantizedEntityPosition(x, y, z, yaw, pitch, headYaw, onGround);
+    }
+
+    public static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.moulberry.flashback.combo_options;
+
+import org.bytedeco.ffmpeg.global.swscale;
+
+public enum ScalerQuality implements ComboOption {
+
+    ACCURATE("Accurate", swscale.SWS_LANCZOS | swscale.SWS_ACCURATE_RND | swscale.SWS_FULL_CHR_H_INT),
+    BALANCED("Balanced", swscale.SWS_BICUBIC | swscale.SWS_FULL_CHR_H_INT),
+    FAST("Fast", swscale.SWS_FAST_BILINEAR);
+
+    private final String text;
+    private final int flags;
+
+    ScalerQuality(String text, int flags) {
+        this.text = text;
+        this.flags = flags;
+    }
+
+    @Override
+    public String text() {
+        return this.text;
+    }
+
+    // The cheaper presets only change the pixel format conversion, resizing always uses the accurate scaler
+    public int getSwsFlags(boolean sameSize) {
+        return sameSize ? this.flags : ACCURATE.flags;
+    }
+
+}
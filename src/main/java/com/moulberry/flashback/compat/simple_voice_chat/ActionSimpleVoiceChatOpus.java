@@ -0,0 +1,69 @@
+package com.moulberry.flashback.compat.simple_voice_chat;
+
+import com.moulberry.flashback.Flashback;
+import com.moulberry.flashback.action.Action;
+import com.moulberry.flashback.packet.FlashbackVoiceChatSound;
+import com.moulberry.flashback.playback.ReplayPlayer;
+import com.moulberry.flashback.playback.ReplayServer;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.resources.ResourceLocation;
+
+import java.util.UUID;
+
+// Voice chat stored as an opus frame instead of raw samples, see SimpleVoiceChatOpus
+public class ActionSimpleVoiceChatOpus implements Action {
+    private static final ResourceLocation NAME = Flashback.createResourceLocation("action/simple_voice_chat_opus_optional");
+    public static final ActionSimpleVoiceChatOpus INSTANCE = new ActionSimpleVoiceChatOpus();
+    private ActionSimpleVoiceChatOpus() {
+    }
+
+    @Override
+    public ResourceLocation name() {
+        return NAME;
+    }
+
+    public static void write(FriendlyByteBuf friendlyByteBuf, FlashbackVoiceChatSound sound, SimpleVoiceChatOpus.EncodedFrame frame) {
+        friendlyByteBuf.writeUUID(sound.source());
+        friendlyByteBuf.writeInt(frame.stream());
+        friendlyByteBuf.writeVarInt(frame.sequence());
+        friendlyByteBuf.writeByteArray(frame.data());
+        sound.writeExtraData(friendlyByteBuf);
+    }
+
+    @Override
+    public void handle(ReplayServer replayServer, RegistryFriendlyByteBuf friendlyByteBuf) {
+        if (replayServer.isProcessingSnapshot) {
+            return;
+        }
+
+        boolean sendVoiceChat;
+        if (Flashback.isExporting()) {
+            sendVoiceChat = Flashback.EXPORT_JOB.getSettings().recordAudio() && Flashback.EXPORT_JOB.getCurrentTickDouble() > 0.0;
+        } else {
+            sendVoiceChat = !replayServer.fastForwarding && !replayServer.replayPaused;
+        }
+
+        // Only decode frames that will actually be played
+        if (!sendVoiceChat) {
+            return;
+        }
+
+        UUID source = friendlyByteBuf.readUUID();
+        int stream = friendlyByteBuf.readInt();
+        int sequence = friendlyByteBuf.readVarInt();
+        byte[] data = friendlyByteBuf.readByteArray();
+
+        short[] samples = SimpleVoiceChatOpus.decode(source, stream, sequence, data);
+        if (samples == null) {
+            return;
+        }
+
+        var soundPacket = FlashbackVoiceChatSound.FlashbackVoiceChatSoundStreamCodec.decodeExtraData(friendlyByteBuf, source, samples);
+        for (ReplayPlayer replayViewer : replayServer.getReplayViewers()) {
+            ServerPlayNetworking.send(replayViewer, soundPacket);
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.moulberry.flashback.compat.simple_voice_chat;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.moulberry.flashback.Flashback;
+import de.maxhenkel.voicechat.api.opus.OpusDecoder;
+import de.maxhenkel.voicechat.api.opus.OpusEncoder;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Compresses recorded voice chat using the Opus codec that Simple Voice Chat already ships with
+// Opus is stateful, so each source has its own stream of sequenced frames. A frame that doesn't directly follow the
+// previously decoded one (after seeking, fast-forwarding, etc.) resets the decoder, and decoded frames are cached
+// so that playing the same part of a replay again gives identical samples
+public class SimpleVoiceChatOpus {
+
+    // Simple Voice Chat sends 20ms frames of 48kHz mono audio
+    public static final int FRAME_SIZE = 960;
+
+    public record EncodedFrame(int stream, int sequence, byte[] data) {
+    }
+
+    private record FrameKey(UUID source, int stream, int sequence) {
+    }
+
+    private static class EncodeStream {
+        private final OpusEncoder encoder;
+        private final int stream = ThreadLocalRandom.current().nextInt();
+        private int sequence = 0;
+
+        private EncodeStream(OpusEncoder encoder) {
+            this.encoder = encoder;
+        }
+    }
+
+    private static class DecodeStream {
+        private final OpusDecoder decoder;
+        private int stream = 0;
+        private int lastSequence = -1;
+
+        private DecodeStream(OpusDecoder decoder) {
+            this.decoder = decoder;
+        }
+    }
+
+    // Saver thread only
+    private static final Cache<UUID, EncodeStream> encoders = CacheBuilder.newBuilder()
+        .expireAfterAccess(Duration.ofMinutes(1))
+        .removalListener((RemovalNotification<UUID, EncodeStream> notification) -> notification.getValue().encoder.close())
+        .build();
+
+    // Replay server thread, reset when joining a replay
+    private static final Cache<UUID, DecodeStream> decoders = CacheBuilder.newBuilder()
+        .expireAfterAccess(Duration.ofMinutes(1))
+        .removalListener((RemovalNotification<UUID, DecodeStream> notification) -> notification.getValue().decoder.close())
+        .build();
+    private static final Cache<FrameKey, short[]> decodedFrames = CacheBuilder.newBuilder()
+        .maximumSize(4096)
+        .build();
+
+    @Nullable
+    public static EncodedFrame encode(UUID source, short[] samples) {
+        if (samples.length != FRAME_SIZE || SimpleVoiceChatPlugin.CLIENT_API == null) {
+            return null;
+        }
+
+        try {
+            EncodeStream stream = encoders.get(source, () -> new EncodeStream(SimpleVoiceChatPlugin.CLIENT_API.createEncoder()));
+            byte[] data = stream.encoder.encode(samples);
+            int sequence = stream.sequence;
+            stream.sequence += 1;
+            return new EncodedFrame(stream.stream, sequence, data);
+        } catch (Exception e) {
+            Flashback.LOGGER.error("Unable to encode voice chat with opus, falling back to raw samples", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    public static short[] decode(UUID source, int stream, int sequence, byte[] data) {
+        FrameKey key = new FrameKey(source, stream, sequence);
+        short[] cached = decodedFrames.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (SimpleVoiceChatPlugin.CLIENT_API == null) {
+            return null;
+        }
+
+        try {
+            DecodeStream decodeStream = decoders.get(source, () -> new DecodeStream(SimpleVoiceChatPlugin.CLIENT_API.createDecoder()));
+            if (decodeStream.stream != stream || decodeStream.lastSequence + 1 != sequence) {
+                decodeStream.decoder.resetState();
+                decodeStream.stream = stream;
+            }
+            decodeStream.lastSequence = sequence;
+
+            short[] samples = decodeStream.decoder.decode(data);
+            decodedFrames.put(key, samples);
+            return samples;
+        } catch (Exception e) {
+            Flashback.LOGGER.error("Unable to decode opus voice chat", e);
+            return null;
+        }
+    }
+
+    public static void resetPlayback() {
+        decoders.invalidateAll();
+        decodedFrames.invalidateAll();
+    }
+
+}
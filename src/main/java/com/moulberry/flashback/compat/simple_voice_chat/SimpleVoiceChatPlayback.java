@@ -73,6 +73,7 @@ public class SimpleVoiceChatPlayback {
         staticAudioChannelCache.cleanUp();
         locationAudioChannelCache.cleanUp();
         entityAudioChannelCache.cleanUp();
+        SimpleVoiceChatOpus.resetPlayback();
     }
 
 }
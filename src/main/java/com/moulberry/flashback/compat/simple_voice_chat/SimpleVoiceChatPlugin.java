@@ -21,6 +21,7 @@ public class SimpleVoiceChatPlugin implements VoicechatPlugin {
     @Override
     public void initialize(VoicechatApi api) {
         ActionRegistry.register(ActionSimpleVoiceChatSound.INSTANCE);
+        ActionRegistry.register(ActionSimpleVoiceChatOpus.INSTANCE);
     }
 
     @Override
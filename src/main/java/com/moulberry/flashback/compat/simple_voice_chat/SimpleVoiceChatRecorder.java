@@ -65,10 +65,19 @@ public class SimpleVoiceChatRecorder {
     private static void submitSoundPacket(FlashbackVoiceChatSound soundPacket) {
         Minecraft.getInstance().submit(() -> {
             if (shouldWritePacket()) {
+                boolean compress = Flashback.getConfig().compressVoiceChat;
                 Flashback.RECORDER.submitCustomTask(writer -> {
-                    writer.startAction(ActionSimpleVoiceChatSound.INSTANCE);
-                    FlashbackVoiceChatSound.STREAM_CODEC.encode(writer.friendlyByteBuf(), soundPacket);
-                    writer.finishAction(ActionSimpleVoiceChatSound.INSTANCE);
+                    // Raw samples are still written if the frame can't be encoded
+                    SimpleVoiceChatOpus.EncodedFrame frame = compress ? SimpleVoiceChatOpus.encode(soundPacket.source(), soundPacket.samples()) : null;
+                    if (frame != null) {
+                        writer.startAction(ActionSimpleVoiceChatOpus.INSTANCE);
+                        ActionSimpleVoiceChatOpus.write(writer.friendlyByteBuf(), soundPacket, frame);
+                        writer.finishAction(ActionSimpleVoiceChatOpus.INSTANCE);
+                    } else {
+                        writer.startAction(ActionSimpleVoiceChatSound.INSTANCE);
+                        FlashbackVoiceChatSound.STREAM_CODEC.encode(writer.friendlyByteBuf(), soundPacket);
+                        writer.finishAction(ActionSimpleVoiceChatSound.INSTANCE);
+                    }
                 });
             }
         });
@@ -5,8 +5,10 @@ import com.moulberry.flashback.Flashback;
 import com.moulberry.flashback.FlashbackGson;
 import com.moulberry.flashback.SneakyThrow;
 import com.moulberry.flashback.combo_options.AudioCodec;
+import com.moulberry.flashback.combo_options.ScalerQuality;
 import com.moulberry.flashback.combo_options.VideoCodec;
 import com.moulberry.flashback.combo_options.VideoContainer;
+import com.moulberry.flashback.io.ChunkCacheWriter;
 import com.moulberry.flashback.keyframe.interpolation.InterpolationType;
 import com.moulberry.flashback.screen.select_replay.ReplaySorting;
 import net.fabricmc.loader.api.FabricLoader;
@@ -68,6 +70,23 @@ public class FlashbackConfig {
     @OptionIfModLoaded("voicechat")
     public boolean recordVoiceChat = false;
 
+    @OptionCaption("flashback.option.compress_voice_chat")
+    @OptionDescription("flashback.option.compress_voice_chat.description")
+    @OptionIfModLoaded("voicechat")
+    public boolean compressVoiceChat = true;
+
+    public boolean decodeActionsAhead = true;
+
+    @OptionCaption("flashback.option.store_large_replay_files")
+    @OptionDescription("flashback.option.store_large_replay_files.description")
+    public boolean storeLargeReplayFiles = false;
+
+    @OptionCaption("flashback.option.recording_metrics")
+    @OptionDescription("flashback.option.recording_metrics.description")
+    public boolean recordingMetrics = false;
+
+    public ChunkCacheWriter.Durability chunkCacheDurability = ChunkCacheWriter.Durability.INTERVAL;
+
     public Set<String> openedWindows = new HashSet<>();
     public long nextUnsupportedModLoaderWarning = 0;
 
@@ -101,6 +120,15 @@ public class FlashbackConfig {
     public VideoCodec videoCodec = null;
     public int[] selectedVideoEncoder = new int[]{0};
     public boolean useMaximumBitrate = false;
+    public ScalerQuality scalerQuality = ScalerQuality.ACCURATE;
+    public int exportRescaleThreads = 0;
+    public boolean exportGpuColorConversion = true;
+    public int exportReadbackDepth = 0;
+    public int pngSequenceThreads = 0;
+    public int pngCompressionLevel = 8;
+    public boolean exportQueueShareRenders = true;
+    public int exportSegmentSeconds = 0;
+    public boolean exportTranscodeInBackground = false;
 
     public boolean recordAudio = false;
     public boolean transparentBackground = false;
@@ -115,6 +143,7 @@ public class FlashbackConfig {
     public ForceDefaultExportSettings forceDefaultExportSettings = new ForceDefaultExportSettings();
 
     public boolean filterUnnecessaryPackets = true;
+    public int seekPointIntervalSeconds = 15;
 
     public boolean signedRenderFilter = false;
     public int viewedTipsOfTheDay = 0;
@@ -1,6 +1,7 @@
 package com.moulberry.flashback.configuration;
 
 import com.moulberry.flashback.combo_options.AudioCodec;
+import com.moulberry.flashback.combo_options.ScalerQuality;
 import com.moulberry.flashback.combo_options.VideoCodec;
 import com.moulberry.flashback.combo_options.VideoContainer;
 
@@ -18,6 +19,7 @@ public class ForceDefaultExportSettings {
     public VideoCodec videoCodec = null;
     public int[] selectedVideoEncoder = null;
     public Boolean useMaximumBitrate = null;
+    public ScalerQuality scalerQuality = null;
 
     public Boolean recordAudio = null;
     public Boolean transparentBackground = null;
@@ -54,6 +56,9 @@ public class ForceDefaultExportSettings {
         if (this.useMaximumBitrate != null) {
             config.useMaximumBitrate = this.useMaximumBitrate;
         }
+        if (this.scalerQuality != null) {
+            config.scalerQuality = this.scalerQuality;
+        }
         if (this.recordAudio != null) {
             config.recordAudio = this.recordAudio;
         }
@@ -1,16 +1,20 @@
 package com.moulberry.flashback.editor.ui.windows;
 
 import com.moulberry.flashback.Flashback;
+import com.moulberry.flashback.configuration.FlashbackConfig;
 import com.moulberry.flashback.editor.ui.ImGuiHelper;
 import com.moulberry.flashback.exporting.ExportJob;
 import com.moulberry.flashback.exporting.ExportJobQueue;
 import com.moulberry.flashback.exporting.ExportSettings;
+import com.moulberry.flashback.exporting.TranscodeQueue;
 import imgui.ImGui;
 import imgui.flag.ImGuiCol;
 import imgui.flag.ImGuiTableColumnFlags;
 import imgui.flag.ImGuiTableFlags;
 import imgui.flag.ImGuiWindowFlags;
 
+import java.util.List;
+
 public class ExportQueueWindow {
 
     private static boolean open = false;
@@ -84,6 +88,54 @@ public class ExportQueueWindow {
             }
             if (!canRemoveJob) ImGui.endDisabled();
 
+            FlashbackConfig config = Flashback.getConfig();
+            if (ImGui.checkbox("Render Matching Jobs Once", config.exportQueueShareRenders)) {
+                config.exportQueueShareRenders = !config.exportQueueShareRenders;
+                config.delayedSaveToDefaultFolder();
+            }
+            ImGuiHelper.tooltip("Jobs with the same timeline and settings that differ only in resolution or encoding are rendered together and written to every output");
+
+            List<TranscodeQueue.Task> transcodes = TranscodeQueue.getTasks();
+            if (!transcodes.isEmpty()) {
+                ImGui.separator();
+                ImGui.text("Background Transcodes");
+                ImGuiHelper.pushStyleColor(ImGuiCol.Border, 0xFF808080);
+                if (ImGui.beginChild("##Transcodes", 300, 100, true)) {
+                    if (ImGui.beginTable("##TranscodeTable", 3, ImGuiTableFlags.SizingFixedFit)) {
+                        ImGui.tableSetupColumn("Name", ImGuiTableColumnFlags.WidthStretch);
+
+                        for (int i = 0; i < transcodes.size(); i++) {
+                            TranscodeQueue.Task task = transcodes.get(i);
+
+                            ImGui.tableNextColumn();
+                            ImGui.text(task.getName());
+                            ImGui.tableNextColumn();
+                            switch (task.getState()) {
+                                case QUEUED -> ImGui.text("Queued");
+                                case RUNNING -> ImGui.text(String.format("%.0f%%", task.getProgress() * 100));
+                                case FINISHED -> ImGui.text("Done");
+                                case FAILED -> ImGui.text("Failed");
+                                case CANCELLED -> ImGui.text("Cancelled");
+                            }
+                            ImGui.tableNextColumn();
+                            if (task.isDone()) ImGui.beginDisabled();
+                            if (ImGui.smallButton("Cancel##" + i)) {
+                                task.cancel();
+                            }
+                            if (task.isDone()) ImGui.endDisabled();
+                        }
+
+                        ImGui.endTable();
+                    }
+                    ImGui.endChild();
+                }
+                ImGuiHelper.popStyleColor();
+
+                if (ImGui.button("Clear Finished")) {
+                    TranscodeQueue.removeDone();
+                }
+            }
+
             ImGuiHelper.endPopupModalCloseable();
         }
     }
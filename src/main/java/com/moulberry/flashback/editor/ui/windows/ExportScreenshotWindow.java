@@ -2,6 +2,7 @@ package com.moulberry.flashback.editor.ui.windows;
 
 import com.moulberry.flashback.Flashback;
 import com.moulberry.flashback.Utils;
+import com.moulberry.flashback.combo_options.ScalerQuality;
 import com.moulberry.flashback.combo_options.VideoContainer;
 import com.moulberry.flashback.configuration.FlashbackConfig;
 import com.moulberry.flashback.editor.ui.ImGuiHelper;
@@ -89,7 +90,7 @@ public class ExportScreenshotWindow {
                         ExportSettings settings = new ExportSettings(null, copiedEditorState,
                             player.position(), player.getYRot(), player.getXRot(),
                             config.resolution[0], config.resolution[1], tick, tick,
-                            1, false, VideoContainer.PNG_SEQUENCE, null, null, 0, transparent, ssaa, noGui,
+                            1, false, VideoContainer.PNG_SEQUENCE, null, null, 0, transparent, ssaa, noGui, ScalerQuality.ACCURATE,
                             false, false, null,
                             path, null);
 
@@ -4,6 +4,7 @@ import com.moulberry.flashback.Flashback;
 import com.moulberry.flashback.Utils;
 import com.moulberry.flashback.combo_options.AspectRatio;
 import com.moulberry.flashback.combo_options.AudioCodec;
+import com.moulberry.flashback.combo_options.ScalerQuality;
 import com.moulberry.flashback.combo_options.Sizing;
 import com.moulberry.flashback.combo_options.VideoCodec;
 import com.moulberry.flashback.combo_options.VideoContainer;
@@ -93,6 +94,9 @@ public class StartExportWindow {
             if (config.audioCodec == null) {
                 config.audioCodec = AudioCodec.AAC;
             }
+            if (config.scalerQuality == null) {
+                config.scalerQuality = ScalerQuality.ACCURATE;
+            }
 
             ImGui.openPopup("###StartExport");
 
@@ -328,6 +332,9 @@ public class StartExportWindow {
             ImGuiHelper.combo("Encoder", config.selectedVideoEncoder, encoders);
         }
 
+        config.scalerQuality = ImGuiHelper.enumCombo("Color Conversion", config.scalerQuality, ScalerQuality.values());
+        ImGuiHelper.tooltip("Quality of the conversion from the captured frames to the pixel format used by the encoder. Faster options may show slight color banding");
+
         if (config.videoCodec != VideoCodec.GIF) {
             if (ImGui.checkbox("Use Maximum Bitrate", config.useMaximumBitrate)) {
                 config.useMaximumBitrate = !config.useMaximumBitrate;
@@ -344,6 +351,13 @@ public class StartExportWindow {
             ImGui.textColored(0xFFFFFFFF, "Warning: GIF output can be extremely large. Please ensure you know the limitations of the GIF format before exporting. You might be better off using WebP which is a similar but better format");
             ImGui.popTextWrapPos();
         }
+
+        if (config.container != VideoContainer.GIF && config.container != VideoContainer.WEBP) {
+            if (ImGui.checkbox("Transcode in Background", config.exportTranscodeInBackground)) {
+                config.exportTranscodeInBackground = !config.exportTranscodeInBackground;
+            }
+            ImGuiHelper.tooltip("Records a lossless intermediate file first and encodes it with the chosen codec afterwards, so the game isn't held up by slow encoders. Progress is shown in the export queue. The intermediate file can be very large");
+        }
     }
 
     private static CompletableFuture<ExportSettings> createExportSettings(@Nullable String name, FlashbackConfig config) {
@@ -420,6 +434,7 @@ public class StartExportWindow {
                     player.position(), player.getYRot(), player.getXRot(),
                     config.resolution[0], config.resolution[1], start, end,
                     Math.max(1, config.framerate[0]), config.resetRng, config.container, useVideoCodec, encoder, numBitrate, transparent, config.ssaa, config.noGui,
+                    config.scalerQuality,
                     shouldRecordAudio, config.stereoAudio, useAudioCodec,
                     path, ImGuiHelper.getString(pngSequenceFormat));
             }
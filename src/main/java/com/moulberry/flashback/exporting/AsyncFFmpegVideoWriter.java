@@ -4,15 +4,19 @@ import com.mojang.blaze3d.platform.NativeImage;
 import com.moulberry.flashback.Flashback;
 import com.moulberry.flashback.SneakyThrow;
 import com.moulberry.flashback.combo_options.AudioCodec;
+import com.moulberry.flashback.combo_options.ScalerQuality;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import org.bytedeco.ffmpeg.avutil.AVBufferRef;
 import org.bytedeco.ffmpeg.avutil.AVFrame;
 import org.bytedeco.ffmpeg.avutil.AVPixFmtDescriptor;
+import org.bytedeco.ffmpeg.avutil.Free_func_Pointer_BytePointer;
+import org.bytedeco.ffmpeg.global.avcodec;
 import org.bytedeco.ffmpeg.global.avutil;
 import org.bytedeco.ffmpeg.global.swscale;
 import org.bytedeco.ffmpeg.swscale.SwsContext;
 import org.bytedeco.javacpp.BytePointer;
-import org.bytedeco.javacpp.DoublePointer;
 import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.Pointer;
 import org.bytedeco.javacpp.PointerPointer;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.FFmpegLogCallback;
@@ -23,7 +27,6 @@ import org.lwjgl.system.MemoryUtil;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -38,6 +41,8 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
     @Nullable
     private final ArrayBlockingQueue<ImageFrame> rescaleQueue;
     private final ArrayBlockingQueue<ImageFrame> encodeQueue;
+    // Audio doesn't wait for readback, so it has its own queue which the encode thread drains between frames
+    private final ArrayBlockingQueue<AudioBufferPool.Chunk> audioQueue = new ArrayBlockingQueue<>(64);
 
     @Nullable
     private final ArrayBlockingQueue<Long> reusePictureData;
@@ -48,40 +53,38 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
 
     private final AtomicReference<Throwable> threadedError = new AtomicReference<>(null);
 
+    // Frames arrive already converted to yuv420p by the GPU, so no rescale thread is needed
+    private final boolean acceptsYuv420p;
+
+    private final NativeImagePool imagePool;
+
+    public static final String INTERMEDIATE_ENCODER = "ffv1";
+    public static final String INTERMEDIATE_FORMAT = "matroska";
+    public static final String INTERMEDIATE_EXTENSION = "mkv";
+
+    // Frames backed by an image go back to the pool once they've been used, otherwise the pointer is freed
     private record ImageFrame(long pointer, int size, int width, int height, int channels, int imageDepth, int stride, int pixelFormat,
-                              @Nullable FloatBuffer audioBuffer) implements AutoCloseable {
+                              @Nullable NativeImage image, @Nullable NativeImagePool pool) implements AutoCloseable {
         public void close() {
-            MemoryUtil.nmemFree(this.pointer);
+            if (this.image != null && this.pool != null) {
+                this.pool.release(this.image);
+            } else {
+                MemoryUtil.nmemFree(this.pointer);
+            }
         }
     }
 
-    public AsyncFFmpegVideoWriter(ExportSettings settings, String filename) {
-        int width = settings.resolutionX();
-        int height = settings.resolutionY();
+    public AsyncFFmpegVideoWriter(ExportSettings settings, String filename, NativeImagePool imagePool) {
+        this(settings, filename, imagePool, false);
+    }
 
-        final int maxResolutionArea = 3840 * 2160;
-        if (width*height > maxResolutionArea) {
-            double factor = (width*height) / (double) maxResolutionArea;
-            factor = Math.sqrt(factor);
-            width = (int) Math.floor(width / factor);
-            height = (int) Math.floor(height / factor);
-        }
+    // An intermediate writer stores the frames losslessly with FFV1 in a matroska file, already converted to the pixel
+    // format of the final encoder so that TranscodeQueue only needs to pass them on
+    public AsyncFFmpegVideoWriter(ExportSettings settings, String filename, NativeImagePool imagePool, boolean intermediate) {
+        this.imagePool = imagePool;
 
-        int maxBitrate = Math.min(288_000_000, 5000 + (int) Math.ceil(width * height * settings.framerate()));
-
-        if (settings.encoder().equals("libsvtav1")) {
-            maxBitrate = Math.min(100_000_000, maxBitrate);
-        }
-
-        int bitrate;
-        if (settings.bitrate() <= 0) {
-            bitrate = maxBitrate;
-        } else {
-            bitrate = Math.min(settings.bitrate(), maxBitrate);
-        }
-        double fps = settings.framerate();
-
-        String extension = settings.container().extension();
+        int width = getEncodedWidth(settings);
+        int height = getEncodedHeight(settings);
 
         try {
             FFmpegLogCallback.set();
@@ -89,33 +92,35 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
             boolean wantTransparency = settings.transparent();
 
             int dstPixelFormat = PixelFormatHelper.getBestPixelFormat(settings.encoder(), wantTransparency);
+            if (intermediate && !PixelFormatHelper.supportsPixelFormat(INTERMEDIATE_ENCODER, dstPixelFormat)) {
+                dstPixelFormat = PixelFormatHelper.getBestPixelFormat(INTERMEDIATE_ENCODER, wantTransparency);
+            }
             Flashback.LOGGER.info("Encoding video with pixel format {}", PixelFormatHelper.pixelFormatToString(dstPixelFormat));
-            boolean needsRescale = ExportJob.SRC_PIXEL_FORMAT != dstPixelFormat;
-
-            int audioChannels = 0;
-            if (settings.recordAudio()) {
-                if (settings.audioCodec() == AudioCodec.VORBIS || settings.stereoAudio()) {
-                    audioChannels = 2;
-                } else {
-                    audioChannels = 1;
+            // Frames are converted to yuv420p in a shader before readback instead of with swscale when possible
+            this.acceptsYuv420p = Flashback.getConfig().exportGpuColorConversion && dstPixelFormat == avutil.AV_PIX_FMT_YUV420P
+                && width == settings.resolutionX() && height == settings.resolutionY() && width % 2 == 0 && height % 2 == 0;
+            boolean needsRescale = ExportJob.SRC_PIXEL_FORMAT != dstPixelFormat && !this.acceptsYuv420p;
+
+            final FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(filename, width, height, getAudioChannels(settings));
+
+            if (intermediate) {
+                recorder.setVideoCodec(avcodec.AV_CODEC_ID_FFV1);
+                recorder.setVideoCodecName(INTERMEDIATE_ENCODER);
+                recorder.setFormat(INTERMEDIATE_FORMAT);
+                recorder.setFrameRate(settings.framerate());
+                recorder.setPixelFormat(dstPixelFormat);
+                recorder.setGopSize(1);
+                recorder.setVideoOption("level", "3");
+                recorder.setVideoOption("slices", "16");
+                recorder.setVideoOption("threads", "auto");
+
+                if (settings.recordAudio()) {
+                    recorder.setAudioCodec(avcodec.AV_CODEC_ID_PCM_F32LE);
+                    recorder.setSampleFormat(avutil.AV_SAMPLE_FMT_FLT);
+                    recorder.setSampleRate(48000);
                 }
-            }
-
-            final FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(filename, width, height, audioChannels);
-
-            recorder.setVideoBitrate(bitrate);
-            recorder.setVideoCodec(settings.codec().codecId());
-            recorder.setVideoCodecName(settings.encoder());
-            recorder.setFormat(extension);
-            recorder.setFrameRate(fps);
-            recorder.setPixelFormat(dstPixelFormat);
-            recorder.setGopSize((int) Math.max(20, Math.min(240, Math.ceil(fps * 2))));
-
-            if (settings.recordAudio()) {
-                recorder.setAudioCodec(settings.audioCodec().codecId());
-                recorder.setSampleFormat(avutil.AV_SAMPLE_FMT_FLTP);
-                recorder.setSampleRate(48000);
-                recorder.setAudioBitrate(256000);
+            } else {
+                configureRecorder(recorder, settings, width, height, dstPixelFormat);
             }
 
             recorder.start();
@@ -126,7 +131,7 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
 
             Thread encodeThread = createEncodeThread(recorder);
             if (needsRescale) {
-                Thread rescaleThread = createRescaleThread(width, height, dstPixelFormat);
+                Thread rescaleThread = createRescaleThread(width, height, dstPixelFormat, settings.scalerQuality());
                 rescaleThread.start();
             }
             encodeThread.start();
@@ -135,6 +140,71 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
         }
     }
 
+    // Resolutions above 4K are scaled down to the same area
+    private static final int MAX_RESOLUTION_AREA = 3840 * 2160;
+
+    public static int getEncodedWidth(ExportSettings settings) {
+        int width = settings.resolutionX();
+        int height = settings.resolutionY();
+        if (width*height > MAX_RESOLUTION_AREA) {
+            double factor = Math.sqrt((width*height) / (double) MAX_RESOLUTION_AREA);
+            return (int) Math.floor(width / factor);
+        }
+        return width;
+    }
+
+    public static int getEncodedHeight(ExportSettings settings) {
+        int width = settings.resolutionX();
+        int height = settings.resolutionY();
+        if (width*height > MAX_RESOLUTION_AREA) {
+            double factor = Math.sqrt((width*height) / (double) MAX_RESOLUTION_AREA);
+            return (int) Math.floor(height / factor);
+        }
+        return height;
+    }
+
+    public static int getAudioChannels(ExportSettings settings) {
+        if (!settings.recordAudio()) {
+            return 0;
+        } else if (settings.audioCodec() == AudioCodec.VORBIS || settings.stereoAudio()) {
+            return 2;
+        } else {
+            return 1;
+        }
+    }
+
+    // Applies the codec, bitrate and audio settings of the final output
+    public static void configureRecorder(FFmpegFrameRecorder recorder, ExportSettings settings, int width, int height, int dstPixelFormat) {
+        int maxBitrate = Math.min(288_000_000, 5000 + (int) Math.ceil(width * height * settings.framerate()));
+
+        if (settings.encoder().equals("libsvtav1")) {
+            maxBitrate = Math.min(100_000_000, maxBitrate);
+        }
+
+        int bitrate;
+        if (settings.bitrate() <= 0) {
+            bitrate = maxBitrate;
+        } else {
+            bitrate = Math.min(settings.bitrate(), maxBitrate);
+        }
+        double fps = settings.framerate();
+
+        recorder.setVideoBitrate(bitrate);
+        recorder.setVideoCodec(settings.codec().codecId());
+        recorder.setVideoCodecName(settings.encoder());
+        recorder.setFormat(settings.container().extension());
+        recorder.setFrameRate(fps);
+        recorder.setPixelFormat(dstPixelFormat);
+        recorder.setGopSize((int) Math.max(20, Math.min(240, Math.ceil(fps * 2))));
+
+        if (settings.recordAudio()) {
+            recorder.setAudioCodec(settings.audioCodec().codecId());
+            recorder.setSampleFormat(avutil.AV_SAMPLE_FMT_FLTP);
+            recorder.setSampleRate(48000);
+            recorder.setAudioBitrate(256000);
+        }
+    }
+
     private @NotNull Thread createEncodeThread(FFmpegFrameRecorder recorder) {
         Thread encodeThread = new Thread(() -> {
             while (true) {
@@ -147,8 +217,11 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
                 }
 
                 try {
+                    this.recordQueuedAudio(recorder);
+
                     if (src == null) {
                         if (this.finishEncodeThread.get()) {
+                            this.recordQueuedAudio(recorder);
                             recorder.stop();
                             recorder.close();
                             this.finishedWriting.set(true);
@@ -163,11 +236,8 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
 
                     recorder.recordImage(src.width, src.height, src.imageDepth, src.channels,
                             src.stride, src.pixelFormat, buffer);
-                    if (src.audioBuffer != null) {
-                        recorder.recordSamples(src.audioBuffer);
-                    }
 
-                    if (this.reusePictureData != null) {
+                    if (this.reusePictureData != null && src.image == null) {
                         if (this.reusePictureData.offer(src.pointer)) { // try adding to the reuse queue, ignore if full
                             src = null; // don't deallocate
                         }
@@ -194,7 +264,83 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
         return encodeThread;
     }
 
-    private Thread createRescaleThread(int dstWidth, int dstHeight, int dstPixelFormat) {
+    private void recordQueuedAudio(FFmpegFrameRecorder recorder) throws FFmpegFrameRecorder.Exception {
+        AudioBufferPool.Chunk chunk;
+        while ((chunk = this.audioQueue.poll()) != null) {
+            try {
+                recorder.recordSamples(chunk.view());
+            } finally {
+                chunk.release();
+            }
+        }
+    }
+
+    // exportRescaleThreads of 0 picks a count based on the number of processors
+    private static int getRescaleThreadCount() {
+        int configured = Flashback.getConfig().exportRescaleThreads;
+        if (configured > 0) {
+            return configured;
+        }
+        return Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    // Bit of a hack to create a BytePointer for this library
+    private static BytePointer wrapAddress(long address, long size) {
+        return new BytePointer() {{
+            this.address = address;
+            this.position = 0;
+            this.limit = size;
+            this.capacity = size;
+        }};
+    }
+
+    // Frame memory is owned by this writer, so the buffers handed to swscale must not free it
+    private static final Free_func_Pointer_BytePointer KEEP_BUFFER = new Free_func_Pointer_BytePointer() {
+        @Override
+        public void call(Pointer opaque, BytePointer data) {
+        }
+    };
+
+    private static AVBufferRef wrapBuffer(long address, long size) {
+        AVBufferRef buffer = av_buffer_create(wrapAddress(address, size), size, KEEP_BUFFER, null, 0);
+        if (buffer == null) {
+            throw new OutOfMemoryError();
+        }
+        return buffer;
+    }
+
+    // swscale splits the frame between its own threads, which handles the vertical filtering of subsampled chroma
+    // correctly at the slice boundaries. This needs a context with the threads option set before it is initialized
+    private static SwsContext createScaleContext(ImageFrame src, int dstWidth, int dstHeight, int dstPixelFormat, int swsFlags,
+            boolean useItu709Colorspace) {
+        SwsContext context = swscale.sws_alloc_context();
+        if (context == null) {
+            throw new RuntimeException("sws_alloc_context() error: Cannot allocate the conversion context.");
+        }
+
+        av_opt_set_int(context, "srcw", src.width, 0);
+        av_opt_set_int(context, "srch", src.height, 0);
+        av_opt_set_int(context, "src_format", src.pixelFormat, 0);
+        av_opt_set_int(context, "dstw", dstWidth, 0);
+        av_opt_set_int(context, "dsth", dstHeight, 0);
+        av_opt_set_int(context, "dst_format", dstPixelFormat, 0);
+        av_opt_set_int(context, "sws_flags", swsFlags, 0);
+        av_opt_set_int(context, "threads", getRescaleThreadCount(), 0);
+
+        if (swscale.sws_init_context(context, null, null) < 0) {
+            sws_freeContext(context);
+            throw new RuntimeException("sws_init_context() error: Cannot initialize the conversion context.");
+        }
+
+        if (useItu709Colorspace) {
+            IntPointer coefficients = swscale.sws_getCoefficients(swscale.SWS_CS_ITU709);
+            swscale.sws_setColorspaceDetails(context, coefficients, 1, coefficients, 0, 0, 1 << 16, 1 << 16);
+        }
+
+        return context;
+    }
+
+    private Thread createRescaleThread(int dstWidth, int dstHeight, int dstPixelFormat, ScalerQuality scalerQuality) {
         int dstSize = av_image_get_buffer_size(dstPixelFormat, dstWidth, dstHeight, 1);
         int dstDepth = dstSize * 8 / dstWidth / dstHeight;
         int dstChannels;
@@ -213,7 +359,6 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
             throw new RuntimeException("av_frame_alloc() error: Could not allocate tmp_picture.");
         }
 
-        PointerPointer<AVFrame> tmp_picture_ptr = new PointerPointer<>(tmp_picture);
         PointerPointer<AVFrame> picture_ptr = new PointerPointer<>(picture);
 
         Flashback.LOGGER.info("Rescaling to pixel format: {}", dstPixelFormat);
@@ -222,89 +367,86 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
 
         Thread scaleThread = new Thread(() -> {
             SwsContext img_convert_ctx = null;
+            int contextWidth = -1;
+            int contextHeight = -1;
+            int contextPixelFormat = -1;
 
-            while (true) {
-                try (ImageFrame src = this.rescaleQueue.poll(10, TimeUnit.MILLISECONDS)) {
-                    if (src == null) {
-                        if (this.finishRescaleThread.get()) {
-                            av_frame_free(picture);
-                            av_frame_free(tmp_picture);
-                            sws_freeContext(img_convert_ctx);
-                            this.finishEncodeThread.set(true);
-                            return;
-                        } else {
-                            continue;
+            try {
+                while (true) {
+                    try (ImageFrame src = this.rescaleQueue.poll(10, TimeUnit.MILLISECONDS)) {
+                        if (src == null) {
+                            if (this.finishRescaleThread.get()) {
+                                this.finishEncodeThread.set(true);
+                                return;
+                            } else {
+                                continue;
+                            }
                         }
-                    }
 
-                    img_convert_ctx = swscale.sws_getCachedContext(img_convert_ctx, src.width, src.height, src.pixelFormat,
-                            dstWidth, dstHeight, dstPixelFormat, swscale.SWS_LANCZOS | swscale.SWS_ACCURATE_RND | swscale.SWS_FULL_CHR_H_INT,
-                            null, null, (DoublePointer) null);
-                    if (img_convert_ctx == null) {
-                        throw new RuntimeException("sws_getCachedContext() error: Cannot initialize the conversion context.");
-                    }
-
-                    if (useItu709Colorspace) {
-                        IntPointer coefficients = swscale.sws_getCoefficients(swscale.SWS_CS_ITU709);
-                        swscale.sws_setColorspaceDetails(img_convert_ctx, coefficients, 1, coefficients, 0, 0, 1 << 16, 1 << 16);
-                    }
+                        if (img_convert_ctx == null || contextWidth != src.width || contextHeight != src.height || contextPixelFormat != src.pixelFormat) {
+                            sws_freeContext(img_convert_ctx);
+                            img_convert_ctx = null;
+
+                            boolean sameSize = src.width == dstWidth && src.height == dstHeight;
+                            img_convert_ctx = createScaleContext(src, dstWidth, dstHeight, dstPixelFormat, scalerQuality.getSwsFlags(sameSize),
+                                    useItu709Colorspace);
+                            contextWidth = src.width;
+                            contextHeight = src.height;
+                            contextPixelFormat = src.pixelFormat;
+                        }
 
-                    BytePointer data = new BytePointer() {{
-                        this.address = src.pointer;
-                        this.position = 0;
-                        this.limit = src.size;
-                        this.capacity = src.size;
-                    }};
-
-                    Long tempPointerAddressLong = this.reusePictureData.poll();
-                    if (tempPointerAddressLong == null) {
-                        tempPointerAddressLong = MemoryUtil.nmemAlloc(dstSize);
-                        if (tempPointerAddressLong == 0) {
-                            throw new OutOfMemoryError();
+                        Long tempPointerAddressLong = this.reusePictureData.poll();
+                        if (tempPointerAddressLong == null) {
+                            tempPointerAddressLong = MemoryUtil.nmemAlloc(dstSize);
+                            if (tempPointerAddressLong == 0) {
+                                throw new OutOfMemoryError();
+                            }
+                        }
+                        long tempPointerAddress = tempPointerAddressLong;
+
+                        int step = src.stride * Math.abs(src.imageDepth) / 8;
+                        tmp_picture.buf(0, wrapBuffer(src.pointer, src.size));
+                        tmp_picture.data(0, wrapAddress(src.pointer, src.size));
+                        tmp_picture.linesize(0, step);
+                        tmp_picture.format(src.pixelFormat);
+                        tmp_picture.width(src.width);
+                        tmp_picture.height(src.height);
+
+                        picture.buf(0, wrapBuffer(tempPointerAddress, dstSize));
+                        av_image_fill_arrays(picture_ptr, picture.linesize(), wrapAddress(tempPointerAddress, dstSize), dstPixelFormat, dstWidth, dstHeight, 1);
+                        picture.format(dstPixelFormat);
+                        picture.width(dstWidth);
+                        picture.height(dstHeight);
+
+                        // Both frames only borrow their memory, unref them before the source frame is freed
+                        int result;
+                        try {
+                            result = swscale.sws_scale_frame(img_convert_ctx, picture, tmp_picture);
+                        } finally {
+                            av_frame_unref(tmp_picture);
+                            av_frame_unref(picture);
+                        }
+                        if (result < 0) {
+                            MemoryUtil.nmemFree(tempPointerAddress);
+                            throw new RuntimeException("sws_scale_frame() error " + result + ": Could not convert frame.");
                         }
-                    }
 
-                    // Bit of a hack to create a BytePointer for this library
-                    long tempPointerAddress = tempPointerAddressLong;
-                    BytePointer tempPointer = new BytePointer() {{
-                        this.address = tempPointerAddress;
-                        this.position = 0;
-                        this.limit = dstSize;
-                        this.capacity = dstSize;
-                    }};
-
-                    av_image_fill_arrays(tmp_picture_ptr, tmp_picture.linesize(), data, src.pixelFormat, src.width, src.height, 1);
-                    av_image_fill_arrays(picture_ptr, picture.linesize(), tempPointer, dstPixelFormat, dstWidth, dstHeight, 1);
-
-                    int step = src.stride * Math.abs(src.imageDepth) / 8;
-                    tmp_picture.linesize(0, step);
-                    tmp_picture.format(src.pixelFormat);
-                    tmp_picture.width(src.width);
-                    tmp_picture.height(src.height);
-
-                    picture.format(dstPixelFormat);
-                    picture.width(dstWidth);
-                    picture.height(dstHeight);
-
-                    swscale.sws_scale(img_convert_ctx, tmp_picture_ptr, tmp_picture.linesize(),
-                            0, src.height, picture_ptr, picture.linesize());
-
-                    this.encodeQueue.put(new ImageFrame(tempPointerAddress, dstSize, dstWidth, dstHeight, dstChannels, dstDepth,
-                            dstWidth, dstPixelFormat, src.audioBuffer));
-                } catch (Throwable t) {
-                    try {
-                        av_frame_free(picture);
-                        av_frame_free(tmp_picture);
-                        sws_freeContext(img_convert_ctx);
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                        this.encodeQueue.put(new ImageFrame(tempPointerAddress, dstSize, dstWidth, dstHeight, dstChannels, dstDepth,
+                                dstWidth, dstPixelFormat, null, null));
                     }
-
-                    this.threadedError.set(t);
-                    this.finishRescaleThread.set(true);
-                    this.finishEncodeThread.set(true);
-                    this.finishedWriting.set(true);
-                    return;
+                }
+            } catch (Throwable t) {
+                this.threadedError.set(t);
+                this.finishRescaleThread.set(true);
+                this.finishEncodeThread.set(true);
+                this.finishedWriting.set(true);
+            } finally {
+                try {
+                    av_frame_free(picture);
+                    av_frame_free(tmp_picture);
+                    sws_freeContext(img_convert_ctx);
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
             }
         });
@@ -330,7 +472,7 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
         }
     }
 
-    public void encode(NativeImage src, @Nullable FloatBuffer audioBuffer) {
+    public void encode(NativeImage src) {
         checkEncodeError(src);
 
         if (this.finishRescaleThread.get() || this.finishEncodeThread.get() || this.finishedWriting.get()) {
@@ -341,7 +483,7 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
         while (true) {
             try {
                 ImageFrame imageFrame = new ImageFrame(src.pixels, (int) src.size, src.getWidth(), src.getHeight(),
-                        4, Frame.DEPTH_INT, src.getWidth(), ExportJob.SRC_PIXEL_FORMAT, audioBuffer);
+                        4, Frame.DEPTH_INT, src.getWidth(), ExportJob.SRC_PIXEL_FORMAT, src, this.imagePool);
                 if (this.rescaleQueue != null) {
                     this.rescaleQueue.put(imageFrame);
                 } else {
@@ -353,6 +495,62 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
         }
     }
 
+    @Override
+    public boolean acceptsYuv420p() {
+        return this.acceptsYuv420p;
+    }
+
+    @Override
+    public void encodeYuv420p(NativeImage planes) {
+        checkEncodeError(planes);
+
+        if (!this.acceptsYuv420p) {
+            planes.close();
+            throw new IllegalStateException("Writer doesn't accept yuv420p frames");
+        }
+        if (this.finishEncodeThread.get() || this.finishedWriting.get()) {
+            planes.close();
+            throw new IllegalStateException("Cannot encode after finish()");
+        }
+
+        int width = planes.getWidth();
+        int height = planes.getHeight() * 2 / 3;
+
+        while (true) {
+            try {
+                // Described the same way as the frames produced by the rescale thread
+                this.encodeQueue.put(new ImageFrame(planes.pixels, (int) planes.size, width, height,
+                        3, 12, width, avutil.AV_PIX_FMT_YUV420P, planes, this.imagePool));
+                break;
+            } catch (InterruptedException ignored) {}
+            checkEncodeError(planes);
+        }
+    }
+
+    @Override
+    public void encodeAudio(AudioBufferPool.Chunk chunk) {
+        if (this.threadedError.get() != null || this.finishEncodeThread.get() || this.finishedWriting.get()) {
+            chunk.release();
+            checkEncodeError(null);
+            throw new IllegalStateException("Cannot encode after finish()");
+        }
+
+        while (true) {
+            try {
+                if (this.audioQueue.offer(chunk, 10, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException ignored) {}
+
+            // The encode thread stops draining the queue if it fails
+            if (this.threadedError.get() != null || this.finishedWriting.get()) {
+                chunk.release();
+                checkEncodeError(null);
+                throw new IllegalStateException("Encode thread has stopped");
+            }
+        }
+    }
+
     public void finish() {
         checkEncodeError(null);
 
@@ -397,6 +595,11 @@ public class AsyncFFmpegVideoWriter implements AutoCloseable, VideoWriter {
             LockSupport.parkNanos("waiting for encoder thread to finish", 100000L);
         }
 
+        AudioBufferPool.Chunk chunk;
+        while ((chunk = this.audioQueue.poll()) != null) {
+            chunk.release();
+        }
+
         if (this.reusePictureData != null) {
             for (Long address : this.reusePictureData) {
                 if (address != null && address != 0) {
@@ -0,0 +1,103 @@
+package com.moulberry.flashback.exporting;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Recycles the buffers that exported audio is rendered into, so that capturing audio doesn't allocate for every frame
+// A chunk is shared by every output that records audio, and goes back to the pool once each of them has written it
+public class AudioBufferPool implements AutoCloseable {
+
+    private static final int MAX_POOLED = 64;
+
+    private final int capacity;
+    private final ConcurrentLinkedQueue<FloatBuffer> pooled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger(0);
+    private volatile boolean closed = false;
+
+    public AudioBufferPool(int maxSamples, int channels) {
+        this.capacity = maxSamples * channels;
+    }
+
+    public Chunk acquire(int samples, int channels, int references) {
+        if (samples * channels > this.capacity) {
+            throw new IllegalArgumentException("Chunk of " + samples + " samples is larger than the pool's buffers");
+        }
+
+        FloatBuffer buffer = this.pooled.poll();
+        if (buffer != null) {
+            this.pooledCount.decrementAndGet();
+        } else {
+            buffer = MemoryUtil.memAllocFloat(this.capacity);
+        }
+
+        buffer.clear().limit(samples * channels);
+        return new Chunk(this, buffer, samples, references);
+    }
+
+    private void release(FloatBuffer buffer) {
+        if (this.closed || this.pooledCount.incrementAndGet() > MAX_POOLED) {
+            if (!this.closed) {
+                this.pooledCount.decrementAndGet();
+            }
+            MemoryUtil.memFree(buffer);
+            return;
+        }
+
+        this.pooled.add(buffer);
+
+        // close() may have drained the queue while the buffer was being added
+        if (this.closed) {
+            this.freePooled();
+        }
+    }
+
+    private void freePooled() {
+        FloatBuffer buffer;
+        while ((buffer = this.pooled.poll()) != null) {
+            MemoryUtil.memFree(buffer);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        this.freePooled();
+    }
+
+    // The audio rendered for a single frame
+    public static class Chunk {
+        private final AudioBufferPool pool;
+        private final FloatBuffer buffer;
+        private final int samples;
+        private final AtomicInteger references;
+
+        private Chunk(AudioBufferPool pool, FloatBuffer buffer, int samples, int references) {
+            this.pool = pool;
+            this.buffer = buffer;
+            this.samples = samples;
+            this.references = new AtomicInteger(references);
+        }
+
+        public int getSamples() {
+            return this.samples;
+        }
+
+        // Every writer consumes the samples, so each one gets its own view of them
+        public FloatBuffer view() {
+            return this.buffer.duplicate();
+        }
+
+        public void release() {
+            int remaining = this.references.decrementAndGet();
+            if (remaining == 0) {
+                this.pool.release(this.buffer);
+            } else if (remaining < 0) {
+                throw new IllegalStateException("Audio chunk released too many times");
+            }
+        }
+    }
+
+}
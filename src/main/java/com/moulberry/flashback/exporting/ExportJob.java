@@ -31,14 +31,12 @@ import net.minecraft.world.entity.Entity;
 import net.minecraft.world.entity.LivingEntity;
 import net.minecraft.world.phys.Vec3;
 import org.bytedeco.ffmpeg.global.avutil;
+import org.jetbrains.annotations.Nullable;
 import org.joml.Matrix4f;
 import org.lwjgl.glfw.GLFW;
 import org.lwjgl.openal.SOFTLoopback;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
@@ -51,7 +49,9 @@ import java.util.concurrent.locks.LockSupport;
 
 public class ExportJob {
 
+    // Settings used for rendering, the individual files that get written are described by outputs
     private final ExportSettings settings;
+    private final List<ExportSettings> outputs;
 
     private boolean running = false;
     private boolean shouldChangeFramebufferSize = false;
@@ -78,16 +78,52 @@ public class ExportJob {
     private double currentTickDouble = 0.0;
 
     private double audioSamples = 0.0;
+    private long randomCalls = 0;
 
     private final AtomicBoolean finishedServerTick = new AtomicBoolean(false);
 
     public static final int SRC_PIXEL_FORMAT = avutil.AV_PIX_FMT_RGBA;
+    private static final String TEMP_FOLDER = "replay_export_temp";
 
     public ExportJob(ExportSettings settings) {
-        this.settings = settings;
+        this(List.of(settings));
+    }
+
+    // Renders every frame once and writes it to all of the outputs, see ExportJobQueue#canShareRender
+    public ExportJob(List<ExportSettings> outputs) {
+        if (outputs.isEmpty()) {
+            throw new IllegalArgumentException("Export job needs at least one output");
+        }
+        this.outputs = List.copyOf(outputs);
+        this.settings = createCaptureSettings(this.outputs);
         this.particleRandom = this.settings.resetRng() ? new Random(2000) : null;
     }
 
+    // Frames are rendered at the largest resolution and scaled down for the other outputs
+    private static ExportSettings createCaptureSettings(List<ExportSettings> outputs) {
+        if (outputs.size() == 1) {
+            return outputs.getFirst();
+        }
+
+        ExportSettings largest = outputs.getFirst();
+        for (ExportSettings output : outputs) {
+            if ((long) output.resolutionX() * output.resolutionY() > (long) largest.resolutionX() * largest.resolutionY()) {
+                largest = output;
+            }
+        }
+
+        for (ExportSettings output : outputs) {
+            if (output.recordAudio()) {
+                return largest.withAudio(true, output.stereoAudio(), output.audioCodec());
+            }
+        }
+        return largest.withAudio(false, false, null);
+    }
+
+    public int getOutputCount() {
+        return this.outputs.size();
+    }
+
     public boolean isRunning() {
         return this.running;
     }
@@ -131,11 +167,9 @@ public class ExportJob {
 
         TaskbarManager.launchTaskbarManager();
 
-        UUID uuid = UUID.randomUUID();
-
-        String tempFileName = "replay_export_temp/" + uuid + "." + this.settings.container().extension();
-        Path exportTempFile = Path.of(tempFileName);
-        Path exportTempFolder = exportTempFile.getParent();
+        Path exportTempFolder = Path.of(TEMP_FOLDER);
+        List<ExportOutput> outputs = new ArrayList<>();
+        AudioBufferPool audioPool = null;
 
         TextureTarget infoRenderTarget = null;
 
@@ -149,13 +183,32 @@ public class ExportJob {
             RenderTarget mainTarget = Minecraft.getInstance().mainRenderTarget;
             infoRenderTarget = new TextureTarget("info_export_target", mainTarget.width, mainTarget.height, false);
 
-            try (VideoWriter encoder = createVideoWriter(this.settings, tempFileName);
-                 SaveableFramebufferQueue downloader = new SaveableFramebufferQueue(this.settings.resolutionX(), this.settings.resolutionY())) {
-                doExport(encoder, downloader, infoRenderTarget);
+            try {
+                for (ExportSettings outputSettings : this.outputs) {
+                    ExportOutput output = new ExportOutput(outputSettings, this.outputs.size() == 1);
+                    outputs.add(output);
+                    output.open();
+                }
+                if (this.settings.recordAudio()) {
+                    audioPool = new AudioBufferPool((int) Math.ceil(48000 / this.settings.framerate()) + 1, this.settings.stereoAudio() ? 2 : 1);
+                }
+                doExport(outputs, audioPool, infoRenderTarget);
+            } finally {
+                for (ExportOutput output : outputs.reversed()) {
+                    output.close();
+                }
+                if (audioPool != null) {
+                    audioPool.close();
+                }
             }
 
-            if (this.settings.container() != VideoContainer.PNG_SEQUENCE) {
-                Files.move(exportTempFile, this.settings.output(), StandardCopyOption.REPLACE_EXISTING);
+            for (ExportOutput output : outputs) {
+                if (output.transcodeInBackground) {
+                    TranscodeQueue.submit(output.settings, output.tempFile);
+                    output.handedOff = true;
+                } else if (output.settings.container() != VideoContainer.PNG_SEQUENCE) {
+                    Files.move(output.tempFile, output.settings.output(), StandardCopyOption.REPLACE_EXISTING);
+                }
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -178,9 +231,14 @@ public class ExportJob {
             Minecraft.getInstance().getSoundManager().play(SimpleSoundInstance.forUI(SoundEvents.NOTE_BLOCK_CHIME, 1.0f));
             Minecraft.getInstance().getSoundManager().play(SimpleSoundInstance.forUI(SoundEvents.NOTE_BLOCK_BELL, 1.0f));
 
-            try {
-                Files.deleteIfExists(exportTempFile);
-            } catch (IOException ignored) {}
+            for (ExportOutput output : outputs) {
+                if (output.handedOff) {
+                    continue;
+                }
+                try {
+                    Files.deleteIfExists(output.tempFile);
+                } catch (IOException ignored) {}
+            }
 
             try {
                 boolean empty;
@@ -198,15 +256,66 @@ public class ExportJob {
         }
     }
 
-    private static VideoWriter createVideoWriter(ExportSettings settings, String tempFileName) {
+    private static VideoWriter createVideoWriter(ExportSettings settings, String tempFileName, NativeImagePool imagePool,
+            boolean allowSegments, boolean transcodeInBackground) {
         if (settings.container() == VideoContainer.PNG_SEQUENCE) {
-            return new PNGSequenceVideoWriter(settings);
+            return new PNGSequenceVideoWriter(settings, imagePool);
+        } else if (transcodeInBackground) {
+            return new AsyncFFmpegVideoWriter(settings, tempFileName, imagePool, true);
+        } else if (allowSegments && SegmentedVideoWriter.isSupported(settings)) {
+            return new SegmentedVideoWriter(settings, tempFileName, imagePool);
         } else {
-            return new AsyncFFmpegVideoWriter(settings, tempFileName);
+            return new AsyncFFmpegVideoWriter(settings, tempFileName, imagePool);
         }
     }
 
-    private void doExport(VideoWriter videoWriter, SaveableFramebufferQueue downloader, TextureTarget infoRenderTarget) {
+    // A file written by this job, each output has its own resolution and encoder but shares the rendered frames
+    private static class ExportOutput implements AutoCloseable {
+        private final ExportSettings settings;
+        private final String tempFileName;
+        private final Path tempFile;
+        private final boolean allowSegments;
+        // Written to a lossless intermediate that is handed to TranscodeQueue once rendering has finished
+        private final boolean transcodeInBackground;
+        private boolean handedOff = false;
+        private final NativeImagePool imagePool = new NativeImagePool();
+        private VideoWriter videoWriter = null;
+        private SaveableFramebufferQueue downloader = null;
+
+        private ExportOutput(ExportSettings settings, boolean allowSegments) {
+            this.settings = settings;
+            this.allowSegments = allowSegments;
+            this.transcodeInBackground = TranscodeQueue.isSupported(settings);
+            String extension = this.transcodeInBackground ? AsyncFFmpegVideoWriter.INTERMEDIATE_EXTENSION : settings.container().extension();
+            this.tempFileName = TEMP_FOLDER + "/" + UUID.randomUUID() + "." + extension;
+            this.tempFile = Path.of(this.tempFileName);
+        }
+
+        private void open() {
+            this.videoWriter = createVideoWriter(this.settings, this.tempFileName, this.imagePool, this.allowSegments, this.transcodeInBackground);
+            this.downloader = new SaveableFramebufferQueue(this.settings.resolutionX(), this.settings.resolutionY(),
+                    this.videoWriter.acceptsYuv420p(), this.imagePool);
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (this.downloader != null) {
+                    this.downloader.close();
+                }
+            } finally {
+                try {
+                    if (this.videoWriter != null) {
+                        this.videoWriter.close();
+                    }
+                } finally {
+                    this.imagePool.close();
+                }
+            }
+        }
+    }
+
+    private void doExport(List<ExportOutput> outputs, @Nullable AudioBufferPool audioPool, TextureTarget infoRenderTarget) {
         ReplayServer replayServer = Flashback.getReplayServer();
         if (replayServer == null) {
             return;
@@ -215,7 +324,31 @@ public class ExportJob {
         Random random = new Random(1000);
         Random mathRandom = this.settings.resetRng() ? Utils.getInternalMathRandom() : null;
 
-        this.setup(replayServer);
+        List<TickInfo> ticks = calculateTicks(this.settings.editorState(), this.settings.startTick(), this.settings.endTick(), this.settings.framerate());
+
+        // Continue from the last finished segment of a previous attempt at this export
+        SegmentedVideoWriter segmentedWriter = null;
+        ExportManifest.ResumeState resumeState = null;
+        if (outputs.size() == 1 && outputs.getFirst().videoWriter instanceof SegmentedVideoWriter segmented) {
+            segmentedWriter = segmented;
+            segmentedWriter.setTotalFrames(ticks.size());
+            resumeState = segmentedWriter.getResumeState();
+        }
+
+        int startFrame = 0;
+        int startTick = this.settings.startTick();
+        if (resumeState != null) {
+            startFrame = Math.min(resumeState.frame(), ticks.size());
+            if (startFrame < ticks.size()) {
+                startTick += (int) ticks.get(startFrame).serverTick;
+            }
+            this.skipRandoms(random, resumeState.randomCalls() - 1);
+            this.audioSamples = resumeState.audioSamples();
+        }
+
+        if (startFrame < ticks.size()) {
+            this.setup(replayServer, startTick);
+        }
         this.updateRandoms(random, mathRandom);
 
         shouldChangeFramebufferSize = true;
@@ -225,15 +358,17 @@ public class ExportJob {
         }
         Minecraft.getInstance().resizeDisplay();
 
-        List<TickInfo> ticks = calculateTicks(this.settings.editorState(), this.settings.startTick(), this.settings.endTick(), this.settings.framerate());
-
-        int clientTickCount = 0;
+        int clientTickCount = resumeState != null ? resumeState.clientTickCount() : 0;
 
         this.renderStartTime = System.currentTimeMillis();
 
-        double lastClientTickDouble = 0;
+        double lastClientTickDouble = startFrame > 0 ? ticks.get(startFrame - 1).clientTick : 0;
+
+        for (int tickIndex = startFrame; tickIndex < ticks.size(); tickIndex++) {
+            if (segmentedWriter != null && segmentedWriter.isSegmentStart(tickIndex)) {
+                segmentedWriter.recordResumeState(new ExportManifest.ResumeState(tickIndex, clientTickCount, this.randomCalls, this.audioSamples));
+            }
 
-        for (int tickIndex = 0; tickIndex < ticks.size(); tickIndex++) {
             TickInfo tickInfo = ticks.get(tickIndex);
             boolean frozen = tickInfo.frozen;
             this.currentTickDouble = tickInfo.serverTick;
@@ -322,7 +457,6 @@ public class ExportJob {
                 timer.pausedDeltaTickResidual = (float) partialClientTick;
             }
 
-            SaveableFramebuffer saveable = downloader.take();
             RenderTarget renderTarget = Minecraft.getInstance().mainRenderTarget;
 
             // Perform rendering
@@ -336,9 +470,8 @@ public class ExportJob {
 
             boolean cancel;
 
-            // Capture audio if necessary
-            FloatBuffer audioBuffer = null;
-            if (this.settings.recordAudio()) {
+            // Capture audio if necessary, it goes to the writers straight away instead of waiting for the frame's readback
+            if (audioPool != null) {
                 long device = Minecraft.getInstance().getSoundManager().soundEngine.library.currentDevice;
 
                 audioSamples += 48000 / this.settings.framerate();
@@ -347,13 +480,33 @@ public class ExportJob {
 
                 int channels = this.settings.stereoAudio() ? 2 : 1;
 
-                audioBuffer = ByteBuffer.allocateDirect(renderSamples * 4 * channels).order(ByteOrder.nativeOrder()).asFloatBuffer();
-                SOFTLoopback.alcRenderSamplesSOFT(device, audioBuffer, renderSamples);
+                int audioOutputs = 0;
+                for (ExportOutput output : outputs) {
+                    if (output.settings.recordAudio()) {
+                        audioOutputs += 1;
+                    }
+                }
+
+                AudioBufferPool.Chunk chunk = audioPool.acquire(renderSamples, channels, audioOutputs);
+                SOFTLoopback.alcRenderSamplesSOFT(device, chunk.view(), renderSamples);
+
+                start = System.nanoTime();
+                for (ExportOutput output : outputs) {
+                    if (output.settings.recordAudio()) {
+                        output.videoWriter.encodeAudio(chunk);
+                    }
+                }
+                encodeTimeNanos += System.nanoTime() - start;
             }
 
-            saveable.audioBuffer = audioBuffer;
-            downloader.startDownload(renderTarget, saveable, this.settings.ssaa());
-            submitDownloadedFrames(videoWriter, downloader, false);
+            for (ExportOutput output : outputs) {
+                SaveableFramebuffer saveable = output.downloader.take();
+
+                boolean downscale = output.settings.resolutionX() != this.settings.resolutionX() ||
+                    output.settings.resolutionY() != this.settings.resolutionY();
+                output.downloader.startDownload(renderTarget, saveable, this.settings.ssaa() || downscale);
+                submitDownloadedFrames(output, false);
+            }
 
             this.shouldChangeFramebufferSize = false;
             cancel = finishFrame(renderTarget, tickIndex, ticks.size());
@@ -365,15 +518,21 @@ public class ExportJob {
             }
         }
 
-        submitDownloadedFrames(videoWriter, downloader, true);
-        videoWriter.finish();
+        for (ExportOutput output : outputs) {
+            submitDownloadedFrames(output, true);
+            output.videoWriter.finish();
+        }
     }
 
+    private static final int RANDOMS_PER_UPDATE = 5;
+
     private void updateRandoms(Random random, Random mathRandom) {
         if (!this.settings.resetRng()) {
             return;
         }
 
+        this.randomCalls += 1;
+
         Minecraft minecraft = Minecraft.getInstance();
 
         long connectionSeed = random.nextLong();
@@ -402,13 +561,25 @@ public class ExportJob {
         this.particleRandom.setSeed(particleSeed);
     }
 
-    private void setup(ReplayServer replayServer) {
+    // Advances the seed source as if updateRandoms had been called, used when resuming an export
+    private void skipRandoms(Random random, long calls) {
+        if (!this.settings.resetRng() || calls <= 0) {
+            return;
+        }
+
+        for (long i = 0; i < calls * RANDOMS_PER_UPDATE; i++) {
+            random.nextLong();
+        }
+        this.randomCalls += calls;
+    }
+
+    private void setup(ReplayServer replayServer, int startTick) {
         Minecraft minecraft = Minecraft.getInstance();
 
         replayServer.setDesiredTickRate(20.0f, true);
 
-        if (replayServer.getReplayTick() != this.settings.startTick()) {
-            int currentTick = Math.max(0, this.settings.startTick() - 40);
+        if (replayServer.getReplayTick() != startTick) {
+            int currentTick = Math.max(0, startTick - 40);
 
             // Ensure replay server is paused at currentTick
             this.setServerTickAndWait(replayServer, currentTick, true);
@@ -426,7 +597,7 @@ public class ExportJob {
             }
 
             // Advance until tick is at start
-            while (currentTick < this.settings.startTick()) {
+            while (currentTick < startTick) {
                 currentTick += 1;
                 this.setServerTickAndWait(replayServer, currentTick, true);
                 this.runClientTick(false);
@@ -440,11 +611,11 @@ public class ExportJob {
                 player.getInterpolation().cancel();
                 player.setDeltaMovement(Vec3.ZERO);
             }
-            this.settings.editorState().applyKeyframes(new MinecraftKeyframeHandler(Minecraft.getInstance()), this.settings.startTick());
+            this.settings.editorState().applyKeyframes(new MinecraftKeyframeHandler(Minecraft.getInstance()), startTick);
             this.runClientTick(false);
 
             // Ensured replay server is paused at startTick
-            this.setServerTickAndWait(replayServer, this.settings.startTick(), true);
+            this.setServerTickAndWait(replayServer, startTick, true);
             this.runClientTick(false);
         }
 
@@ -499,11 +670,12 @@ public class ExportJob {
         }
     }
 
-    private void submitDownloadedFrames(VideoWriter videoWriter, SaveableFramebufferQueue downloader, boolean drain) {
+    private void submitDownloadedFrames(ExportOutput output, boolean drain) {
+        VideoWriter videoWriter = output.videoWriter;
         SaveableFramebufferQueue.DownloadedFrame frame;
         while (true) {
             long start = System.nanoTime();
-            frame = downloader.finishDownload(drain);
+            frame = output.downloader.finishDownload(drain);
             downloadTimeNanos += System.nanoTime() - start;
 
             if (frame == null) {
@@ -511,7 +683,11 @@ public class ExportJob {
             }
 
             start = System.nanoTime();
-            videoWriter.encode(frame.image(), frame.audioBuffer());
+            if (frame.yuv420p()) {
+                videoWriter.encodeYuv420p(frame.image());
+            } else {
+                videoWriter.encode(frame.image());
+            }
             encodeTimeNanos += System.nanoTime() - start;
         }
     }
@@ -553,6 +729,9 @@ public class ExportJob {
             }
 
             lines.add("Exported Frames: " + currentFrame + "/" + totalFrames);
+            if (this.outputs.size() > 1) {
+                lines.add("Outputs: " + this.outputs.size());
+            }
 
             long elapsed = currentTime - this.renderStartTime;
             lines.add("Time elapsed: " + formatTime(elapsed));
@@ -1,6 +1,11 @@
 package com.moulberry.flashback.exporting;
 
+import com.moulberry.flashback.Flashback;
+import com.moulberry.flashback.FlashbackGson;
+import com.moulberry.flashback.state.EditorState;
+
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 public class ExportJobQueue {
@@ -12,5 +17,61 @@ public class ExportJobQueue {
         return queuedJobs.size();
     }
 
+    // Takes the next queued job along with every other queued job that would render exactly the same frames,
+    // so that those frames only need to be rendered once
+    public static ExportJob takeNextJob() {
+        ExportSettings first = queuedJobs.removeFirst();
+        List<ExportSettings> outputs = new ArrayList<>();
+        outputs.add(first);
+
+        if (Flashback.getConfig().exportQueueShareRenders) {
+            Iterator<ExportSettings> iterator = queuedJobs.iterator();
+            while (iterator.hasNext()) {
+                ExportSettings other = iterator.next();
+                if (canShareRender(outputs, other)) {
+                    outputs.add(other);
+                    iterator.remove();
+                }
+            }
+        }
+
+        return new ExportJob(outputs);
+    }
+
+    // canShareRender isn't transitive for audio, a job without audio can share with both a mono and a stereo job
+    // which can't share with each other, so every job in the group has to be compatible
+    private static boolean canShareRender(List<ExportSettings> group, ExportSettings other) {
+        for (ExportSettings settings : group) {
+            if (!canShareRender(settings, other)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Outputs can share frames if everything that affects rendering is the same, other than the resolution
+    // The aspect ratio must match, so that outputs only need to be scaled down
+    public static boolean canShareRender(ExportSettings a, ExportSettings b) {
+        if (a.startTick() != b.startTick() || a.endTick() != b.endTick() || a.framerate() != b.framerate()) {
+            return false;
+        }
+        if (a.resetRng() != b.resetRng() || a.transparent() != b.transparent() || a.ssaa() != b.ssaa() || a.noGui() != b.noGui()) {
+            return false;
+        }
+        if ((long) a.resolutionX() * b.resolutionY() != (long) b.resolutionX() * a.resolutionY()) {
+            return false;
+        }
+        if (a.recordAudio() && b.recordAudio() && a.stereoAudio() != b.stereoAudio()) {
+            return false;
+        }
+        if (!a.initialCameraPosition().equals(b.initialCameraPosition()) || a.initialCameraYaw() != b.initialCameraYaw() ||
+                a.initialCameraPitch() != b.initialCameraPitch()) {
+            return false;
+        }
+
+        String editorStateA = FlashbackGson.COMPRESSED.toJson(a.editorState(), EditorState.class);
+        String editorStateB = FlashbackGson.COMPRESSED.toJson(b.editorState(), EditorState.class);
+        return editorStateA.equals(editorStateB);
+    }
 
 }
@@ -0,0 +1,82 @@
+package com.moulberry.flashback.exporting;
+
+import com.moulberry.flashback.Flashback;
+import com.moulberry.flashback.FlashbackGson;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Records which segments of a segmented export have been finished, see SegmentedVideoWriter
+public class ExportManifest {
+
+    private static final int VERSION = 2;
+    private static final String FILENAME = "manifest.json";
+
+    public int version = VERSION;
+    public String fingerprint;
+    public int segmentFrames;
+    public List<Segment> segments = new ArrayList<>();
+
+    // Everything the export loop needs to carry on from a frame, as it was before that frame was rendered
+    public record ResumeState(int frame, int clientTickCount, long randomCalls, double audioSamples) {
+    }
+
+    // A finished segment containing frames [startFrame, endFrame), next is the state for continuing at endFrame
+    // audioBytes is the length of the separately written audio track at endFrame
+    public record Segment(String file, int startFrame, int endFrame, long audioBytes, ResumeState next) {
+    }
+
+    public ExportManifest(String fingerprint, int segmentFrames) {
+        this.fingerprint = fingerprint;
+        this.segmentFrames = segmentFrames;
+    }
+
+    public int getCompletedFrames() {
+        return this.segments.isEmpty() ? 0 : this.segments.getLast().endFrame;
+    }
+
+    @Nullable
+    public static ExportManifest load(Path folder) {
+        Path path = folder.resolve(FILENAME);
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        try {
+            ExportManifest manifest = FlashbackGson.PRETTY.fromJson(Files.readString(path), ExportManifest.class);
+            if (manifest == null || manifest.version != VERSION || manifest.segments == null) {
+                return null;
+            }
+
+            // Only keep the segments that are contiguous and still exist
+            List<Segment> valid = new ArrayList<>();
+            int expectedStart = 0;
+            for (Segment segment : manifest.segments) {
+                if (segment.startFrame != expectedStart || !Files.exists(folder.resolve(segment.file))) {
+                    break;
+                }
+                valid.add(segment);
+                expectedStart = segment.endFrame;
+            }
+            manifest.segments = valid;
+
+            return manifest;
+        } catch (Exception e) {
+            Flashback.LOGGER.error("Failed to read export manifest", e);
+            return null;
+        }
+    }
+
+    public void save(Path folder) throws IOException {
+        Path path = folder.resolve(FILENAME);
+        Path tempPath = folder.resolve(FILENAME + ".tmp");
+        Files.writeString(tempPath, FlashbackGson.PRETTY.toJson(this));
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.moulberry.flashback.exporting;
 
 import com.moulberry.flashback.combo_options.AudioCodec;
+import com.moulberry.flashback.combo_options.ScalerQuality;
 import com.moulberry.flashback.combo_options.VideoCodec;
 import com.moulberry.flashback.combo_options.VideoContainer;
 import com.moulberry.flashback.state.EditorState;
@@ -18,9 +19,17 @@ public record ExportSettings(@Nullable String name, EditorState editorState,
                              boolean resetRng,
                              // Video
                              VideoContainer container, VideoCodec codec, String encoder, int bitrate, boolean transparent, boolean ssaa, boolean noGui,
+                             ScalerQuality scalerQuality,
                              // Audio
                              boolean recordAudio, boolean stereoAudio, AudioCodec audioCodec,
                              // Output
                              Path output, @Nullable String pngSequenceFormat) {
 
+    public ExportSettings withAudio(boolean recordAudio, boolean stereoAudio, @Nullable AudioCodec audioCodec) {
+        return new ExportSettings(this.name, this.editorState, this.initialCameraPosition, this.initialCameraYaw, this.initialCameraPitch,
+            this.resolutionX, this.resolutionY, this.startTick, this.endTick, this.framerate, this.resetRng,
+            this.container, this.codec, this.encoder, this.bitrate, this.transparent, this.ssaa, this.noGui, this.scalerQuality,
+            recordAudio, stereoAudio, audioCodec, this.output, this.pngSequenceFormat);
+    }
+
 }
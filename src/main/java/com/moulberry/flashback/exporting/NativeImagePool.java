@@ -0,0 +1,48 @@
+package com.moulberry.flashback.exporting;
+
+import com.mojang.blaze3d.platform.NativeImage;
+
+import java.util.ArrayDeque;
+
+// Recycles the images that downloaded frames are copied into, so that a frame doesn't need a new allocation
+// Images are acquired on the render thread and released by the video writer once they have been encoded
+public class NativeImagePool implements AutoCloseable {
+
+    private static final int MAX_POOLED = 16;
+
+    private final ArrayDeque<NativeImage> pooled = new ArrayDeque<>();
+    private boolean closed = false;
+
+    public NativeImage acquire(NativeImage.Format format, int width, int height) {
+        synchronized (this) {
+            NativeImage image;
+            while ((image = this.pooled.poll()) != null) {
+                if (image.format() == format && image.getWidth() == width && image.getHeight() == height) {
+                    return image;
+                }
+                image.close();
+            }
+        }
+        return new NativeImage(format, width, height, false);
+    }
+
+    public void release(NativeImage image) {
+        synchronized (this) {
+            if (!this.closed && this.pooled.size() < MAX_POOLED) {
+                this.pooled.add(image);
+                return;
+            }
+        }
+        image.close();
+    }
+
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+        for (NativeImage image : this.pooled) {
+            image.close();
+        }
+        this.pooled.clear();
+    }
+
+}
@@ -3,131 +3,156 @@ package com.moulberry.flashback.exporting;
 import com.mojang.blaze3d.platform.NativeImage;
 import com.moulberry.flashback.Flashback;
 import com.moulberry.flashback.SneakyThrow;
-import org.bytedeco.javacv.FFmpegFrameRecorder;
-import org.bytedeco.javacv.Frame;
-import org.jetbrains.annotations.NotNull;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
 import org.jetbrains.annotations.Nullable;
+import org.lwjgl.stb.STBImageWrite;
 import org.lwjgl.system.MemoryUtil;
 
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.LockSupport;
 
+// Writes each frame to its own file, with several frames being compressed at the same time
+// Filenames are decided when a frame is submitted, so the order of the sequence doesn't depend on which worker finishes first
 public class PNGSequenceVideoWriter implements VideoWriter {
 
     private final ExportSettings settings;
+    private final NativeImagePool imagePool;
+    private final boolean outputIsDirectory;
+    private final boolean encodeMultiple;
     private int sequenceNumber = 0;
 
-    private final AtomicBoolean finishEncodeThread = new AtomicBoolean(false);
-    private final AtomicBoolean finishedWriting = new AtomicBoolean(false);
+    private final ExecutorService workers;
+    // Limits the number of frames in flight, so encode() only blocks once every worker is busy and has a frame queued
+    private final Semaphore inFlight;
+    private final int previousCompressionLevel;
 
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
     private final AtomicReference<Throwable> threadedError = new AtomicReference<>(null);
 
-    private final ArrayBlockingQueue<NativeImage> encodeQueue;
+    // Frames that have been written, every frame up to completedInOrder is done
+    private final IntSet completedOutOfOrder = new IntOpenHashSet();
+    private int completedInOrder = 0;
 
-    public PNGSequenceVideoWriter(ExportSettings settings) {
+    public PNGSequenceVideoWriter(ExportSettings settings, NativeImagePool imagePool) {
         this.settings = settings;
-        this.encodeQueue = new ArrayBlockingQueue<>(32);
+        this.imagePool = imagePool;
+        this.outputIsDirectory = Files.isDirectory(settings.output());
+        this.encodeMultiple = this.outputIsDirectory || settings.startTick() != settings.endTick();
+
+        int threads = getWorkerCount();
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "PNG Encode Worker #" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.inFlight = new Semaphore(threads * 2);
 
-        createEncodeThread().start();
+        // stb's compression level is global, it's put back once the export is done
+        // pngCompressionLevel is a zlib level from 0 to 9, lower levels write larger files faster
+        this.previousCompressionLevel = STBImageWrite.stbi_write_png_compression_level.get(0);
+        int compressionLevel = Math.max(0, Math.min(9, Flashback.getConfig().pngCompressionLevel));
+        STBImageWrite.stbi_write_png_compression_level.put(0, compressionLevel);
     }
 
-    private Thread createEncodeThread() {
-        boolean outputIsDirectory = Files.isDirectory(this.settings.output());
-        boolean encodeMultiple = outputIsDirectory || this.settings.startTick() != this.settings.endTick();
+    // pngSequenceThreads of 0 picks a count based on the number of processors
+    private static int getWorkerCount() {
+        int configured = Flashback.getConfig().pngSequenceThreads;
+        if (configured > 0) {
+            return configured;
+        }
+        return Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors() - 2));
+    }
 
-        Thread encodeThread = new Thread(() -> {
-            while (true) {
-                NativeImage src;
+    private Path getOutputPath(int sequenceNumber) {
+        Path output = this.settings.output();
+        if (!this.encodeMultiple) {
+            return output;
+        }
 
-                try {
-                    src = this.encodeQueue.poll(10, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException e) {
-                    throw SneakyThrow.sneakyThrow(e);
-                }
+        String format = this.settings.pngSequenceFormat();
+        if (format == null) {
+            format = "%04d";
+        }
 
-                try {
-                    if (src == null) {
-                        if (this.finishEncodeThread.get()) {
-                            this.finishedWriting.set(true);
-                            return;
-                        } else {
-                            continue;
-                        }
-                    }
+        String filename;
+        try {
+            filename = String.format(format, sequenceNumber);
+        } catch (Exception e) {
+            filename = String.format("%04d", sequenceNumber);
+        }
+        if (!filename.endsWith(".png")) {
+            filename += ".png";
+        }
 
-                    // Ensure pixels are fully opaque if transparency is disabled
-                    if (!this.settings.transparent() && src.format().hasAlpha()) {
-                        int alpha = 255 << src.format().alphaOffset();
-                        for (int y = 0; y < src.getHeight(); y++) {
-                            for (int x = 0; x < src.getWidth(); x++) {
-                                src.setPixel(x, y, src.getPixel(x, y) | alpha);
-                            }
-                        }
-                    }
+        if (this.outputIsDirectory) {
+            return output.resolve(filename);
+        } else {
+            return output.getParent().resolve(output.getFileName().toString() + "-" + filename);
+        }
+    }
 
-                    this.sequenceNumber += 1;
+    // Sets the alpha of every pixel, operating on two pixels at a time instead of going through getPixel/setPixel
+    private static void fillAlpha(NativeImage image) {
+        NativeImage.Format format = image.format();
+        if (!format.hasAlpha()) {
+            return;
+        }
 
-                    Path output = this.settings.output();
-                    if (encodeMultiple) {
-                        String format = this.settings.pngSequenceFormat();
-                        if (format == null) {
-                            format = "%04d";
-                        }
-                        if (outputIsDirectory) {
-                            String filename;
-                            try {
-                                filename = String.format(format, this.sequenceNumber);
-                            } catch (Exception e) {
-                                filename = String.format("%04d", this.sequenceNumber);
-                            }
-                            if (!filename.endsWith(".png")) {
-                                filename += ".png";
-                            }
-                            src.writeToFile(output.resolve(filename));
-                        } else {
-                            String filename = output.getFileName().toString() + "-";
-                            try {
-                                filename += String.format(format, this.sequenceNumber);
-                            } catch (Exception e) {
-                                filename += String.format("%04d", this.sequenceNumber);
-                            }
-                            if (!filename.endsWith(".png")) {
-                                filename += ".png";
-                            }
-                            src.writeToFile(output.getParent().resolve(filename));
-                        }
-                    } else {
-                        src.writeToFile(this.settings.output());
-                    }
-                } catch (Throwable t) {
-                    this.threadedError.set(t);
-                    this.finishEncodeThread.set(true);
-                    this.finishedWriting.set(true);
-                    return;
-                } finally {
-                    if (src != null) {
-                        src.close();
-                    }
+        if (format.components() != 4) {
+            int alpha = 255 << format.alphaOffset();
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    image.setPixel(x, y, image.getPixel(x, y) | alpha);
                 }
             }
-        });
-        encodeThread.setName("Video Encode Thread");
-        return encodeThread;
+            return;
+        }
+
+        long alphaMask = 0xFFL << format.alphaOffset();
+        long doubleAlphaMask = alphaMask | (alphaMask << 32);
+
+        long address = image.pixels;
+        long end = address + image.size;
+        for (; address + 8 <= end; address += 8) {
+            MemoryUtil.memPutLong(address, MemoryUtil.memGetLong(address) | doubleAlphaMask);
+        }
+        if (address + 4 <= end) {
+            MemoryUtil.memPutInt(address, MemoryUtil.memGetInt(address) | (int) alphaMask);
+        }
+    }
+
+    private synchronized void markCompleted(int sequenceNumber) {
+        if (sequenceNumber != this.completedInOrder + 1) {
+            this.completedOutOfOrder.add(sequenceNumber);
+            return;
+        }
+
+        this.completedInOrder = sequenceNumber;
+        while (this.completedOutOfOrder.remove(this.completedInOrder + 1)) {
+            this.completedInOrder += 1;
+        }
+    }
+
+    public synchronized int getCompletedFrames() {
+        return this.completedInOrder;
     }
 
     private void checkEncodeError(@Nullable AutoCloseable closeable) {
         Throwable t = this.threadedError.get();
         if (t != null) {
-            this.finishEncodeThread.set(true);
-            this.finishedWriting.set(true);
+            this.finished.set(true);
 
             if (closeable != null) {
                 try {
@@ -140,55 +165,86 @@ public class PNGSequenceVideoWriter implements VideoWriter {
         }
     }
 
-    public void encode(NativeImage src, @Nullable FloatBuffer audioBuffer) {
-        if (audioBuffer != null) {
-            throw new RuntimeException("PNG Sequence does not support encoding audio");
-        }
+    @Override
+    public void encodeAudio(AudioBufferPool.Chunk chunk) {
+        chunk.release();
+        throw new RuntimeException("PNG Sequence does not support encoding audio");
+    }
 
+    public void encode(NativeImage src) {
         checkEncodeError(src);
 
-        if (this.finishEncodeThread.get() || this.finishedWriting.get()) {
+        if (this.finished.get()) {
             src.close();
             throw new IllegalStateException("Cannot encode after finish()");
         }
 
         while (true) {
             try {
-                this.encodeQueue.put(src);
-                break;
+                if (this.inFlight.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
             } catch (InterruptedException ignored) {}
             checkEncodeError(src);
         }
+
+        this.sequenceNumber += 1;
+        int sequenceNumber = this.sequenceNumber;
+        Path output = this.getOutputPath(sequenceNumber);
+        boolean forceOpaque = !this.settings.transparent();
+
+        try {
+            this.workers.execute(() -> {
+                try {
+                    if (this.threadedError.get() == null && !this.closed.get()) {
+                        if (forceOpaque) {
+                            fillAlpha(src);
+                        }
+                        src.writeToFile(output);
+                        this.markCompleted(sequenceNumber);
+                    }
+                } catch (Throwable t) {
+                    this.threadedError.compareAndSet(null, t);
+                } finally {
+                    this.imagePool.release(src);
+                    this.inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.inFlight.release();
+            src.close();
+            throw e;
+        }
     }
 
     public void finish() {
         checkEncodeError(null);
 
-        while (!this.encodeQueue.isEmpty()) {
+        while (this.getCompletedFrames() < this.sequenceNumber) {
             checkEncodeError(null);
-            LockSupport.parkNanos("waiting for encode queue to empty", 100000L);
+            LockSupport.parkNanos("waiting for png workers to finish", 100000L);
         }
 
-        this.finishEncodeThread.set(true);
-
-        while (!this.finishedWriting.get()) {
-            LockSupport.parkNanos("waiting for encoder thread to finish", 100000L);
-        }
+        this.finished.set(true);
+        this.workers.shutdown();
 
         checkEncodeError(null);
     }
 
     @Override
     public void close() {
-        for (NativeImage src : this.encodeQueue) {
-            src.close();
-        }
-
-        this.finishEncodeThread.set(true);
+        this.finished.set(true);
+        this.closed.set(true);
+        this.workers.shutdown();
+
+        // Queued frames are skipped, but workers still own their images until they've released them
+        try {
+            if (!this.workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                Flashback.LOGGER.error("Timed out waiting for png workers to finish");
+            }
+        } catch (InterruptedException ignored) {}
 
-        while (!this.finishedWriting.get()) {
-            LockSupport.parkNanos("waiting for encoder thread to finish", 100000L);
-        }
+        STBImageWrite.stbi_write_png_compression_level.put(0, this.previousCompressionLevel);
     }
 
 }
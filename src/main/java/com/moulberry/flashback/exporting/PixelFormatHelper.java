@@ -123,6 +123,22 @@ public class PixelFormatHelper {
         return "UNKNOWN(" + pixelFormat + ")";
     }
 
+    public static boolean supportsPixelFormat(String codecName, int pixelFormat) {
+        try (AVCodec codec = avcodec.avcodec_find_encoder_by_name(codecName)) {
+            IntPointer pixFmts = codec.pix_fmts();
+            if (pixFmts == null) {
+                return pixelFormat == avutil.AV_PIX_FMT_YUV420P;
+            }
+
+            for (int index = 0; pixFmts.get(index) != -1; index++) {
+                if (pixFmts.get(index) == pixelFormat) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     public static boolean isYuvFormat(int pixelFormat) {
         try (var descriptor = avutil.av_pix_fmt_desc_get(pixelFormat)) {
             if (descriptor == null || descriptor.isNull()) {
@@ -6,23 +6,35 @@ import com.mojang.blaze3d.opengl.GlTexture;
 import com.mojang.blaze3d.platform.NativeImage;
 import com.mojang.blaze3d.systems.RenderSystem;
 import com.mojang.blaze3d.textures.GpuTexture;
-import org.jetbrains.annotations.Nullable;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL30;
 import org.lwjgl.opengl.GL30C;
+import org.lwjgl.opengl.GL32C;
 import org.lwjgl.system.MemoryUtil;
 
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
 
 public class SaveableFramebuffer implements AutoCloseable {
     private int pboId;
-    public @Nullable FloatBuffer audioBuffer;
 
     private boolean isDownloading = false;
+    // Signalled once the GPU has finished writing the pixels into the PBO
+    private long fence = 0;
 
-    public SaveableFramebuffer() {
+    // Reads back the planes written by the yuv420p blit instead of RGBA, see SaveableFramebufferQueue
+    private final boolean yuv420p;
+
+    public SaveableFramebuffer(boolean yuv420p) {
         this.pboId = -1;
+        this.yuv420p = yuv420p;
+    }
+
+    public static long getDownloadSize(int width, int height, boolean yuv420p) {
+        if (yuv420p) {
+            return (long) width * height * 3 / 2;
+        } else {
+            return (long) width * height * 4;
+        }
     }
 
     public void startDownload(GpuTexture gpuTexture, int width, int height) {
@@ -35,7 +47,7 @@ public class SaveableFramebuffer implements AutoCloseable {
             this.pboId = GL30C.glGenBuffers();
 
             GL30C.glBindBuffer(GL30C.GL_PIXEL_PACK_BUFFER, this.pboId);
-            GL30C.glBufferData(GL30C.GL_PIXEL_PACK_BUFFER, (long) width * height * 4, GL30C.GL_STREAM_READ);
+            GL30C.glBufferData(GL30C.GL_PIXEL_PACK_BUFFER, getDownloadSize(width, height, this.yuv420p), GL30C.GL_STREAM_READ);
             GL30C.glBindBuffer(GL30C.GL_PIXEL_PACK_BUFFER, 0);
         }
 
@@ -47,19 +59,78 @@ public class SaveableFramebuffer implements AutoCloseable {
         GlStateManager._pixelStore(GL11.GL_PACK_ROW_LENGTH, 0);
         GlStateManager._pixelStore(GL11.GL_PACK_SKIP_PIXELS, 0);
         GlStateManager._pixelStore(GL11.GL_PACK_SKIP_ROWS, 0);
-        GL30C.glReadPixels(0, 0, width, height, GL30C.GL_RGBA, GL30C.GL_UNSIGNED_BYTE, 0);
+        if (this.yuv420p) {
+            // Y plane, followed by the U and V planes which sit side by side below it in the texture
+            int chromaWidth = width / 2;
+            int chromaHeight = height / 2;
+            long lumaSize = (long) width * height;
+            long chromaSize = (long) chromaWidth * chromaHeight;
+            GL30C.glReadPixels(0, 0, width, height, GL30C.GL_RED, GL30C.GL_UNSIGNED_BYTE, 0);
+            GL30C.glReadPixels(0, height, chromaWidth, chromaHeight, GL30C.GL_RED, GL30C.GL_UNSIGNED_BYTE, lumaSize);
+            GL30C.glReadPixels(chromaWidth, height, chromaWidth, chromaHeight, GL30C.GL_RED, GL30C.GL_UNSIGNED_BYTE, lumaSize + chromaSize);
+        } else {
+            GL30C.glReadPixels(0, 0, width, height, GL30C.GL_RGBA, GL30C.GL_UNSIGNED_BYTE, 0);
+        }
         GL30C.glBindBuffer(GL30C.GL_PIXEL_PACK_BUFFER, 0);
 
         GlStateManager._glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+
+        this.fence = GL32C.glFenceSync(GL32C.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
     }
 
-    public NativeImage finishDownload(int width, int height) {
+    // Whether the buffer can be mapped without stalling on the GPU
+    public boolean isDownloadReady() {
+        if (!this.isDownloading) {
+            throw new IllegalStateException("Download hasn't been started");
+        }
+        if (this.fence == 0) {
+            return true;
+        }
+
+        int result = GL32C.glClientWaitSync(this.fence, GL32C.GL_SYNC_FLUSH_COMMANDS_BIT, 0);
+        if (result == GL32C.GL_WAIT_FAILED) {
+            throw new IllegalStateException("OpenGL error occurred while checking fence");
+        }
+        return result == GL32C.GL_ALREADY_SIGNALED || result == GL32C.GL_CONDITION_SATISFIED;
+    }
+
+    private void waitForDownload() {
+        if (this.fence == 0) {
+            return;
+        }
+
+        while (true) {
+            int result = GL32C.glClientWaitSync(this.fence, GL32C.GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000L);
+            if (result == GL32C.GL_ALREADY_SIGNALED || result == GL32C.GL_CONDITION_SATISFIED) {
+                break;
+            } else if (result == GL32C.GL_WAIT_FAILED) {
+                throw new IllegalStateException("OpenGL error occurred while waiting for fence");
+            }
+        }
+
+        this.deleteFence();
+    }
+
+    private void deleteFence() {
+        if (this.fence != 0) {
+            GL32C.glDeleteSync(this.fence);
+            this.fence = 0;
+        }
+    }
+
+    // The image must be sized as returned by getImageFormat/getImageHeight
+    public void finishDownload(NativeImage nativeImage, int width, int height) {
         if (!this.isDownloading) {
             throw new IllegalStateException("Can't finish downloading before download has started");
         }
         this.isDownloading = false;
 
-        NativeImage nativeImage = new NativeImage(NativeImage.Format.RGBA, width, height, false);
+        long size = getDownloadSize(width, height, this.yuv420p);
+        if (nativeImage.size != size) {
+            throw new IllegalArgumentException("Image has size " + nativeImage.size + ", expected " + size);
+        }
+
+        this.waitForDownload();
 
         GL30C.glBindBuffer(GL30C.GL_PIXEL_PACK_BUFFER, this.pboId);
         ByteBuffer buffer = GL30C.glMapBuffer(GL30C.GL_PIXEL_PACK_BUFFER, GL30C.GL_READ_ONLY);
@@ -69,15 +140,23 @@ public class SaveableFramebuffer implements AutoCloseable {
         }
 
         // Copy bytes
-        MemoryUtil.memCopy(MemoryUtil.memAddress(buffer), nativeImage.pixels, nativeImage.size);
+        MemoryUtil.memCopy(MemoryUtil.memAddress(buffer), nativeImage.pixels, size);
 
         GL30C.glUnmapBuffer(GL30C.GL_PIXEL_PACK_BUFFER);
         GL30C.glBindBuffer(GL30C.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    // The planes of yuv420p are stored contiguously, one byte per sample
+    public static NativeImage.Format getImageFormat(boolean yuv420p) {
+        return yuv420p ? NativeImage.Format.LUMINANCE : NativeImage.Format.RGBA;
+    }
 
-        return nativeImage;
+    public static int getImageHeight(int height, boolean yuv420p) {
+        return yuv420p ? height * 3 / 2 : height;
     }
 
     public void close() {
+        this.deleteFence();
         if (this.pboId != -1) {
             GL30C.glDeleteBuffers(this.pboId);
             this.pboId = -1;
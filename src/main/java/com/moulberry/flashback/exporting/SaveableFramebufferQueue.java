@@ -14,11 +14,11 @@ import com.mojang.blaze3d.textures.TextureFormat;
 import com.mojang.blaze3d.vertex.BufferBuilder;
 import com.mojang.blaze3d.vertex.DefaultVertexFormat;
 import com.mojang.blaze3d.vertex.VertexFormat;
+import com.moulberry.flashback.Flashback;
 import com.moulberry.flashback.visuals.ShaderManager;
 import net.minecraft.client.renderer.RenderPipelines;
 import org.jetbrains.annotations.Nullable;
 
-import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -29,22 +29,55 @@ public class SaveableFramebufferQueue implements AutoCloseable {
     private final int width;
     private final int height;
 
-    private static final int CAPACITY = 3;
+    // Downloads are only mapped once their fence has signalled. When automatic, the ring starts at the minimum
+    // depth and grows whenever a frame would otherwise have to wait for the GPU, limited by the memory it uses
+    private static final int MIN_CAPACITY = 3;
+    private static final int MAX_AUTO_CAPACITY = 8;
+    private static final long MAX_AUTO_BYTES = 512L * 1024 * 1024;
+
+    private int capacity;
+    private final int maxCapacity;
+    private final NativeImagePool imagePool;
 
     private final List<SaveableFramebuffer> available = new ArrayList<>();
     private final List<SaveableFramebuffer> waiting = new ArrayList<>();
 
     private final GpuTexture flipBuffer;
 
-    public SaveableFramebufferQueue(int width, int height) {
+    // When set, frames are converted to yuv420p while flipping, so only 1.5 bytes per pixel need to be read back
+    // instead of 4 and the encoder doesn't need to convert them. The flip buffer is then a single channel texture
+    // holding the Y plane with the U and V planes side by side below it
+    private final boolean yuv420p;
+
+    public SaveableFramebufferQueue(int width, int height, boolean yuv420p, NativeImagePool imagePool) {
         this.width = width;
         this.height = height;
+        this.yuv420p = yuv420p;
+        this.imagePool = imagePool;
+
+        // A configured depth is fixed, 0 starts small and grows the number of frames in flight whenever readback would stall
+        int configuredDepth = Flashback.getConfig().exportReadbackDepth;
+        if (configuredDepth > 0) {
+            this.capacity = Math.max(2, configuredDepth);
+            this.maxCapacity = this.capacity;
+        } else {
+            long frameBytes = SaveableFramebuffer.getDownloadSize(width, height, yuv420p);
+            this.capacity = MIN_CAPACITY;
+            this.maxCapacity = (int) Math.max(MIN_CAPACITY, Math.min(MAX_AUTO_CAPACITY, MAX_AUTO_BYTES / frameBytes));
+        }
 
-        this.flipBuffer = RenderSystem.getDevice().createTexture(() -> "flip buffer", TextureFormat.RGBA8, width, height, 1);
+        if (yuv420p) {
+            if (width % 2 != 0 || height % 2 != 0) {
+                throw new IllegalArgumentException("yuv420p requires an even resolution, got " + width + "x" + height);
+            }
+            this.flipBuffer = RenderSystem.getDevice().createTexture(() -> "yuv420p flip buffer", TextureFormat.RED8, width, height * 3 / 2, 1);
+        } else {
+            this.flipBuffer = RenderSystem.getDevice().createTexture(() -> "flip buffer", TextureFormat.RGBA8, width, height, 1);
+        }
         this.flipBuffer.setAddressMode(AddressMode.CLAMP_TO_EDGE);
 
-        for (int i = 0; i < CAPACITY; i++) {
-            this.available.add(new SaveableFramebuffer());
+        for (int i = 0; i < this.capacity; i++) {
+            this.available.add(new SaveableFramebuffer(yuv420p));
         }
     }
 
@@ -66,7 +99,7 @@ public class SaveableFramebufferQueue implements AutoCloseable {
         GpuBuffer vertexBuffer = RenderSystem.getQuadVertexBuffer();
 
         try (RenderPass renderPass = RenderSystem.getDevice().createCommandEncoder().createRenderPass(this.flipBuffer, OptionalInt.empty())) {
-            renderPass.setPipeline(ShaderManager.BLIT_SCREEN_FLIP);
+            renderPass.setPipeline(this.yuv420p ? ShaderManager.BLIT_SCREEN_YUV420P : ShaderManager.BLIT_SCREEN_FLIP);
             renderPass.setVertexBuffer(0, vertexBuffer);
             renderPass.setIndexBuffer(indexBuffer, autoStorageIndexBuffer.type());
             renderPass.bindSampler("InSampler", src.getColorTexture());
@@ -112,25 +145,44 @@ public class SaveableFramebufferQueue implements AutoCloseable {
         this.waiting.add(texture);
     }
 
-    record DownloadedFrame(NativeImage image, @Nullable FloatBuffer audioBuffer) {}
+    // If yuv420p is set, the image is a single channel image containing the planes one after another
+    record DownloadedFrame(NativeImage image, boolean yuv420p) {}
 
     public @Nullable DownloadedFrame finishDownload(boolean drain) {
         if (this.waiting.isEmpty()) {
             return null;
         }
 
-        if (!drain && !this.available.isEmpty()) {
-            return null;
+        SaveableFramebuffer texture = this.waiting.getFirst();
+
+        if (!drain && !texture.isDownloadReady()) {
+            if (!this.available.isEmpty()) {
+                return null;
+            }
+
+            // Every buffer is in flight, add another one instead of stalling if allowed
+            if (this.capacity < this.maxCapacity) {
+                this.capacity += 1;
+                this.available.add(new SaveableFramebuffer(this.yuv420p));
+                Flashback.LOGGER.info("Increased export readback depth to {}", this.capacity);
+                return null;
+            }
         }
 
-        SaveableFramebuffer texture = this.waiting.removeFirst();
+        this.waiting.removeFirst();
 
-        NativeImage nativeImage = texture.finishDownload(this.width, this.height);
-        FloatBuffer audioBuffer = texture.audioBuffer;
-        texture.audioBuffer = null;
+        NativeImage nativeImage = this.imagePool.acquire(SaveableFramebuffer.getImageFormat(this.yuv420p),
+                this.width, SaveableFramebuffer.getImageHeight(this.height, this.yuv420p));
+        try {
+            texture.finishDownload(nativeImage, this.width, this.height);
+        } catch (Throwable t) {
+            nativeImage.close();
+            this.available.add(texture);
+            throw t;
+        }
 
         this.available.add(texture);
-        return new DownloadedFrame(nativeImage, audioBuffer);
+        return new DownloadedFrame(nativeImage, this.yuv420p);
     }
 
     @Override
@@ -0,0 +1,444 @@
+package com.moulberry.flashback.exporting;
+
+import com.mojang.blaze3d.platform.NativeImage;
+import com.moulberry.flashback.Flashback;
+import com.moulberry.flashback.FlashbackGson;
+import com.moulberry.flashback.SneakyThrow;
+import com.moulberry.flashback.combo_options.VideoContainer;
+import com.moulberry.flashback.state.EditorState;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import org.apache.commons.io.FileUtils;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+// Splits a video export into segments that are each finished as their own file, so that an export which crashes or is
+// cancelled can be continued from the last finished segment. Segments are joined without re-encoding at the end
+// Audio is kept out of the segments and stored as raw samples, it is encoded as one continuous track while joining so
+// that the audio encoder's priming samples don't end up at every segment boundary
+public class SegmentedVideoWriter implements VideoWriter {
+
+    private static final String AUDIO_FILE = "audio.f32";
+    private static final int AUDIO_SAMPLE_RATE = 48000;
+
+    private final ExportSettings settings;
+    private final ExportSettings segmentSettings;
+    private final String filename;
+    private final NativeImagePool imagePool;
+
+    private final Path folder;
+    private final ExportManifest manifest;
+    private final int segmentFrames;
+    private int totalFrames = -1;
+
+    // Resume states for the frames that start a segment, recorded by the export loop before the frame is rendered
+    private final Int2ObjectMap<ExportManifest.ResumeState> resumeStates = new Int2ObjectOpenHashMap<>();
+
+    private AsyncFFmpegVideoWriter currentWriter = null;
+    private String currentSegmentFile = null;
+    private int currentSegmentStart;
+    private int frameIndex;
+
+    // Audio arrives ahead of its frame, it is held back so that it ends up in the same segment as the frame
+    private final ArrayDeque<AudioBufferPool.Chunk> pendingAudio = new ArrayDeque<>();
+    private final int audioChannels;
+    private FileChannel audioChannel = null;
+    private ByteBuffer audioWriteBuffer = null;
+    private long audioBytes = 0;
+
+    // Video exports are finished in segments of exportSegmentSeconds so they can be resumed, 0 disables this
+    public static boolean isSupported(ExportSettings settings) {
+        VideoContainer container = settings.container();
+        return Flashback.getConfig().exportSegmentSeconds > 0 && container != VideoContainer.PNG_SEQUENCE &&
+            container != VideoContainer.GIF && container != VideoContainer.WEBP;
+    }
+
+    public SegmentedVideoWriter(ExportSettings settings, String filename, NativeImagePool imagePool) {
+        this.settings = settings;
+        this.segmentSettings = settings.withAudio(false, settings.stereoAudio(), settings.audioCodec());
+        this.filename = filename;
+        this.imagePool = imagePool;
+        this.audioChannels = AsyncFFmpegVideoWriter.getAudioChannels(settings);
+        this.segmentFrames = Math.max(1, (int) Math.round(Flashback.getConfig().exportSegmentSeconds * settings.framerate()));
+
+        String outputHash = sha256(settings.output().toAbsolutePath().toString());
+        this.folder = Path.of(filename).resolveSibling("segments_" + outputHash.substring(0, 16));
+
+        String fingerprint = computeFingerprint(settings, this.segmentFrames);
+        ExportManifest manifest = ExportManifest.load(this.folder);
+        if (manifest != null && this.audioChannels > 0 && !manifest.segments.isEmpty() &&
+                getFileSize(this.folder.resolve(AUDIO_FILE)) < manifest.segments.getLast().audioBytes()) {
+            Flashback.LOGGER.info("Audio of previously exported segments is missing");
+            manifest = null;
+        }
+        if (manifest == null || !fingerprint.equals(manifest.fingerprint)) {
+            if (manifest != null) {
+                Flashback.LOGGER.info("Export settings changed, discarding previously exported segments");
+            }
+            manifest = new ExportManifest(fingerprint, this.segmentFrames);
+            try {
+                FileUtils.deleteDirectory(this.folder.toFile());
+                Files.createDirectories(this.folder);
+            } catch (IOException e) {
+                throw SneakyThrow.sneakyThrow(e);
+            }
+        } else if (!manifest.segments.isEmpty()) {
+            Flashback.LOGGER.info("Resuming export from frame {}", manifest.getCompletedFrames());
+        }
+        this.manifest = manifest;
+
+        if (this.audioChannels > 0) {
+            // Audio past the last finished segment belongs to frames that will be rendered again
+            this.audioBytes = manifest.segments.isEmpty() ? 0 : manifest.segments.getLast().audioBytes();
+            try {
+                this.audioChannel = FileChannel.open(this.folder.resolve(AUDIO_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                this.audioChannel.truncate(this.audioBytes);
+            } catch (IOException e) {
+                throw SneakyThrow.sneakyThrow(e);
+            }
+        }
+
+        this.frameIndex = manifest.getCompletedFrames();
+        this.openSegment();
+    }
+
+    private static long getFileSize(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // Everything that affects the frames or the encoded output
+    private static String computeFingerprint(ExportSettings settings, int segmentFrames) {
+        String editorState = FlashbackGson.COMPRESSED.toJson(settings.editorState(), EditorState.class);
+        String description = String.join("\n", String.valueOf(segmentFrames), settings.output().toAbsolutePath().toString(),
+            String.valueOf(settings.initialCameraPosition()), String.valueOf(settings.initialCameraYaw()), String.valueOf(settings.initialCameraPitch()),
+            settings.resolutionX() + "x" + settings.resolutionY(), settings.startTick() + "-" + settings.endTick(), String.valueOf(settings.framerate()),
+            String.valueOf(settings.resetRng()), String.valueOf(settings.container()), String.valueOf(settings.codec()), String.valueOf(settings.encoder()),
+            String.valueOf(settings.bitrate()), String.valueOf(settings.transparent()), String.valueOf(settings.ssaa()), String.valueOf(settings.noGui()),
+            String.valueOf(settings.scalerQuality()), String.valueOf(settings.recordAudio()), String.valueOf(settings.stereoAudio()),
+            String.valueOf(settings.audioCodec()), editorState);
+        return sha256(description);
+    }
+
+    private static String sha256(String string) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(string.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setTotalFrames(int totalFrames) {
+        this.totalFrames = totalFrames;
+    }
+
+    @Nullable
+    public ExportManifest.ResumeState getResumeState() {
+        if (this.manifest.segments.isEmpty()) {
+            return null;
+        }
+        return this.manifest.segments.getLast().next();
+    }
+
+    public boolean isSegmentStart(int frame) {
+        return frame % this.segmentFrames == 0;
+    }
+
+    public void recordResumeState(ExportManifest.ResumeState state) {
+        this.resumeStates.put(state.frame(), state);
+    }
+
+    private void openSegment() {
+        this.currentSegmentStart = this.frameIndex;
+        this.currentSegmentFile = String.format("segment_%06d.%s", this.frameIndex, this.settings.container().extension());
+        this.currentWriter = new AsyncFFmpegVideoWriter(this.segmentSettings, this.folder.resolve(this.currentSegmentFile).toString(), this.imagePool);
+    }
+
+    private void finishSegment(ExportManifest.ResumeState next) {
+        this.currentWriter.finish();
+        this.currentWriter.close();
+        this.currentWriter = null;
+
+        if (this.audioChannel != null) {
+            try {
+                this.audioChannel.force(false);
+            } catch (IOException e) {
+                throw SneakyThrow.sneakyThrow(e);
+            }
+        }
+
+        this.manifest.segments.add(new ExportManifest.Segment(this.currentSegmentFile, this.currentSegmentStart, this.frameIndex,
+            this.audioBytes, next));
+        this.resumeStates.keySet().removeIf(frame -> frame <= this.frameIndex);
+        try {
+            this.manifest.save(this.folder);
+        } catch (IOException e) {
+            Flashback.LOGGER.error("Failed to save export manifest", e);
+        }
+    }
+
+    private void rollSegmentIfNeeded() {
+        if (this.frameIndex - this.currentSegmentStart < this.segmentFrames) {
+            return;
+        }
+
+        ExportManifest.ResumeState next = this.resumeStates.get(this.frameIndex);
+        if (next == null) {
+            throw new IllegalStateException("Missing resume state for frame " + this.frameIndex);
+        }
+        this.finishSegment(next);
+        this.openSegment();
+    }
+
+    @Override
+    public boolean acceptsYuv420p() {
+        return this.currentWriter.acceptsYuv420p();
+    }
+
+    @Override
+    public void encode(NativeImage src) {
+        this.rollSegmentIfNeeded();
+        this.currentWriter.encode(src);
+        this.encodePendingAudio();
+        this.frameIndex += 1;
+    }
+
+    @Override
+    public void encodeYuv420p(NativeImage planes) {
+        this.rollSegmentIfNeeded();
+        this.currentWriter.encodeYuv420p(planes);
+        this.encodePendingAudio();
+        this.frameIndex += 1;
+    }
+
+    @Override
+    public void encodeAudio(AudioBufferPool.Chunk chunk) {
+        this.pendingAudio.add(chunk);
+    }
+
+    // Each frame has exactly one chunk of audio
+    private void encodePendingAudio() {
+        AudioBufferPool.Chunk chunk = this.pendingAudio.poll();
+        if (chunk == null) {
+            return;
+        }
+
+        try {
+            if (this.audioChannel == null) {
+                return;
+            }
+
+            FloatBuffer samples = chunk.view();
+            int bytes = samples.remaining() * Float.BYTES;
+            if (this.audioWriteBuffer == null || this.audioWriteBuffer.capacity() < bytes) {
+                this.audioWriteBuffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            this.audioWriteBuffer.clear();
+            this.audioWriteBuffer.asFloatBuffer().put(samples);
+            this.audioWriteBuffer.limit(bytes);
+
+            while (this.audioWriteBuffer.hasRemaining()) {
+                this.audioBytes += this.audioChannel.write(this.audioWriteBuffer, this.audioBytes);
+            }
+        } catch (IOException e) {
+            throw SneakyThrow.sneakyThrow(e);
+        } finally {
+            chunk.release();
+        }
+    }
+
+    private void closeAudioChannel() {
+        if (this.audioChannel != null) {
+            try {
+                this.audioChannel.close();
+            } catch (IOException e) {
+                Flashback.LOGGER.error("Failed to close segmented export audio", e);
+            }
+            this.audioChannel = null;
+        }
+    }
+
+    private void releasePendingAudio() {
+        AudioBufferPool.Chunk chunk;
+        while ((chunk = this.pendingAudio.poll()) != null) {
+            chunk.release();
+        }
+    }
+
+    @Override
+    public void finish() {
+        this.releasePendingAudio();
+
+        boolean complete = this.totalFrames >= 0 && this.frameIndex >= this.totalFrames;
+
+        List<Path> parts = new ArrayList<>();
+        Path partialSegment = null;
+
+        if (complete) {
+            if (this.frameIndex > this.currentSegmentStart) {
+                this.finishSegment(new ExportManifest.ResumeState(this.frameIndex, 0, 0, 0.0));
+            } else {
+                this.currentWriter.finish();
+                this.currentWriter.close();
+                this.currentWriter = null;
+            }
+        } else {
+            // The unfinished segment is included in the output, but isn't recorded so it will be redone when resuming
+            this.currentWriter.finish();
+            this.currentWriter.close();
+            this.currentWriter = null;
+            partialSegment = this.folder.resolve(this.currentSegmentFile);
+        }
+
+        for (ExportManifest.Segment segment : this.manifest.segments) {
+            parts.add(this.folder.resolve(segment.file()));
+        }
+        if (partialSegment != null && (this.frameIndex > this.currentSegmentStart || parts.isEmpty())) {
+            parts.add(partialSegment);
+        }
+
+        long audioBytes = this.audioBytes;
+        this.closeAudioChannel();
+
+        try {
+            if (this.audioChannels > 0 && !parts.isEmpty()) {
+                concatenate(parts, Path.of(this.filename), this.settings, this.folder.resolve(AUDIO_FILE), audioBytes, this.audioChannels);
+            } else if (parts.size() == 1) {
+                Files.copy(parts.getFirst(), Path.of(this.filename), StandardCopyOption.REPLACE_EXISTING);
+            } else if (!parts.isEmpty()) {
+                concatenate(parts, Path.of(this.filename), this.settings, null, 0, 0);
+            }
+
+            if (partialSegment != null) {
+                Files.deleteIfExists(partialSegment);
+            }
+            if (complete) {
+                FileUtils.deleteDirectory(this.folder.toFile());
+            }
+        } catch (IOException e) {
+            throw SneakyThrow.sneakyThrow(e);
+        }
+    }
+
+    // Copies the packets of every part into one file using ffmpeg's concat demuxer, which offsets the timestamps
+    // The audio track is encoded alongside, only ever up to the time of the last video packet so the muxer doesn't
+    // have to buffer one of the streams
+    private static void concatenate(List<Path> parts, Path output, ExportSettings settings, @Nullable Path audioFile, long audioBytes,
+            int audioChannels) throws IOException {
+        Path listFile = parts.getFirst().resolveSibling("concat.txt");
+
+        StringBuilder list = new StringBuilder();
+        for (Path part : parts) {
+            list.append("file '").append(part.toAbsolutePath().toString().replace("'", "'\\''")).append("'\n");
+        }
+        Files.writeString(listFile, list.toString());
+
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(listFile.toString());
+                FileChannel audioChannel = audioFile == null ? null : FileChannel.open(audioFile, StandardOpenOption.READ)) {
+            grabber.setFormat("concat");
+            grabber.setOption("safe", "0");
+            grabber.start();
+
+            try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(output.toString(), grabber.getImageWidth(),
+                    grabber.getImageHeight(), audioChannels)) {
+                recorder.setFormat(settings.container().extension());
+                if (audioChannel != null) {
+                    recorder.setAudioCodec(settings.audioCodec().codecId());
+                    recorder.setSampleFormat(avutil.AV_SAMPLE_FMT_FLTP);
+                    recorder.setSampleRate(AUDIO_SAMPLE_RATE);
+                    recorder.setAudioBitrate(256000);
+                }
+                recorder.start(grabber.getFormatContext());
+
+                ByteBuffer audioBuffer = ByteBuffer.allocateDirect(1024 * audioChannels * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                long audioPosition = 0;
+                double videoSeconds = 0;
+
+                AVPacket packet;
+                while ((packet = grabber.grabPacket()) != null) {
+                    if (audioChannel != null && packet.pts() != avutil.AV_NOPTS_VALUE) {
+                        AVStream stream = grabber.getFormatContext().streams(packet.stream_index());
+                        videoSeconds = Math.max(videoSeconds, packet.pts() * avutil.av_q2d(stream.time_base()));
+                        long audioEnd = Math.min(audioBytes, (long) (videoSeconds * AUDIO_SAMPLE_RATE) * audioChannels * Float.BYTES);
+                        audioPosition = recordAudio(recorder, audioChannel, audioBuffer, audioPosition, audioEnd);
+                    }
+                    recorder.recordPacket(packet);
+                }
+
+                if (audioChannel != null) {
+                    audioPosition = recordAudio(recorder, audioChannel, audioBuffer, audioPosition, audioBytes);
+                    Flashback.LOGGER.info("Joined {} segments, audio is {}s long", parts.size(),
+                        (double) audioPosition / Float.BYTES / audioChannels / AUDIO_SAMPLE_RATE);
+                }
+
+                recorder.stop();
+            }
+
+            grabber.stop();
+        } finally {
+            Files.deleteIfExists(listFile);
+        }
+    }
+
+    private static long recordAudio(FFmpegFrameRecorder recorder, FileChannel audioChannel, ByteBuffer audioBuffer, long position,
+            long end) throws IOException {
+        int frameBytes = recorder.getAudioChannels() * Float.BYTES;
+        while (position < end) {
+            audioBuffer.clear();
+            audioBuffer.limit((int) Math.min(audioBuffer.capacity(), end - position));
+            int read = audioChannel.read(audioBuffer, position);
+            if (read <= 0) {
+                break;
+            }
+            position += read;
+
+            // Only whole samples for every channel, a partial one is read again next time
+            int usable = audioBuffer.position() / frameBytes * frameBytes;
+            position -= audioBuffer.position() - usable;
+            if (usable == 0) {
+                break;
+            }
+
+            audioBuffer.flip().limit(usable);
+            recorder.recordSamples(audioBuffer.asFloatBuffer());
+        }
+        return position;
+    }
+
+    @Override
+    public void close() {
+        // Finished segments are kept so that the export can be resumed
+        this.releasePendingAudio();
+        this.closeAudioChannel();
+        if (this.currentWriter != null) {
+            this.currentWriter.close();
+            this.currentWriter = null;
+        }
+    }
+
+}
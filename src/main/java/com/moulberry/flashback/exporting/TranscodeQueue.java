@@ -0,0 +1,194 @@
+package com.moulberry.flashback.exporting;
+
+import com.moulberry.flashback.Flashback;
+import com.moulberry.flashback.combo_options.VideoContainer;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.FFmpegLogCallback;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Encodes lossless intermediate files written by an export into the final codec on a background thread, so that the
+// game is released as soon as rendering has finished. Tasks don't depend on the replay and keep running after it is closed
+public class TranscodeQueue {
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        FINISHED,
+        FAILED,
+        CANCELLED
+    }
+
+    public static class Task {
+        private final ExportSettings settings;
+        private final Path intermediate;
+        private volatile State state = State.QUEUED;
+        private volatile int frame = 0;
+        private volatile int totalFrames = 0;
+        private volatile boolean cancelled = false;
+
+        private Task(ExportSettings settings, Path intermediate) {
+            this.settings = settings;
+            this.intermediate = intermediate;
+        }
+
+        public String getName() {
+            if (this.settings.name() != null) {
+                return this.settings.name();
+            }
+            return this.settings.output().getFileName().toString();
+        }
+
+        public State getState() {
+            return this.state;
+        }
+
+        public float getProgress() {
+            int totalFrames = this.totalFrames;
+            return totalFrames <= 0 ? 0.0f : Math.min(1.0f, this.frame / (float) totalFrames);
+        }
+
+        public boolean isDone() {
+            State state = this.state;
+            return state == State.FINISHED || state == State.FAILED || state == State.CANCELLED;
+        }
+
+        public void cancel() {
+            this.cancelled = true;
+        }
+    }
+
+    private static final List<Task> tasks = new CopyOnWriteArrayList<>();
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Video Transcode Thread");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    public static boolean isSupported(ExportSettings settings) {
+        VideoContainer container = settings.container();
+        return Flashback.getConfig().exportTranscodeInBackground && container != VideoContainer.PNG_SEQUENCE &&
+            container != VideoContainer.GIF && container != VideoContainer.WEBP;
+    }
+
+    public static void submit(ExportSettings settings, Path intermediate) {
+        Task task = new Task(settings, intermediate);
+        tasks.add(task);
+        executor.submit(() -> run(task));
+    }
+
+    public static List<Task> getTasks() {
+        return tasks;
+    }
+
+    public static boolean hasPendingTasks() {
+        for (Task task : tasks) {
+            if (!task.isDone()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void removeDone() {
+        tasks.removeIf(Task::isDone);
+    }
+
+    private static void run(Task task) {
+        if (task.cancelled) {
+            task.state = State.CANCELLED;
+            deleteQuietly(task.intermediate);
+            return;
+        }
+
+        task.state = State.RUNNING;
+
+        ExportSettings settings = task.settings;
+        Path tempOutput = task.intermediate.resolveSibling(UUID.randomUUID() + "." + settings.container().extension());
+
+        try {
+            FFmpegLogCallback.set();
+
+            boolean completed = transcode(task, tempOutput);
+
+            if (completed) {
+                Files.move(tempOutput, settings.output(), StandardCopyOption.REPLACE_EXISTING);
+                deleteQuietly(task.intermediate);
+                task.state = State.FINISHED;
+                Flashback.LOGGER.info("Finished transcoding {}", settings.output());
+            } else {
+                deleteQuietly(task.intermediate);
+                task.state = State.CANCELLED;
+            }
+        } catch (Throwable t) {
+            // The intermediate is kept so that nothing that was rendered is lost
+            Flashback.LOGGER.error("Failed to transcode {}, the lossless intermediate was kept at {}", settings.output(),
+                task.intermediate.toAbsolutePath(), t);
+            task.state = State.FAILED;
+        } finally {
+            deleteQuietly(tempOutput);
+        }
+    }
+
+    private static boolean transcode(Task task, Path output) throws Exception {
+        ExportSettings settings = task.settings;
+
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(task.intermediate.toString())) {
+            int dstPixelFormat = PixelFormatHelper.getBestPixelFormat(settings.encoder(), settings.transparent());
+
+            // The intermediate is normally stored in the final pixel format already, so frames are passed through unchanged
+            grabber.setPixelFormat(dstPixelFormat);
+            grabber.setSampleMode(FrameGrabber.SampleMode.FLOAT);
+            grabber.start();
+
+            int width = grabber.getImageWidth();
+            int height = grabber.getImageHeight();
+            task.totalFrames = grabber.getLengthInVideoFrames();
+
+            try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(output.toString(), width, height,
+                    AsyncFFmpegVideoWriter.getAudioChannels(settings))) {
+                AsyncFFmpegVideoWriter.configureRecorder(recorder, settings, width, height, dstPixelFormat);
+                recorder.start();
+
+                Frame frame;
+                while ((frame = grabber.grab()) != null) {
+                    if (task.cancelled) {
+                        recorder.stop();
+                        return false;
+                    }
+
+                    if (frame.image != null) {
+                        recorder.record(frame, dstPixelFormat);
+                        task.frame += 1;
+                    } else if (frame.samples != null) {
+                        recorder.record(frame);
+                    }
+                }
+
+                recorder.stop();
+            }
+
+            grabber.stop();
+        }
+
+        return true;
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (Exception ignored) {}
+    }
+
+}
@@ -1,15 +1,28 @@
 package com.moulberry.flashback.exporting;
 
 import com.mojang.blaze3d.platform.NativeImage;
-import org.jetbrains.annotations.Nullable;
-
-import java.nio.FloatBuffer;
 
 public interface VideoWriter extends AutoCloseable {
 
-    void encode(NativeImage src, @Nullable FloatBuffer audioBuffer);
+    void encode(NativeImage src);
     void finish();
 
+    // Whether frames can be passed to encodeYuv420p after being converted on the GPU
+    default boolean acceptsYuv420p() {
+        return false;
+    }
+
+    default void encodeYuv420p(NativeImage planes) {
+        throw new UnsupportedOperationException();
+    }
+
+    // Audio is submitted as soon as it is rendered, ahead of the frames it belongs to
+    // The writer must release the chunk once it has been written
+    default void encodeAudio(AudioBufferPool.Chunk chunk) {
+        chunk.release();
+        throw new UnsupportedOperationException();
+    }
+
     default void close() {
     }
 
@@ -1,5 +1,8 @@
 package com.moulberry.flashback.ext;
 
+import com.moulberry.flashback.playback.EntityChunkTickets;
+import org.jetbrains.annotations.Nullable;
+
 public interface ServerLevelExt {
 
     void flashback$setSeedHash(long seedHash);
@@ -10,4 +13,6 @@ public interface ServerLevelExt {
 
     void flashback$setCanSpawnEntities(boolean canSpawnEntities);
 
+    @Nullable EntityChunkTickets flashback$getEntityChunkTickets();
+
 }
@@ -1,9 +1,12 @@
 package com.moulberry.flashback.io;
 
+import com.google.gson.JsonObject;
 import com.mojang.authlib.GameProfile;
 import com.mojang.blaze3d.platform.NativeImage;
 import com.moulberry.flashback.CachedChunkPacket;
 import com.moulberry.flashback.Flashback;
+import com.moulberry.flashback.FlashbackGson;
+import com.moulberry.flashback.Hash128;
 import com.moulberry.flashback.SneakyThrow;
 import com.moulberry.flashback.TempFolderProvider;
 import com.moulberry.flashback.action.ActionConfigurationPacket;
@@ -11,10 +14,13 @@ import com.moulberry.flashback.action.ActionCreateLocalPlayer;
 import com.moulberry.flashback.action.ActionGamePacket;
 import com.moulberry.flashback.action.ActionLevelChunkCached;
 import com.moulberry.flashback.playback.ReplayServer;
+import com.moulberry.flashback.record.FlashbackChunkMeta;
+import com.moulberry.flashback.record.RecordingMetrics;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.player.LocalPlayer;
 import net.minecraft.core.RegistryAccess;
@@ -28,14 +34,17 @@ import net.minecraft.network.protocol.configuration.ClientConfigurationPacketLis
 import net.minecraft.network.protocol.game.ClientGamePacketListener;
 import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
 import net.minecraft.network.protocol.game.ClientboundLoginPacket;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -46,17 +55,26 @@ import java.util.function.Consumer;
 
 public class AsyncReplaySaver {
 
+    // The chunk that is currently being recorded, partially recoverable if the game crashes
+    public static final String CURRENT_CHUNK_FILE = "current_chunk.flashback.part";
+
     private final ArrayBlockingQueue<Consumer<ReplayWriter>> tasks = new ArrayBlockingQueue<>(1024);
     private final AtomicReference<Throwable> error = new AtomicReference<>(null);
     private final AtomicBoolean shouldStop = new AtomicBoolean(false);
     private final AtomicBoolean hasStopped = new AtomicBoolean(false);
 
     private final Path recordFolder;
+    private final RecordingMetrics metrics;
+    private final ChunkCacheWriter chunkCacheWriter;
 
-    public AsyncReplaySaver(RegistryAccess registryAccess) {
+    public AsyncReplaySaver(RegistryAccess registryAccess, RecordingMetrics metrics) {
         this.recordFolder = TempFolderProvider.createTemp(TempFolderProvider.TempFolderType.RECORDING, UUID.randomUUID());
+        this.metrics = metrics;
+        // chunkCacheDurability decides how often recorded chunk caches are forced to disk
+        this.chunkCacheWriter = new ChunkCacheWriter(this.recordFolder.resolve("level_chunk_caches"),
+            Flashback.getConfig().chunkCacheDurability, metrics);
 
-        ReplayWriter replayWriter = new ReplayWriter(registryAccess);
+        ReplayWriter replayWriter = new ReplayWriter(registryAccess, this.recordFolder.resolve(CURRENT_CHUNK_FILE), metrics);
         new Thread(() -> {
             while (true) {
                 try {
@@ -64,15 +82,23 @@ public class AsyncReplaySaver {
 
                     if (task == null) {
                         if (this.shouldStop.get()) {
+                            this.chunkCacheWriter.close();
+                            replayWriter.close();
                             this.hasStopped.set(true);
                             return;
                         } else {
+                            this.chunkCacheWriter.commitIfDue();
                             continue;
                         }
                     }
 
+                    long start = System.nanoTime();
                     task.accept(replayWriter);
+                    this.metrics.record(RecordingMetrics.Stage.SAVER_TASK, start);
                 } catch (Throwable t) {
+                    try {
+                        this.chunkCacheWriter.close();
+                    } catch (Throwable ignored) {}
                     this.error.set(t);
                     this.hasStopped.set(true);
                     return;
@@ -88,15 +114,22 @@ public class AsyncReplaySaver {
             throw new IllegalStateException("Cannot submit task to AsyncReplayWriter that has already stopped");
         }
 
+        // Time spent here is back-pressure from the saver thread falling behind
+        long start = System.nanoTime();
         while (true) {
             try {
                 this.tasks.put(consumer);
                 break;
             } catch (InterruptedException ignored) {}
         }
+        this.metrics.record(RecordingMetrics.Stage.SUBMIT_WAIT, start);
+        this.metrics.recordQueueDepth(this.tasks.size());
     }
 
-    private final Int2ObjectMap<List<CachedChunkPacket>> cachedChunkPackets = new Int2ObjectOpenHashMap<>();
+    // Saver thread only
+    private final Long2ObjectMap<List<CachedChunkPacket>> cachedChunkPackets = new Long2ObjectOpenHashMap<>();
+    private final long[] chunkHash = new long[2];
+    private ByteBuf chunkCompareBuffer = null;
     private int totalWrittenChunkPackets = 0;
 
     public void writeGamePackets(StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> gamePacketCodec,
@@ -106,32 +139,44 @@ public class AsyncReplaySaver {
             RegistryFriendlyByteBuf chunkCacheOutput = null;
             int lastChunkCacheIndex = -1;
 
+            RegistryFriendlyByteBuf chunkEncodeBuffer = null;
             FriendlyByteBuf customPayloadTempBuffer = null;
 
             for (Packet<? super ClientGamePacketListener> packet : packetCopy) {
                 if (packet instanceof ClientboundLevelChunkWithLightPacket levelChunkPacket) {
-                    int index = -1;
+                    if (chunkEncodeBuffer == null) {
+                        chunkEncodeBuffer = new RegistryFriendlyByteBuf(Unpooled.buffer(), writer.registryAccess());
+                    }
 
-                    CachedChunkPacket cachedChunkPacket = new CachedChunkPacket(levelChunkPacket, -1);
-                    int hashCode = cachedChunkPacket.hashCode();
+                    // Encode the packet and fingerprint the encoded bytes
+                    long encodeStart = System.nanoTime();
+                    chunkEncodeBuffer.clear();
+                    gamePacketCodec.encode(chunkEncodeBuffer, packet);
+                    int size = chunkEncodeBuffer.writerIndex();
+                    Hash128.hash(chunkEncodeBuffer, 0, size, this.chunkHash);
+                    long hashLow = this.chunkHash[0];
+                    long hashHigh = this.chunkHash[1];
+                    this.metrics.record(RecordingMetrics.Stage.CHUNK_ENCODE, encodeStart);
 
-                    boolean add = true;
+                    int index = -1;
 
-                    List<CachedChunkPacket> cached = this.cachedChunkPackets.get(hashCode);
+                    List<CachedChunkPacket> cached = this.cachedChunkPackets.get(hashLow);
                     if (cached == null) {
-                        cached = new ArrayList<>();
-                        this.cachedChunkPackets.put(hashCode, cached);
+                        cached = new ArrayList<>(1);
+                        this.cachedChunkPackets.put(hashLow, cached);
                     } else {
                         for (CachedChunkPacket existingChunkPacket : cached) {
-                            if (existingChunkPacket.equals(cachedChunkPacket)) {
-                                add = false;
+                            if (existingChunkPacket.matches(hashLow, hashHigh, size, levelChunkPacket.getX(), levelChunkPacket.getZ()) &&
+                                    this.matchesCachedChunk(existingChunkPacket, chunkEncodeBuffer, chunkCacheOutput, lastChunkCacheIndex)) {
                                 index = existingChunkPacket.index;
                                 break;
                             }
                         }
                     }
 
-                    if (add) {
+                    this.metrics.recordChunkCacheLookup(index >= 0);
+
+                    if (index < 0) {
                         index = this.totalWrittenChunkPackets;
                         this.totalWrittenChunkPackets += 1;
 
@@ -148,29 +193,20 @@ public class AsyncReplaySaver {
                             chunkCacheOutput = new RegistryFriendlyByteBuf(Unpooled.buffer(), writer.registryAccess());
                         }
 
-                        // Write placeholder value for size
-                        int startWriterIndex = chunkCacheOutput.writerIndex();
-                        chunkCacheOutput.writeInt(-1);
-
-                        // Write chunk packet
-                        gamePacketCodec.encode(chunkCacheOutput, packet);
-                        int endWriterIndex = chunkCacheOutput.writerIndex();
-
-                        // Write real size value
-                        int size = endWriterIndex - startWriterIndex - 4;
-                        chunkCacheOutput.writerIndex(startWriterIndex);
+                        // Write size followed by the already encoded chunk packet
                         chunkCacheOutput.writeInt(size);
-                        chunkCacheOutput.writerIndex(endWriterIndex);
+                        long offset = this.chunkCacheWriter.getSize(cacheIndex) + chunkCacheOutput.writerIndex();
+                        chunkCacheOutput.writeBytes(chunkEncodeBuffer, 0, size);
 
                         // Add to list so that this chunk can be reused
-                        cachedChunkPacket.index = index;
-                        cached.add(cachedChunkPacket);
+                        cached.add(new CachedChunkPacket(hashLow, hashHigh, size, index, offset, levelChunkPacket.getX(), levelChunkPacket.getZ()));
                     }
 
                     writer.startAction(ActionLevelChunkCached.INSTANCE);
                     writer.friendlyByteBuf().writeVarInt(index);
                     writer.finishAction(ActionLevelChunkCached.INSTANCE);
 
+                    this.seekPointTracker.onChunkCached(levelChunkPacket.getX(), levelChunkPacket.getZ(), index);
                     continue;
                 }
 
@@ -193,30 +229,113 @@ public class AsyncReplaySaver {
                     writer.startAction(ActionGamePacket.INSTANCE);
                     gamePacketCodec.encode(writer.friendlyByteBuf(), packet);
                     writer.finishAction(ActionGamePacket.INSTANCE);
+
+                    this.seekPointTracker.onGamePacket(packet, gamePacketCodec, writer.registryAccess());
                 }
             }
 
             if (lastChunkCacheIndex >= 0) {
                 writeChunkCacheFile(chunkCacheOutput, lastChunkCacheIndex);
             }
+
+            this.canWriteSeekPoint = this.seekPointTracker.isComplete();
         });
     }
 
+    // Hash128 isn't collision resistant, so a hash hit is only reused if the bytes are identical
+    private boolean matchesCachedChunk(CachedChunkPacket existing, ByteBuf encoded, @Nullable ByteBuf pendingOutput, int pendingCacheIndex) {
+        int cacheIndex = existing.index / ReplayServer.CHUNK_CACHE_SIZE;
+
+        // Entry is still in the current batch and hasn't been appended yet
+        if (pendingOutput != null && cacheIndex == pendingCacheIndex) {
+            long appendedSize = this.chunkCacheWriter.getSize(cacheIndex);
+            if (existing.offset >= appendedSize) {
+                return ByteBufUtil.equals(encoded, 0, pendingOutput, (int) (existing.offset - appendedSize), existing.size);
+            }
+        }
+
+        if (this.chunkCompareBuffer == null) {
+            this.chunkCompareBuffer = Unpooled.buffer(existing.size);
+        }
+        this.chunkCompareBuffer.clear();
+
+        try {
+            if (!this.chunkCacheWriter.read(cacheIndex, existing.offset, this.chunkCompareBuffer, existing.size)) {
+                return false;
+            }
+        } catch (IOException e) {
+            Flashback.LOGGER.error("Unable to read level chunk cache entry for comparison", e);
+            return false;
+        }
+
+        return ByteBufUtil.equals(encoded, 0, this.chunkCompareBuffer, 0, existing.size);
+    }
+
     private void writeChunkCacheFile(RegistryFriendlyByteBuf chunkCacheOutput, int index) {
         if (chunkCacheOutput == null || chunkCacheOutput.writerIndex() == 0) {
             return;
         }
 
+        long start = System.nanoTime();
         try {
-            byte[] bytes = new byte[chunkCacheOutput.writerIndex()];
-            chunkCacheOutput.getBytes(0, bytes);
-
-            Path levelChunkCachePath = this.recordFolder.resolve("level_chunk_caches").resolve(""+index);
-            Files.createDirectories(levelChunkCachePath.getParent());
-            Files.write(levelChunkCachePath, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+            this.chunkCacheWriter.append(index, chunkCacheOutput);
         } catch (IOException e) {
             SneakyThrow.sneakyThrow(e);
         }
+        this.metrics.record(RecordingMetrics.Stage.CHUNK_CACHE_WRITE, start);
+    }
+
+    // Saver thread only
+    private final SeekPointTracker seekPointTracker = new SeekPointTracker();
+    private boolean abortSeekPoint = false;
+    private volatile boolean canWriteSeekPoint = false;
+
+    // Must be submitted before every snapshot that isn't a seek point, since those write every loaded chunk and map
+    public void resetSeekPointTracking() {
+        this.submit(writer -> {
+            this.seekPointTracker.reset();
+            this.canWriteSeekPoint = true;
+        });
+    }
+
+    // Seek points can only be built once a snapshot has been tracked, see SeekPointTracker
+    public boolean canWriteSeekPoint() {
+        return this.canWriteSeekPoint;
+    }
+
+    public void startSeekPoint(int tick) {
+        this.submit(writer -> {
+            writer.startSeekPoint(tick);
+            this.seekPointTracker.setSuspended(true);
+            this.abortSeekPoint = false;
+        });
+    }
+
+    // References the chunk cache entry of every loaded chunk, followed by the changes made to it since
+    public void writeSeekPointChunks() {
+        this.submit(writer -> {
+            if (this.seekPointTracker.isComplete()) {
+                this.seekPointTracker.writeChunks(writer);
+            } else {
+                this.abortSeekPoint = true;
+            }
+        });
+    }
+
+    public void writeSeekPointMaps(StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> gamePacketCodec) {
+        this.submit(writer -> this.seekPointTracker.writeMaps(writer, gamePacketCodec));
+    }
+
+    public void endSeekPoint() {
+        this.submit(writer -> {
+            this.seekPointTracker.setSuspended(false);
+            if (this.abortSeekPoint || !this.seekPointTracker.isComplete()) {
+                writer.abortSeekPoint();
+            } else {
+                writer.endSeekPoint();
+            }
+            this.abortSeekPoint = false;
+        });
     }
 
     public void writeConfigurationPackets(StreamCodec<ByteBuf, Packet<? super ClientConfigurationPacketListener>> configurationPacketCodec,
@@ -255,11 +374,29 @@ public class AsyncReplaySaver {
         }
     }
 
-    public void writeReplayChunk(String chunkName, String metadata) {
+    // Only accessed from the saver thread
+    private final Map<String, TreeMap<Integer, Integer>> seekPointsByChunk = new HashMap<>();
+
+    public void writeReplayChunk(String chunkName, JsonObject metadataJson) {
         this.submit(writer -> {
             try {
-                Path chunkFile = this.recordFolder.resolve(chunkName);
-                Files.write(chunkFile, writer.popBytes());
+                TreeMap<Integer, Integer> seekPoints = writer.getSeekPoints();
+                if (!seekPoints.isEmpty()) {
+                    this.seekPointsByChunk.put(chunkName, seekPoints);
+                }
+
+                // The finished chunk may reference any chunk cache entry written so far
+                this.chunkCacheWriter.commit();
+                writer.finishChunk(this.recordFolder.resolve(chunkName));
+
+                // Seek point offsets are only known once the chunk has been written, so add them here
+                JsonObject chunksJson = metadataJson.getAsJsonObject("chunks");
+                for (Map.Entry<String, TreeMap<Integer, Integer>> entry : this.seekPointsByChunk.entrySet()) {
+                    if (chunksJson.get(entry.getKey()) instanceof JsonObject chunkMetaJson) {
+                        chunkMetaJson.add("seekPoints", FlashbackChunkMeta.seekPointsToJson(entry.getValue()));
+                    }
+                }
+                String metadata = FlashbackGson.PRETTY.toJson(metadataJson);
 
                 Path metaFile = this.recordFolder.resolve("metadata.json");
                 if (Files.exists(metaFile)) {
@@ -0,0 +1,152 @@
+package com.moulberry.flashback.io;
+
+import com.moulberry.flashback.record.RecordingMetrics;
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Appends to the files in level_chunk_caches, keeping the current file open between batches
+// Written data is visible to readers immediately, but is only forced to disk according to the durability level
+// Everything is always committed before a replay chunk is finished, so a recovered replay never references missing chunks
+// Saver thread only
+public class ChunkCacheWriter implements AutoCloseable {
+
+    public enum Durability {
+        // Force after every write, the slowest option
+        EVERY_WRITE,
+        // Force at most once per interval, or once enough data has been written
+        INTERVAL,
+        // Only force when a replay chunk is finished
+        REPLAY_CHUNK
+    }
+
+    private static final long COMMIT_INTERVAL_NANOS = 1_000_000_000L;
+    private static final long COMMIT_BYTES = 8 * 1024 * 1024;
+
+    private final Path folder;
+    private final Durability durability;
+    private final RecordingMetrics metrics;
+
+    private FileChannel channel = null;
+    private int channelIndex = -1;
+    private long position = 0;
+    private long uncommittedBytes = 0;
+    private long lastCommitNanos = System.nanoTime();
+    private FileChannel readChannel = null;
+    private int readChannelIndex = -1;
+
+    public ChunkCacheWriter(Path folder, Durability durability, RecordingMetrics metrics) {
+        this.folder = folder;
+        this.durability = durability == null ? Durability.INTERVAL : durability;
+        this.metrics = metrics;
+    }
+
+    public void append(int index, ByteBuf data) throws IOException {
+        int length = data.writerIndex();
+        if (length == 0) {
+            return;
+        }
+
+        if (this.channelIndex != index) {
+            // The previous file is complete, commit it before moving on
+            this.closeChannel();
+
+            Files.createDirectories(this.folder);
+            this.channel = FileChannel.open(this.folder.resolve("" + index), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.channelIndex = index;
+            this.position = this.channel.size();
+        }
+
+        int written = 0;
+        while (written < length) {
+            int count = data.getBytes(written, this.channel, this.position, length - written);
+            written += count;
+            this.position += count;
+        }
+        this.uncommittedBytes += length;
+
+        if (this.durability == Durability.EVERY_WRITE || this.uncommittedBytes >= COMMIT_BYTES) {
+            this.commit();
+        } else {
+            this.commitIfDue();
+        }
+    }
+
+    // Number of bytes that have been appended to a file, entries after this are still waiting to be appended
+    public long getSize(int index) {
+        return this.channelIndex == index ? this.position : 0;
+    }
+
+    // Reads back an appended entry. Recent entries are normally still in the page cache, so this rarely touches the disk
+    public boolean read(int index, long offset, ByteBuf output, int length) throws IOException {
+        FileChannel channel;
+        if (this.channelIndex == index) {
+            channel = this.channel;
+        } else {
+            if (this.readChannelIndex != index) {
+                this.closeReadChannel();
+                this.readChannel = FileChannel.open(this.folder.resolve("" + index), StandardOpenOption.READ);
+                this.readChannelIndex = index;
+            }
+            channel = this.readChannel;
+        }
+
+        int start = output.writerIndex();
+        while (output.writerIndex() - start < length) {
+            int read = output.writeBytes(channel, offset + output.writerIndex() - start, length - (output.writerIndex() - start));
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Called whenever the saver thread is idle, so that the interval is kept even when nothing new is written
+    public void commitIfDue() throws IOException {
+        if (this.durability == Durability.INTERVAL && this.uncommittedBytes > 0 &&
+                System.nanoTime() - this.lastCommitNanos >= COMMIT_INTERVAL_NANOS) {
+            this.commit();
+        }
+    }
+
+    public void commit() throws IOException {
+        if (this.channel != null && this.uncommittedBytes > 0) {
+            long start = System.nanoTime();
+            this.channel.force(false);
+            this.metrics.record(RecordingMetrics.Stage.CHUNK_CACHE_SYNC, start);
+        }
+        this.uncommittedBytes = 0;
+        this.lastCommitNanos = System.nanoTime();
+    }
+
+    private void closeChannel() throws IOException {
+        if (this.channel != null) {
+            this.commit();
+            this.channel.close();
+            this.channel = null;
+        }
+        this.channelIndex = -1;
+    }
+
+    private void closeReadChannel() throws IOException {
+        if (this.readChannel != null) {
+            this.readChannel.close();
+            this.readChannel = null;
+        }
+        this.readChannelIndex = -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.closeChannel();
+        } finally {
+            this.closeReadChannel();
+        }
+    }
+
+}
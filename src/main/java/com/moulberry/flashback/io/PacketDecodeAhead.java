@@ -0,0 +1,188 @@
+package com.moulberry.flashback.io;
+
+import com.moulberry.flashback.Flashback;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.DecoderException;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientGamePacketListener;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Decodes the game packets of upcoming actions on a worker thread, so that the server thread only has to apply them
+// Packets are keyed by the offset of their action and tagged with a generation, which is bumped whenever the reader
+// jumps or the registries change, so that a packet decoded for a different position or registry is never used
+// Decoding never continues past a configuration action, since those can change the registries
+public class PacketDecodeAhead {
+
+    private static final int LOOKAHEAD_BYTES = 1024 * 1024;
+    private static final int LOOKAHEAD_TICKS = 40;
+    private static final int MAX_DECODED_PACKETS = 4096;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Replay Packet Decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private record DecodedPacket(int generation, Packet<? super ClientGamePacketListener> packet) {}
+
+    // scannedUpTo is the offset that the worker has scanned up to in this generation, blockedAt is the offset of the
+    // configuration action that stopped it, decoding resumes once that has been handled
+    // Always replaced as a whole, so that a worker from an older generation can never overwrite the state of a newer one
+    private record ScanState(int generation, int scannedUpTo, int blockedAt) {}
+
+    private final ConcurrentHashMap<Integer, DecodedPacket> decoded = new ConcurrentHashMap<>();
+    private final AtomicReference<ScanState> scanState = new AtomicReference<>(new ScanState(0, -1, -1));
+    // Offset of the next action the server thread will handle, the worker skips anything before it
+    private volatile int consumedUpTo = 0;
+    private Future<?> pending = null;
+
+    private final int gamePacketActionId;
+    private final int configurationActionId;
+    private final int nextTickActionId;
+
+    private StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> codec = null;
+    private RegistryAccess registryAccess = null;
+
+    public PacketDecodeAhead(int gamePacketActionId, int configurationActionId, int nextTickActionId) {
+        this.gamePacketActionId = gamePacketActionId;
+        this.configurationActionId = configurationActionId;
+        this.nextTickActionId = nextTickActionId;
+    }
+
+    public void invalidate() {
+        ScanState state;
+        do {
+            state = this.scanState.get();
+        } while (!this.scanState.compareAndSet(state, new ScanState(state.generation + 1, -1, -1)));
+        this.decoded.clear();
+    }
+
+    // Server thread only, does nothing when decodeActionsAhead is disabled
+    public void schedule(FriendlyByteBuf buffer, int readerIndex, StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> codec,
+            RegistryAccess registryAccess) {
+        if (this.gamePacketActionId < 0 || !Flashback.getConfig().decodeActionsAhead) {
+            return;
+        }
+
+        if (this.codec != codec || this.registryAccess != registryAccess) {
+            this.codec = codec;
+            this.registryAccess = registryAccess;
+            this.invalidate();
+        }
+
+        this.consumedUpTo = readerIndex;
+
+        if (this.pending != null && !this.pending.isDone()) {
+            return;
+        }
+
+        ScanState state = this.scanState.get();
+        int scannedUpTo = state.scannedUpTo;
+        if (state.blockedAt >= readerIndex || scannedUpTo >= buffer.writerIndex() || scannedUpTo - readerIndex > LOOKAHEAD_BYTES / 2) {
+            return;
+        }
+
+        // Entries that were skipped over or belong to an older generation are never going to be used
+        if (!this.decoded.isEmpty()) {
+            int generation = state.generation;
+            this.decoded.entrySet().removeIf(entry -> entry.getKey() < readerIndex || entry.getValue().generation != generation);
+        }
+        if (this.decoded.size() >= MAX_DECODED_PACKETS) {
+            return;
+        }
+
+        FriendlyByteBuf scan = new FriendlyByteBuf(buffer.duplicate());
+        scan.readerIndex(Math.max(readerIndex, scannedUpTo));
+        this.pending = executor.submit(() -> this.decodeAhead(scan, state.generation, codec, registryAccess));
+    }
+
+    private void decodeAhead(FriendlyByteBuf scan, int generation, StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> codec,
+            RegistryAccess registryAccess) {
+        int ticks = 0;
+        int blockedAt = -1;
+
+        try {
+            while (scan.readerIndex() < scan.writerIndex() && generation == this.scanState.get().generation) {
+                int actionStart = scan.readerIndex();
+                if (actionStart - this.consumedUpTo > LOOKAHEAD_BYTES || ticks >= LOOKAHEAD_TICKS || this.decoded.size() >= MAX_DECODED_PACKETS) {
+                    break;
+                }
+
+                int id = scan.readVarInt();
+                int size = scan.readInt();
+                if (size < 0 || size > scan.readableBytes()) {
+                    scan.readerIndex(actionStart);
+                    break;
+                }
+                if (id == this.configurationActionId) {
+                    scan.readerIndex(actionStart);
+                    blockedAt = actionStart;
+                    break;
+                }
+
+                if (id == this.nextTickActionId) {
+                    ticks += 1;
+                } else if (id == this.gamePacketActionId && actionStart >= this.consumedUpTo) {
+                    ByteBuf slice = scan.slice(scan.readerIndex(), size);
+                    try {
+                        Packet<? super ClientGamePacketListener> packet = codec.decode(new RegistryFriendlyByteBuf(slice, registryAccess));
+                        if (slice.readerIndex() == slice.writerIndex()) {
+                            DecodedPacket decodedPacket = new DecodedPacket(generation, packet);
+                            this.decoded.put(actionStart, decodedPacket);
+
+                            // invalidate() may have cleared the map just before the put
+                            if (generation != this.scanState.get().generation) {
+                                this.decoded.remove(actionStart, decodedPacket);
+                                break;
+                            }
+                        }
+                    } catch (DecoderException | IndexOutOfBoundsException ignored) {
+                        // Left for the server thread, which handles packets that fail to decode
+                    }
+                }
+
+                scan.skipBytes(size);
+            }
+        } catch (IndexOutOfBoundsException ignored) {}
+
+        ScanState scanned = new ScanState(generation, blockedAt >= 0 ? blockedAt + 1 : scan.readerIndex(), blockedAt);
+        while (true) {
+            ScanState state = this.scanState.get();
+            if (state.generation != generation || this.scanState.compareAndSet(state, scanned)) {
+                break;
+            }
+        }
+    }
+
+    // Waits for the worker to stop reading, so that the buffer can be released
+    public void close() {
+        this.invalidate();
+        if (this.pending != null) {
+            try {
+                this.pending.get();
+            } catch (Exception ignored) {}
+            this.pending = null;
+        }
+        this.decoded.clear();
+    }
+
+    @Nullable
+    public Packet<? super ClientGamePacketListener> take(int offset) {
+        DecodedPacket decodedPacket = this.decoded.remove(offset);
+        if (decodedPacket == null || decodedPacket.generation != this.scanState.get().generation) {
+            return null;
+        }
+        return decodedPacket.packet;
+    }
+
+}
@@ -0,0 +1,324 @@
+package com.moulberry.flashback.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Writes zip files, compressing each entry in 1MB blocks across multiple threads
+// Blocks are deflated independently (primed with the previous 32KB) and joined with sync flushes, like pigz
+public class ParallelZipWriter implements Closeable {
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    public static final long LARGE_ENTRY_SIZE = 8L * 1024L * 1024L;
+
+    // Entries that may come close to 4GB after compression use zip64 sizes
+    private static final long ZIP64_ENTRY_THRESHOLD = 0xF0000000L;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private record Entry(byte[] name, int method, long crc, long compressedSize, long uncompressedSize, long headerOffset) {}
+
+    private final FileChannel channel;
+    private final int level;
+    private final boolean storeLargeEntries;
+    private final ExecutorService executor;
+    private final int maxPendingBlocks;
+    private final ThreadLocal<Deflater> deflaters;
+    private final int dosTime;
+    private final int dosDate;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private long position = 0;
+
+    public ParallelZipWriter(Path output, int level, boolean storeLargeEntries) throws IOException {
+        this.channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.level = level;
+        this.storeLargeEntries = storeLargeEntries;
+
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Flashback Zip Compressor #" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxPendingBlocks = threads * 2;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+
+        LocalDateTime now = LocalDateTime.now();
+        this.dosTime = (now.getSecond() / 2) | (now.getMinute() << 5) | (now.getHour() << 11);
+        this.dosDate = now.getDayOfMonth() | (now.getMonthValue() << 5) | (Math.max(0, now.getYear() - 1980) << 9);
+    }
+
+    public void putBytes(String name, byte[] bytes) throws IOException {
+        this.putEntry(name, new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    public void putFile(String name, Path path) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            this.putEntry(name, inputStream, Files.size(path));
+        }
+    }
+
+    private void putEntry(String name, InputStream inputStream, long size) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int method = this.storeLargeEntries && size >= LARGE_ENTRY_SIZE ? METHOD_STORED : METHOD_DEFLATED;
+        boolean zip64 = size >= ZIP64_ENTRY_THRESHOLD;
+        long headerOffset = this.position;
+
+        // Sizes and crc are patched in once the entry has been written
+        ByteBuffer header = ByteBuffer.allocate(30 + nameBytes.length + (zip64 ? 20 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x04034b50);
+        header.putShort((short) (zip64 ? 45 : 20));
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) method);
+        header.putShort((short) this.dosTime);
+        header.putShort((short) this.dosDate);
+        header.putInt(0);
+        header.putInt(zip64 ? (int) ZIP64_MAGIC : 0);
+        header.putInt(zip64 ? (int) ZIP64_MAGIC : 0);
+        header.putShort((short) nameBytes.length);
+        header.putShort((short) (zip64 ? 20 : 0));
+        header.put(nameBytes);
+        if (zip64) {
+            header.putShort((short) 0x0001);
+            header.putShort((short) 16);
+            header.putLong(0);
+            header.putLong(0);
+        }
+        this.write(header.flip());
+
+        CRC32 crc = new CRC32();
+        long uncompressedSize = 0;
+        long compressedSize = 0;
+
+        if (method == METHOD_STORED) {
+            byte[] block;
+            while ((block = inputStream.readNBytes(BLOCK_SIZE)).length > 0) {
+                crc.update(block);
+                uncompressedSize += block.length;
+                compressedSize += block.length;
+                this.write(ByteBuffer.wrap(block));
+            }
+        } else {
+            ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+            byte[] previous = null;
+            byte[] current = inputStream.readNBytes(BLOCK_SIZE);
+
+            while (true) {
+                byte[] next = current.length < BLOCK_SIZE ? null : inputStream.readNBytes(BLOCK_SIZE);
+                boolean last = next == null || next.length == 0;
+
+                crc.update(current);
+                uncompressedSize += current.length;
+
+                byte[] input = current;
+                byte[] dictionary = previous;
+                pending.add(this.executor.submit(() -> this.deflateBlock(input, dictionary, last)));
+
+                while (pending.size() >= this.maxPendingBlocks) {
+                    compressedSize += this.writeCompressedBlock(pending.poll());
+                }
+
+                if (last) {
+                    break;
+                }
+                previous = current;
+                current = next;
+            }
+
+            while (!pending.isEmpty()) {
+                compressedSize += this.writeCompressedBlock(pending.poll());
+            }
+        }
+
+        if (!zip64 && (compressedSize >= ZIP64_MAGIC || uncompressedSize >= ZIP64_MAGIC)) {
+            throw new IOException("Entry " + name + " was larger than expected");
+        }
+
+        ByteBuffer patch = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        patch.putInt((int) crc.getValue());
+        patch.putInt(zip64 ? (int) ZIP64_MAGIC : (int) compressedSize);
+        patch.putInt(zip64 ? (int) ZIP64_MAGIC : (int) uncompressedSize);
+        this.writeAt(patch.flip(), headerOffset + 14);
+
+        if (zip64) {
+            ByteBuffer zip64Patch = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            zip64Patch.putLong(uncompressedSize);
+            zip64Patch.putLong(compressedSize);
+            this.writeAt(zip64Patch.flip(), headerOffset + 30 + nameBytes.length + 4);
+        }
+
+        this.entries.add(new Entry(nameBytes, method, crc.getValue(), compressedSize, uncompressedSize, headerOffset));
+    }
+
+    private byte[] deflateBlock(byte[] input, byte[] dictionary, boolean last) {
+        Deflater deflater = this.deflaters.get();
+        deflater.reset();
+
+        if (dictionary != null) {
+            int dictionaryLength = Math.min(DICTIONARY_SIZE, dictionary.length);
+            deflater.setDictionary(dictionary, dictionary.length - dictionaryLength, dictionaryLength);
+        }
+        deflater.setInput(input);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2 + 64);
+        byte[] buffer = new byte[64 * 1024];
+
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                int written = deflater.deflate(buffer);
+                output.write(buffer, 0, written);
+            }
+        } else {
+            // Sync flush ends the block on a byte boundary so that the next block can be appended directly
+            int written;
+            do {
+                written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                output.write(buffer, 0, written);
+            } while (written == buffer.length);
+        }
+
+        return output.toByteArray();
+    }
+
+    private int writeCompressedBlock(Future<byte[]> future) throws IOException {
+        byte[] compressed;
+        try {
+            compressed = future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Failed to compress block", e);
+        }
+        this.write(ByteBuffer.wrap(compressed));
+        return compressed.length;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.position += this.channel.write(buffer, this.position);
+        }
+    }
+
+    private void writeAt(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.writeCentralDirectory();
+            this.channel.force(false);
+        } finally {
+            this.executor.shutdownNow();
+            this.channel.close();
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long centralDirectoryOffset = this.position;
+
+        for (Entry entry : this.entries) {
+            boolean uncompressedOverflow = entry.uncompressedSize >= ZIP64_MAGIC;
+            boolean compressedOverflow = entry.compressedSize >= ZIP64_MAGIC;
+            boolean offsetOverflow = entry.headerOffset >= ZIP64_MAGIC;
+            int extraLength = (uncompressedOverflow ? 8 : 0) + (compressedOverflow ? 8 : 0) + (offsetOverflow ? 8 : 0);
+            if (extraLength > 0) {
+                extraLength += 4;
+            }
+            boolean zip64 = extraLength > 0 || entry.uncompressedSize >= ZIP64_ENTRY_THRESHOLD;
+
+            ByteBuffer header = ByteBuffer.allocate(46 + entry.name.length + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0x02014b50);
+            header.putShort((short) 45);
+            header.putShort((short) (zip64 ? 45 : 20));
+            header.putShort((short) FLAG_UTF8);
+            header.putShort((short) entry.method);
+            header.putShort((short) this.dosTime);
+            header.putShort((short) this.dosDate);
+            header.putInt((int) entry.crc);
+            header.putInt(compressedOverflow ? (int) ZIP64_MAGIC : (int) entry.compressedSize);
+            header.putInt(uncompressedOverflow ? (int) ZIP64_MAGIC : (int) entry.uncompressedSize);
+            header.putShort((short) entry.name.length);
+            header.putShort((short) extraLength);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putInt(0);
+            header.putInt(offsetOverflow ? (int) ZIP64_MAGIC : (int) entry.headerOffset);
+            header.put(entry.name);
+            if (extraLength > 0) {
+                header.putShort((short) 0x0001);
+                header.putShort((short) (extraLength - 4));
+                if (uncompressedOverflow) header.putLong(entry.uncompressedSize);
+                if (compressedOverflow) header.putLong(entry.compressedSize);
+                if (offsetOverflow) header.putLong(entry.headerOffset);
+            }
+            this.write(header.flip());
+        }
+
+        long centralDirectoryEnd = this.position;
+        long centralDirectorySize = centralDirectoryEnd - centralDirectoryOffset;
+        int entryCount = this.entries.size();
+
+        boolean zip64 = entryCount >= 0xFFFF || centralDirectoryOffset >= ZIP64_MAGIC || centralDirectorySize >= ZIP64_MAGIC;
+        if (zip64) {
+            ByteBuffer zip64End = ByteBuffer.allocate(56 + 20).order(ByteOrder.LITTLE_ENDIAN);
+            zip64End.putInt(0x06064b50);
+            zip64End.putLong(44);
+            zip64End.putShort((short) 45);
+            zip64End.putShort((short) 45);
+            zip64End.putInt(0);
+            zip64End.putInt(0);
+            zip64End.putLong(entryCount);
+            zip64End.putLong(entryCount);
+            zip64End.putLong(centralDirectorySize);
+            zip64End.putLong(centralDirectoryOffset);
+
+            // Locator
+            zip64End.putInt(0x07064b50);
+            zip64End.putInt(0);
+            zip64End.putLong(centralDirectoryEnd);
+            zip64End.putInt(1);
+            this.write(zip64End.flip());
+        }
+
+        ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(0x06054b50);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) Math.min(entryCount, 0xFFFF));
+        end.putShort((short) Math.min(entryCount, 0xFFFF));
+        end.putInt(zip64 ? (int) ZIP64_MAGIC : (int) centralDirectorySize);
+        end.putInt(zip64 ? (int) ZIP64_MAGIC : (int) centralDirectoryOffset);
+        end.putShort((short) 0);
+        this.write(end.flip());
+    }
+
+}
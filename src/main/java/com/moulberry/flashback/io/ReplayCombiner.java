@@ -6,324 +6,330 @@ import com.moulberry.flashback.FlashbackGson;
 import com.moulberry.flashback.action.Action;
 import com.moulberry.flashback.action.ActionLevelChunkCached;
 import com.moulberry.flashback.action.ActionRegistry;
+import com.moulberry.flashback.action.ActionSeekPoint;
 import com.moulberry.flashback.playback.ReplayServer;
 import com.moulberry.flashback.record.FlashbackChunkMeta;
 import com.moulberry.flashback.record.FlashbackMeta;
 import com.moulberry.flashback.record.ReplayMarker;
-import com.replaymod.replaystudio.lib.viaversion.libs.fastutil.ints.Int2ObjectMap;
-import com.replaymod.replaystudio.lib.viaversion.libs.fastutil.ints.Int2ObjectOpenHashMap;
-import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
-import io.netty.buffer.UnpooledDirectByteBuf;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
-import net.minecraft.core.RegistryAccess;
 import net.minecraft.network.FriendlyByteBuf;
-import net.minecraft.network.RegistryFriendlyByteBuf;
-import net.minecraft.network.codec.StreamCodec;
-import net.minecraft.network.protocol.Packet;
-import net.minecraft.network.protocol.game.ClientGamePacketListener;
-import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
-import net.minecraft.network.protocol.game.GameProtocols;
 import net.minecraft.resources.ResourceLocation;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.zip.Deflater;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 public class ReplayCombiner {
 
-    public static void combine(RegistryAccess registryAccess, String replayName, Path first, Path second, Path output) throws Exception {
-        StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> gamePacketCodec = GameProtocols.CLIENTBOUND_TEMPLATE.bind(RegistryFriendlyByteBuf.decorator(registryAccess)).codec();
-
-        try (FileSystem firstFileSystem = FileSystems.newFileSystem(first);
-             FileSystem secondFileSystem = FileSystems.newFileSystem(second)) {
-
-            List<ClientboundLevelChunkWithLightPacket> levelChunkPackets = new ArrayList<>();
-            Int2IntMap levelChunkMappingsFirst = new Int2IntOpenHashMap();
-            Int2IntMap levelChunkMappingsSecond = new Int2IntOpenHashMap();
-
-            extractChunks(registryAccess, firstFileSystem, gamePacketCodec, levelChunkPackets, levelChunkMappingsFirst);
-            extractChunks(registryAccess, secondFileSystem, gamePacketCodec, levelChunkPackets, levelChunkMappingsSecond);
-
-            // Read metadata
-            Path metadataPath = firstFileSystem.getPath("/metadata.json");
-            String metadataJson = Files.readString(metadataPath);
-            FlashbackMeta firstMetadata = FlashbackMeta.fromJson(FlashbackGson.COMPRESSED.fromJson(metadataJson, JsonObject.class));
-            if (firstMetadata == null) {
-                throw new RuntimeException("Unable to load /metadata.json from first replay");
-            }
+    public static void combine(String replayName, List<Path> inputs, Path output) throws Exception {
+        if (inputs.size() < 2) {
+            throw new IllegalArgumentException("At least two replays are needed to combine");
+        }
 
-            Path secondMetadataPath = secondFileSystem.getPath("/metadata.json");
-            String secondMetadataJson = Files.readString(secondMetadataPath);
-            FlashbackMeta secondMetadata = FlashbackMeta.fromJson(FlashbackGson.COMPRESSED.fromJson(secondMetadataJson, JsonObject.class));
-            if (secondMetadata == null) {
-                throw new RuntimeException("Unable to load /metadata.json from second replay");
+        // Read metadata
+        List<FlashbackMeta> metadatas = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            try (FileSystem fileSystem = FileSystems.newFileSystem(inputs.get(i))) {
+                String metadataJson = Files.readString(fileSystem.getPath("/metadata.json"));
+                FlashbackMeta metadata = FlashbackMeta.fromJson(FlashbackGson.COMPRESSED.fromJson(metadataJson, JsonObject.class));
+                if (metadata == null) {
+                    throw new RuntimeException("Unable to load /metadata.json from replay #" + (i+1));
+                }
+                metadatas.add(metadata);
             }
+        }
 
-            if (firstMetadata.dataVersion != secondMetadata.dataVersion) {
+        FlashbackMeta combinedMetadata = metadatas.getFirst();
+        for (FlashbackMeta metadata : metadatas) {
+            if (metadata.dataVersion != combinedMetadata.dataVersion) {
                 throw new RuntimeException("Replays were created on different versions of the game, unable to combine");
             }
+        }
 
-            firstMetadata.replayIdentifier = UUID.randomUUID();
-            firstMetadata.name = replayName;
-            for (Map.Entry<Integer, ReplayMarker> entry : secondMetadata.replayMarkers.entrySet()) {
-                firstMetadata.replayMarkers.put(entry.getKey() + firstMetadata.totalTicks, entry.getValue());
-            }
-            firstMetadata.totalTicks = firstMetadata.totalTicks + secondMetadata.totalTicks;
+        combinedMetadata.replayIdentifier = UUID.randomUUID();
+        combinedMetadata.name = replayName;
 
-            record ReplayChunk(Path path, Int2IntMap levelChunkMappings) {}
-            Map<String, ReplayChunk> newReplayChunks = new HashMap<>();
+        // Chunks of each input, in the same order as the inputs
+        record ReplayChunk(String name, String newName, FlashbackChunkMeta chunkMeta) {}
+        List<List<ReplayChunk>> replayChunks = new ArrayList<>();
 
-            for (String name : firstMetadata.chunks.keySet()) {
-                newReplayChunks.put(name, new ReplayChunk(firstFileSystem.getPath("/" + name), levelChunkMappingsFirst));
-            }
+        List<ReplayChunk> firstChunks = new ArrayList<>();
+        for (Map.Entry<String, FlashbackChunkMeta> entry : combinedMetadata.chunks.entrySet()) {
+            firstChunks.add(new ReplayChunk(entry.getKey(), entry.getKey(), entry.getValue()));
+        }
+        replayChunks.add(firstChunks);
 
-            boolean isFirstChunkOfSecondReplay = true;
-            for (Map.Entry<String, FlashbackChunkMeta> entry : secondMetadata.chunks.entrySet()) {
-                String newName = "c" + firstMetadata.chunks.size() + ".flashback";
-                if (isFirstChunkOfSecondReplay) {
-                    isFirstChunkOfSecondReplay = false;
+        for (FlashbackMeta metadata : metadatas.subList(1, metadatas.size())) {
+            for (Map.Entry<Integer, ReplayMarker> entry : metadata.replayMarkers.entrySet()) {
+                combinedMetadata.replayMarkers.put(entry.getKey() + combinedMetadata.totalTicks, entry.getValue());
+            }
+            combinedMetadata.totalTicks = combinedMetadata.totalTicks + metadata.totalTicks;
+
+            List<ReplayChunk> chunks = new ArrayList<>();
+            boolean isFirstChunk = true;
+            for (Map.Entry<String, FlashbackChunkMeta> entry : metadata.chunks.entrySet()) {
+                String newName = "c" + combinedMetadata.chunks.size() + ".flashback";
+                if (isFirstChunk) {
+                    isFirstChunk = false;
                     entry.getValue().forcePlaySnapshot = true;
                 }
-                firstMetadata.chunks.put(newName, entry.getValue());
-                newReplayChunks.put(newName, new ReplayChunk(secondFileSystem.getPath("/" + entry.getKey()), levelChunkMappingsSecond));
+                combinedMetadata.chunks.put(newName, entry.getValue());
+                chunks.add(new ReplayChunk(entry.getKey(), newName, entry.getValue()));
+            }
+            replayChunks.add(chunks);
+        }
+
+        Path levelChunkCacheTemp = Files.createTempFile("flashback_combine", ".level_chunk_cache");
+
+        // Actually write
+        try (ParallelZipWriter zipWriter = new ParallelZipWriter(output, Deflater.BEST_SPEED, Flashback.getConfig().storeLargeReplayFiles)) {
+            // Copy level chunk caches, entries are copied as-is and only their indices change
+            List<Int2IntMap> levelChunkMappings = new ArrayList<>();
+            LevelChunkCacheCopier levelChunkCacheCopier = new LevelChunkCacheCopier(zipWriter, levelChunkCacheTemp);
+            for (Path input : inputs) {
+                try (FileSystem fileSystem = FileSystems.newFileSystem(input)) {
+                    Int2IntMap mappings = new Int2IntOpenHashMap();
+                    levelChunkCacheCopier.copyFrom(fileSystem, mappings);
+                    levelChunkMappings.add(mappings);
+                }
             }
+            levelChunkCacheCopier.finish();
+
+            for (int i = 0; i < inputs.size(); i++) {
+                try (FileSystem fileSystem = FileSystems.newFileSystem(inputs.get(i))) {
+                    // Write icon
+                    if (i == 0) {
+                        Path iconPath = fileSystem.getPath("/icon.png");
+                        if (Files.exists(iconPath)) {
+                            zipWriter.putFile("icon.png", iconPath);
+                        }
+                    }
 
-            // Actually write
-            FileOutputStream fos = new FileOutputStream(output.toFile());
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            ZipOutputStream zipOut = new ZipOutputStream(bos);
-            zipOut.setLevel(Deflater.BEST_SPEED);
-
-            // Write metadata
-            ZipEntry zipEntry = new ZipEntry("metadata.json");
-            zipOut.putNextEntry(zipEntry);
-            zipOut.write(FlashbackGson.COMPRESSED.toJson(firstMetadata.toJson()).getBytes(StandardCharsets.UTF_8));
-            zipOut.closeEntry();
-
-            // Write chunked level chunk caches
-            int lastCacheIndex = -1;
-            RegistryFriendlyByteBuf chunkCacheOutput = null;
-            for (int i = 0; i < levelChunkPackets.size(); i++) {
-                int cacheIndex = i / ReplayServer.CHUNK_CACHE_SIZE;
-
-                if (chunkCacheOutput == null) {
-                    lastCacheIndex = cacheIndex;
-                    chunkCacheOutput = new RegistryFriendlyByteBuf(Unpooled.buffer(), registryAccess);
-                } else if (cacheIndex != lastCacheIndex) {
-                    byte[] bytes = new byte[chunkCacheOutput.writerIndex()];
-                    chunkCacheOutput.getBytes(0, bytes);
-
-                    zipEntry = new ZipEntry("level_chunk_caches/" + lastCacheIndex);
-                    zipOut.putNextEntry(zipEntry);
-                    zipOut.write(bytes);
-                    zipOut.closeEntry();
-
-                    lastCacheIndex = cacheIndex;
-                    chunkCacheOutput = new RegistryFriendlyByteBuf(Unpooled.buffer(), registryAccess);
+                    // Write chunks
+                    for (ReplayChunk replayChunk : replayChunks.get(i)) {
+                        byte[] bytes = remapChunk(fileSystem.getPath("/" + replayChunk.name), replayChunk.chunkMeta, levelChunkMappings.get(i));
+                        zipWriter.putBytes(replayChunk.newName, bytes);
+                    }
                 }
+            }
 
-                // Write placeholder value for size
-                int startWriterIndex = chunkCacheOutput.writerIndex();
-                chunkCacheOutput.writeInt(-1);
+            // Write metadata, written last because seek point offsets are updated while writing chunks
+            zipWriter.putBytes("metadata.json", FlashbackGson.COMPRESSED.toJson(combinedMetadata.toJson()).getBytes(StandardCharsets.UTF_8));
+        } finally {
+            Files.deleteIfExists(levelChunkCacheTemp);
+        }
+    }
 
-                // Write chunk packet
-                gamePacketCodec.encode(chunkCacheOutput, levelChunkPackets.get(i));
-                int endWriterIndex = chunkCacheOutput.writerIndex();
+    private static byte[] remapChunk(Path path, FlashbackChunkMeta chunkMeta, Int2IntMap levelChunkMappings) throws IOException {
+        byte[] replayChunk = Files.readAllBytes(path);
+        FriendlyByteBuf inputBuf = new FriendlyByteBuf(Unpooled.wrappedBuffer(replayChunk));
+        FriendlyByteBuf outputBuf = new FriendlyByteBuf(Unpooled.buffer(replayChunk.length));
 
-                // Write real size value
-                int size = endWriterIndex - startWriterIndex - 4;
-                chunkCacheOutput.writerIndex(startWriterIndex);
-                chunkCacheOutput.writeInt(size);
-                chunkCacheOutput.writerIndex(endWriterIndex);
+        int magic = inputBuf.readInt();
+        if (magic != Flashback.MAGIC) {
+            throw new RuntimeException("Invalid magic");
+        }
+        outputBuf.writeInt(magic);
+
+        int levelChunkCachedActionId = -1;
+        int seekPointActionId = -1;
+        int actions = inputBuf.readVarInt();
+        outputBuf.writeVarInt(actions);
+        for (int i = 0; i < actions; i++) {
+            ResourceLocation actionName = inputBuf.readResourceLocation();
+            outputBuf.writeResourceLocation(actionName);
+
+            Action action = ActionRegistry.getAction(actionName);
+
+            if (action instanceof ActionLevelChunkCached) {
+                levelChunkCachedActionId = i;
+            } else if (action instanceof ActionSeekPoint) {
+                seekPointActionId = i;
             }
+        }
 
-            if (chunkCacheOutput != null) {
-                byte[] bytes = new byte[chunkCacheOutput.writerIndex()];
-                chunkCacheOutput.getBytes(0, bytes);
+        if (levelChunkCachedActionId == -1) {
+            return replayChunk;
+        }
 
-                zipEntry = new ZipEntry("level_chunk_caches/" + lastCacheIndex);
-                zipOut.putNextEntry(zipEntry);
-                zipOut.write(bytes);
-                zipOut.closeEntry();
-            }
+        int snapshotSize = inputBuf.readInt();
+        if (snapshotSize < 0) {
+            throw new RuntimeException("Invalid snapshot size: " + snapshotSize + " (0x" + Integer.toHexString(snapshotSize) + ")");
+        }
 
-            // Write icon
-            zipEntry = new ZipEntry("icon.png");
-            zipOut.putNextEntry(zipEntry);
-            Files.copy(firstFileSystem.getPath("/icon.png"), zipOut);
-            zipOut.closeEntry();
-
-            // Write chunks
-            for (Map.Entry<String, ReplayChunk> entry : newReplayChunks.entrySet()) {
-                zipEntry = new ZipEntry(entry.getKey());
-                zipOut.putNextEntry(zipEntry);
-
-                Path path = entry.getValue().path();
-                byte[] replayChunk = Files.readAllBytes(path);
-                RegistryFriendlyByteBuf inputBuf = new RegistryFriendlyByteBuf(Unpooled.wrappedBuffer(replayChunk), registryAccess);
-                FriendlyByteBuf outputBuf = new FriendlyByteBuf(Unpooled.buffer());
-
-                int magic = inputBuf.readInt();
-                if (magic != Flashback.MAGIC) {
-                    throw new RuntimeException("Invalid magic");
-                }
-                outputBuf.writeInt(magic);
+        int snapshotInputEnd = inputBuf.readerIndex() + snapshotSize;
 
-                int levelChunkCachedActionId = -1;
-                int actions = inputBuf.readVarInt();
-                outputBuf.writeVarInt(actions);
-                for (int i = 0; i < actions; i++) {
-                    ResourceLocation actionName = inputBuf.readResourceLocation();
-                    outputBuf.writeResourceLocation(actionName);
+        int snapshotOutputWriterIndex = outputBuf.writerIndex();
+        outputBuf.writeInt(0xDEADBEEF);
+        int snapshotStartWriterIndex = outputBuf.writerIndex();
 
-                    Action action = ActionRegistry.getAction(actionName);
+        Int2IntMap seekPointOffsets = new Int2IntOpenHashMap();
+        ActionRemapper remapper = new ActionRemapper(levelChunkCachedActionId, seekPointActionId,
+            levelChunkMappings, seekPointOffsets);
 
-                    if (action instanceof ActionLevelChunkCached) {
-                        levelChunkCachedActionId = i;
-                    }
-                }
+        remapper.copyActions(inputBuf, snapshotInputEnd, outputBuf);
+        int snapshotEndWriterIndex = outputBuf.writerIndex();
+        remapper.copyActions(inputBuf, inputBuf.writerIndex(), outputBuf);
 
-                if (levelChunkCachedActionId == -1) {
-                    Files.copy(entry.getValue().path, zipOut);
-                } else {
-                    int snapshotSize = inputBuf.readInt();
-                    if (snapshotSize < 0) {
-                        throw new RuntimeException("Invalid snapshot size: " + snapshotSize + " (0x" + Integer.toHexString(snapshotSize) + ")");
-                    }
+        int endWriterIndex = outputBuf.writerIndex();
+        outputBuf.writerIndex(snapshotOutputWriterIndex);
+        outputBuf.writeInt(snapshotEndWriterIndex - snapshotStartWriterIndex);
+        outputBuf.writerIndex(endWriterIndex);
 
-                    int snapshotInputEnd = inputBuf.readerIndex() + snapshotSize;
-
-                    int snapshotOutputWriterIndex = outputBuf.writerIndex();
-                    outputBuf.writeInt(0xDEADBEEF);
-                    int snapshotStartWriterIndex = outputBuf.writerIndex();
-                    int snapshotEndWriterIndex = outputBuf.writerIndex();
-
-                    while (inputBuf.readerIndex() < inputBuf.writerIndex()) {
-                        boolean inSnapshot = inputBuf.readerIndex() < snapshotInputEnd;
-
-                        int id = inputBuf.readVarInt();
-                        int size = inputBuf.readInt();
-                        if (id == levelChunkCachedActionId) {
-                            int cachedChunkId = inputBuf.readVarInt();
-
-                            if (!entry.getValue().levelChunkMappings.containsKey(cachedChunkId)) {
-                                throw new RuntimeException("Missing cached chunk id " + cachedChunkId);
-                            }
-
-                            int newCachedChunkId = entry.getValue().levelChunkMappings.get(cachedChunkId);
-
-                            outputBuf.writeVarInt(id);
-                            int sizeWriterIndex = outputBuf.writerIndex();
-                            outputBuf.writeInt(0);
-                            int cachedIdWriterIndex = outputBuf.writerIndex();
-                            outputBuf.writeVarInt(newCachedChunkId);
-                            int endWriterIndex = outputBuf.writerIndex();
-
-                            outputBuf.writerIndex(sizeWriterIndex);
-                            outputBuf.writeInt(endWriterIndex - cachedIdWriterIndex);
-                            outputBuf.writerIndex(endWriterIndex);
-                        } else {
-                            outputBuf.writeVarInt(id);
-                            outputBuf.writeInt(size);
-                            outputBuf.writeBytes(inputBuf, size);
-                        }
+        // Cached chunk ids may have changed size, so seek point offsets need to be updated
+        chunkMeta.seekPoints.entrySet().removeIf(seekPoint -> !seekPointOffsets.containsKey((int) seekPoint.getValue()));
+        chunkMeta.seekPoints.replaceAll((tick, offset) -> seekPointOffsets.get((int) offset));
 
-                        if (inSnapshot) {
-                            snapshotEndWriterIndex = outputBuf.writerIndex();
-                        }
+        byte[] bytes = new byte[outputBuf.writerIndex()];
+        outputBuf.getBytes(0, bytes);
+        return bytes;
+    }
+
+    private record ActionRemapper(int levelChunkCachedActionId, int seekPointActionId, Int2IntMap levelChunkMappings, Int2IntMap seekPointOffsets) {
+        private void copyActions(FriendlyByteBuf inputBuf, int inputEnd, FriendlyByteBuf outputBuf) {
+            while (inputBuf.readerIndex() < inputEnd) {
+                int inputOffset = inputBuf.readerIndex();
+                int outputOffset = outputBuf.writerIndex();
+
+                int id = inputBuf.readVarInt();
+                int size = inputBuf.readInt();
+                if (id == this.levelChunkCachedActionId) {
+                    int cachedChunkId = inputBuf.readVarInt();
+
+                    if (!this.levelChunkMappings.containsKey(cachedChunkId)) {
+                        throw new RuntimeException("Missing cached chunk id " + cachedChunkId);
                     }
 
+                    int newCachedChunkId = this.levelChunkMappings.get(cachedChunkId);
+
+                    outputBuf.writeVarInt(id);
+                    int sizeWriterIndex = outputBuf.writerIndex();
+                    outputBuf.writeInt(0);
+                    int cachedIdWriterIndex = outputBuf.writerIndex();
+                    outputBuf.writeVarInt(newCachedChunkId);
                     int endWriterIndex = outputBuf.writerIndex();
-                    outputBuf.writerIndex(snapshotOutputWriterIndex);
-                    outputBuf.writeInt(snapshotEndWriterIndex - snapshotStartWriterIndex);
+
+                    outputBuf.writerIndex(sizeWriterIndex);
+                    outputBuf.writeInt(endWriterIndex - cachedIdWriterIndex);
                     outputBuf.writerIndex(endWriterIndex);
+                } else if (id == this.seekPointActionId) {
+                    // Seek points contain nested actions which also need their cached chunk ids remapped
+                    outputBuf.writeVarInt(id);
+                    int sizeWriterIndex = outputBuf.writerIndex();
+                    outputBuf.writeInt(0);
+                    int contentWriterIndex = outputBuf.writerIndex();
+                    this.copyActions(inputBuf, inputBuf.readerIndex() + size, outputBuf);
+                    int endWriterIndex = outputBuf.writerIndex();
 
-                    byte[] bytes = new byte[outputBuf.writerIndex()];
-                    outputBuf.getBytes(0, bytes);
-                    zipOut.write(bytes);
-                }
+                    outputBuf.writerIndex(sizeWriterIndex);
+                    outputBuf.writeInt(endWriterIndex - contentWriterIndex);
+                    outputBuf.writerIndex(endWriterIndex);
 
-                zipOut.closeEntry();
+                    this.seekPointOffsets.put(inputOffset, outputOffset);
+                } else {
+                    outputBuf.writeVarInt(id);
+                    outputBuf.writeInt(size);
+                    outputBuf.writeBytes(inputBuf, size);
+                }
             }
-
-            zipOut.close();
-            bos.close();
-            fos.close();
         }
     }
 
-    private static void extractChunks(RegistryAccess registryAccess, FileSystem fileSystem, StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> gamePacketCodec,
-            List<ClientboundLevelChunkWithLightPacket> packets, Int2IntMap levelChunkMappings) throws IOException {
-        Path levelChunkCachePath = fileSystem.getPath("/level_chunk_cache");
-        if (Files.exists(levelChunkCachePath)) {
-            loadLevelChunkCache(gamePacketCodec, registryAccess, levelChunkCachePath, 0, packets, levelChunkMappings);
+    // Appends the level chunk cache entries of each replay into new cache files without decoding them
+    // Each output file is staged in a temp file so that only one entry is held in memory at a time
+    private static class LevelChunkCacheCopier {
+        private final ParallelZipWriter zipWriter;
+        private final Path tempFile;
+        private DataOutputStream output = null;
+        private int written = 0;
+
+        private LevelChunkCacheCopier(ParallelZipWriter zipWriter, Path tempFile) {
+            this.zipWriter = zipWriter;
+            this.tempFile = tempFile;
         }
 
-        int index = 0;
-        while (true) {
-            levelChunkCachePath = fileSystem.getPath("/level_chunk_caches/"+index);
+        private void copyFrom(FileSystem fileSystem, Int2IntMap levelChunkMappings) throws IOException {
+            Path levelChunkCachePath = fileSystem.getPath("/level_chunk_cache");
             if (Files.exists(levelChunkCachePath)) {
-                loadLevelChunkCache(gamePacketCodec, registryAccess, levelChunkCachePath, index * ReplayServer.CHUNK_CACHE_SIZE, packets, levelChunkMappings);
-                index += 1;
-            } else {
-                break;
+                this.copyCacheFile(levelChunkCachePath, 0, levelChunkMappings);
             }
-        }
-    }
 
-    private static void loadLevelChunkCache(StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> gamePacketCodec, RegistryAccess registryAccess,
-            Path levelChunkCachePath, int chunkCacheIndex, List<ClientboundLevelChunkWithLightPacket> packets, Int2IntMap levelChunkMappings) throws IOException {
-        try (InputStream is = Files.newInputStream(levelChunkCachePath)) {
+            int index = 0;
             while (true) {
-                byte[] sizeBuffer = is.readNBytes(4);
-                if (sizeBuffer.length < 4) {
+                levelChunkCachePath = fileSystem.getPath("/level_chunk_caches/"+index);
+                if (Files.exists(levelChunkCachePath)) {
+                    this.copyCacheFile(levelChunkCachePath, index * ReplayServer.CHUNK_CACHE_SIZE, levelChunkMappings);
+                    index += 1;
+                } else {
                     break;
                 }
+            }
+        }
 
-                int size = (sizeBuffer[0] & 0xff) << 24 |
-                    (sizeBuffer[1] & 0xff) << 16 |
-                    (sizeBuffer[2] & 0xff) <<  8 |
-                    sizeBuffer[3] & 0xff;
+        private void copyCacheFile(Path levelChunkCachePath, int chunkCacheIndex, Int2IntMap levelChunkMappings) throws IOException {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(levelChunkCachePath)))) {
+                while (true) {
+                    int size;
+                    try {
+                        size = dis.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
 
-                byte[] chunk = is.readNBytes(size);
-                if (chunk.length < size) {
-                    Flashback.LOGGER.error("Ran out of bytes while reading level_chunk_cache, needed {}, had {}",
-                        size, chunk.length);
-                    break;
-                }
+                    byte[] chunk = dis.readNBytes(Math.max(0, size));
+                    if (size < 0 || chunk.length < size) {
+                        Flashback.LOGGER.error("Ran out of bytes while reading level_chunk_cache, needed {}, had {}",
+                            size, chunk.length);
+                        break;
+                    }
 
-                RegistryFriendlyByteBuf registryFriendlyByteBuf = new RegistryFriendlyByteBuf(Unpooled.wrappedBuffer(chunk), registryAccess);
+                    levelChunkMappings.put(chunkCacheIndex, this.written);
+                    this.writeEntry(chunk);
 
-                try {
-                    Packet<?> packet = gamePacketCodec.decode(registryFriendlyByteBuf);
-                    if (packet instanceof ClientboundLevelChunkWithLightPacket levelChunkWithLightPacket) {
-                        levelChunkMappings.put(chunkCacheIndex, packets.size());
-                        packets.add(levelChunkWithLightPacket);
-                    } else {
-                        throw new IllegalStateException("Level chunk cache contains wrong packet: " + packet);
-                    }
-                } catch (Exception e) {
-                    Flashback.LOGGER.error("Encountered error while reading level_chunk_cache", e);
+                    chunkCacheIndex += 1;
                 }
+            }
+        }
+
+        private void writeEntry(byte[] chunk) throws IOException {
+            if (this.output != null && this.written % ReplayServer.CHUNK_CACHE_SIZE == 0) {
+                this.flush();
+            }
+            if (this.output == null) {
+                this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.tempFile)));
+            }
+
+            this.output.writeInt(chunk.length);
+            this.output.write(chunk);
+            this.written += 1;
+        }
+
+        private void flush() throws IOException {
+            this.output.close();
+            this.output = null;
+
+            int cacheIndex = (this.written - 1) / ReplayServer.CHUNK_CACHE_SIZE;
+            this.zipWriter.putFile("level_chunk_caches/" + cacheIndex, this.tempFile);
+        }
 
-                chunkCacheIndex += 1;
+        private void finish() throws IOException {
+            if (this.output != null) {
+                this.flush();
             }
         }
     }
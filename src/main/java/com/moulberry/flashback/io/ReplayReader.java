@@ -3,19 +3,26 @@ package com.moulberry.flashback.io;
 import com.moulberry.flashback.Flashback;
 import com.moulberry.flashback.playback.ReplayServer;
 import com.moulberry.flashback.action.Action;
+import com.moulberry.flashback.action.ActionConfigurationPacket;
+import com.moulberry.flashback.action.ActionGamePacket;
+import com.moulberry.flashback.action.ActionLevelChunkCached;
+import com.moulberry.flashback.action.ActionNextTick;
 import com.moulberry.flashback.action.ActionRegistry;
+import com.moulberry.flashback.action.ActionSeekPoint;
 import io.netty.buffer.ByteBuf;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
-import it.unimi.dsi.fastutil.ints.IntSet;
 import net.minecraft.core.RegistryAccess;
 import net.minecraft.network.FriendlyByteBuf;
 import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientGamePacketListener;
 import net.minecraft.resources.ResourceLocation;
 
 public class ReplayReader {
 
+    private static final int PREFETCH_LOOKAHEAD_BYTES = 512 * 1024;
+
     private final FriendlyByteBuf friendlyByteBuf;
     private final int replaySnapshotOffset;
     private final int replayActionsOffset;
@@ -23,6 +30,9 @@ public class ReplayReader {
     private ResourceLocation lastActionName = null;
     private final Int2ObjectMap<Action> actions = new Int2ObjectOpenHashMap<>();
     private final Int2ObjectMap<ResourceLocation> ignoredActions = new Int2ObjectOpenHashMap<>();
+    private int levelChunkCachedActionId = -1;
+    private int prefetchedUpTo = -1;
+    private final PacketDecodeAhead decodeAhead;
 
     public ReplayReader(ByteBuf byteBuf, RegistryAccess registryAccess) {
         this.friendlyByteBuf = new FriendlyByteBuf(byteBuf);
@@ -33,6 +43,10 @@ public class ReplayReader {
             throw new RuntimeException("Invalid magic");
         }
 
+        int gamePacketActionId = -1;
+        int configurationActionId = -1;
+        int nextTickActionId = -1;
+
         int actions = this.friendlyByteBuf.readVarInt();
         for (int i = 0; i < actions; i++) {
             ResourceLocation actionName = this.friendlyByteBuf.readResourceLocation();
@@ -46,9 +60,20 @@ public class ReplayReader {
                 }
             } else {
                 this.actions.put(i, action);
+                if (action == ActionLevelChunkCached.INSTANCE) {
+                    this.levelChunkCachedActionId = i;
+                } else if (action == ActionGamePacket.INSTANCE) {
+                    gamePacketActionId = i;
+                } else if (action == ActionConfigurationPacket.INSTANCE) {
+                    configurationActionId = i;
+                } else if (action == ActionNextTick.INSTANCE) {
+                    nextTickActionId = i;
+                }
             }
         }
 
+        this.decodeAhead = new PacketDecodeAhead(gamePacketActionId, configurationActionId, nextTickActionId);
+
         int snapshotSize = this.friendlyByteBuf.readInt();
         if (snapshotSize < 0) {
             throw new RuntimeException("Invalid snapshot size: " + snapshotSize + " (0x" + Integer.toHexString(snapshotSize) + ")");
@@ -59,19 +84,61 @@ public class ReplayReader {
     }
 
     public void changeRegistryAccess(RegistryAccess registryAccess) {
+        // Called every time the chunk is fetched, so only invalidate if the registries actually changed
+        if (this.registryAccess != registryAccess) {
+            this.decodeAhead.invalidate();
+            // The level chunk cache drops prefetches that were decoded with the old registries
+            this.prefetchedUpTo = -1;
+        }
         this.registryAccess = registryAccess;
     }
 
-    public void resetToStart() {
+    // The underlying buffer may be unmapped afterwards, so the reader must not be used again
+    public void close() {
+        this.decodeAhead.close();
+    }
+
+    public void resetToStart(ReplayServer replayServer) {
         this.friendlyByteBuf.readerIndex(this.replayActionsOffset);
+        this.prefetchedUpTo = -1;
+        this.decodeAhead.invalidate();
+        replayServer.resetEntityPositionDeltas();
     }
 
     public void handleSnapshot(ReplayServer replayServer) {
         this.friendlyByteBuf.readerIndex(this.replaySnapshotOffset);
+        this.prefetchedUpTo = -1;
+        this.decodeAhead.invalidate();
+        this.handleSnapshotActions(replayServer, this.replayActionsOffset);
+    }
 
+    public void handleSeekPoint(ReplayServer replayServer, int offset) {
+        if (offset < this.replayActionsOffset || offset >= this.friendlyByteBuf.writerIndex()) {
+            throw new RuntimeException("Invalid seek point offset: " + offset);
+        }
+        this.friendlyByteBuf.readerIndex(offset);
+        this.prefetchedUpTo = -1;
+        this.decodeAhead.invalidate();
+
+        int id = this.friendlyByteBuf.readVarInt();
+        Action action = this.actions.get(id);
+        if (action != ActionSeekPoint.INSTANCE) {
+            throw new RuntimeException("Expected seek point at offset " + offset + ", found action id " + id);
+        }
+        this.lastActionName = action.name();
+
+        int size = this.friendlyByteBuf.readInt();
+        int end = this.friendlyByteBuf.readerIndex() + size;
+        this.handleSnapshotActions(replayServer, end);
+    }
+
+    private void handleSnapshotActions(ReplayServer replayServer, int end) {
         replayServer.isProcessingSnapshot = true;
+        replayServer.resetEntityPositionDeltas();
+
+        while (this.friendlyByteBuf.readerIndex() < end) {
+            this.prefetchUpcomingLevelChunks(replayServer);
 
-        while (this.friendlyByteBuf.readerIndex() < this.replayActionsOffset) {
             int id = this.friendlyByteBuf.readVarInt();
             Action action = this.actions.get(id);
             if (action == null) {
@@ -95,6 +162,7 @@ public class ReplayReader {
             }
         }
 
+        replayServer.discardStaleSnapshotEntities();
         replayServer.isProcessingSnapshot = false;
     }
 
@@ -106,6 +174,15 @@ public class ReplayReader {
             this.friendlyByteBuf.readerIndex(this.replayActionsOffset);
         }
 
+        this.prefetchUpcomingLevelChunks(replayServer);
+
+        // Packets decoded ahead of time can't be used while the registries are about to change
+        int actionStart = this.friendlyByteBuf.readerIndex();
+        boolean pendingConfiguration = replayServer.hasPendingConfiguration();
+        if (!pendingConfiguration) {
+            this.decodeAhead.schedule(this.friendlyByteBuf, actionStart, replayServer.getGamePacketCodec(), this.registryAccess);
+        }
+
         int id = this.friendlyByteBuf.readVarInt();
         Action action = this.actions.get(id);
         if (action == null) {
@@ -120,6 +197,16 @@ public class ReplayReader {
         this.lastActionName = action.name();
 
         int size = this.friendlyByteBuf.readInt();
+
+        if (action == ActionGamePacket.INSTANCE && !pendingConfiguration) {
+            Packet<? super ClientGamePacketListener> packet = this.decodeAhead.take(actionStart);
+            if (packet != null) {
+                this.friendlyByteBuf.skipBytes(size);
+                replayServer.handleDecodedGamePacket(packet);
+                return true;
+            }
+        }
+
         ByteBuf slice = this.friendlyByteBuf.readSlice(size);
         RegistryFriendlyByteBuf registryFriendlyByteBuf = new RegistryFriendlyByteBuf(slice, this.registryAccess);
         action.handle(replayServer, registryFriendlyByteBuf);
@@ -131,4 +218,45 @@ public class ReplayReader {
         return true;
     }
 
+    // Scans ahead of the reader and starts decoding cached level chunks in the background,
+    // so they are usually ready by the time the action is handled
+    private void prefetchUpcomingLevelChunks(ReplayServer replayServer) {
+        if (this.levelChunkCachedActionId < 0) {
+            return;
+        }
+
+        int readerIndex = this.friendlyByteBuf.readerIndex();
+        if (this.prefetchedUpTo - readerIndex > PREFETCH_LOOKAHEAD_BYTES / 2) {
+            return;
+        }
+
+        int writerIndex = this.friendlyByteBuf.writerIndex();
+        int end = (int) Math.min(writerIndex, (long) readerIndex + PREFETCH_LOOKAHEAD_BYTES);
+        FriendlyByteBuf scan = new FriendlyByteBuf(this.friendlyByteBuf.duplicate());
+        scan.readerIndex(Math.max(readerIndex, this.prefetchedUpTo));
+
+        try {
+            while (scan.readerIndex() < end) {
+                int actionStart = scan.readerIndex();
+                int id = scan.readVarInt();
+                int size = scan.readInt();
+                if (size < 0 || size > scan.readableBytes()) {
+                    break;
+                }
+
+                if (id == this.levelChunkCachedActionId) {
+                    int index = new FriendlyByteBuf(scan.slice(scan.readerIndex(), size)).readVarInt();
+                    if (!replayServer.prefetchLevelChunk(index)) {
+                        scan.readerIndex(actionStart);
+                        break;
+                    }
+                }
+
+                scan.skipBytes(size);
+            }
+        } catch (IndexOutOfBoundsException ignored) {}
+
+        this.prefetchedUpTo = scan.readerIndex();
+    }
+
 }
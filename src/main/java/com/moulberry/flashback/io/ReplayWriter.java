@@ -3,18 +3,36 @@ package com.moulberry.flashback.io;
 import com.moulberry.flashback.Flashback;
 import com.moulberry.flashback.action.Action;
 import com.moulberry.flashback.action.ActionRegistry;
+import com.moulberry.flashback.action.ActionSeekPoint;
+import com.moulberry.flashback.record.RecordingMetrics;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.PooledByteBufAllocator;
 import it.unimi.dsi.fastutil.objects.Reference2IntMap;
 import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import net.minecraft.core.RegistryAccess;
 import net.minecraft.network.RegistryFriendlyByteBuf;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.Objects;
+import java.util.TreeMap;
 
 public class ReplayWriter {
 
+    // Data is streamed to the part file whenever this much has been buffered between actions
+    private static final int FLUSH_THRESHOLD = 1024 * 1024;
+
+    private final Path partFile;
+    private final RecordingMetrics metrics;
+    private FileChannel channel;
+    private long flushedBytes = 0;
+
     private final ByteBuf dataBufferInner;
     private RegistryFriendlyByteBuf dataBuffer;
     private Reference2IntMap<Action> registeredActions;
@@ -22,16 +40,23 @@ public class ReplayWriter {
 
     private RegistryAccess registryAccess;
 
-    private int snapshotSizeWriterIndex = -1;
+    // Snapshots and seek points can span multiple flushes, so their size positions are relative to the start of the file
+    private long snapshotSizePosition = -1;
     private int actionSizeWriterIndex = -1;
+    private long seekPointSizePosition = -1;
+    private int seekPointTick = -1;
+    private TreeMap<Integer, Integer> seekPoints = new TreeMap<>();
 
     private static final int STATE_EMPTY = 0;
     private static final int STATE_WRITING_SNAPSHOT = 1;
     private static final int STATE_WRITING_DATA = 2;
+    private static final int STATE_WRITING_SEEK_POINT = 3;
     public int state = STATE_EMPTY;
 
-    public ReplayWriter(RegistryAccess registryAccess) {
-        this.dataBufferInner = Unpooled.buffer();
+    public ReplayWriter(RegistryAccess registryAccess, Path partFile, RecordingMetrics metrics) {
+        this.partFile = partFile;
+        this.metrics = metrics;
+        this.dataBufferInner = PooledByteBufAllocator.DEFAULT.directBuffer(FLUSH_THRESHOLD);
         this.dataBuffer = new RegistryFriendlyByteBuf(this.dataBufferInner, registryAccess);
         this.registryAccess = registryAccess;
         this.writeHeader();
@@ -43,6 +68,14 @@ public class ReplayWriter {
 
         // Reset to start
         this.dataBuffer.writerIndex(0);
+        this.flushedBytes = 0;
+
+        try {
+            this.channel = FileChannel.open(this.partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open " + this.partFile, e);
+        }
 
         // Magic
         this.dataBuffer.writeInt(Flashback.MAGIC);
@@ -55,6 +88,8 @@ public class ReplayWriter {
             this.registeredActions.put(action, this.registeredActions.size());
         }
 
+        this.seekPoints = new TreeMap<>();
+
         this.state = STATE_EMPTY;
     }
 
@@ -69,7 +104,7 @@ public class ReplayWriter {
     public void startSnapshot() {
         if (this.state == STATE_EMPTY) {
             this.state = STATE_WRITING_SNAPSHOT;
-            this.snapshotSizeWriterIndex = this.dataBuffer.writerIndex();
+            this.snapshotSizePosition = this.position();
             this.dataBuffer.writeInt(0xDEADBEEF);
         } else {
             throw new IllegalStateException("Can only start snapshot in STATE_EMPTY");
@@ -80,23 +115,80 @@ public class ReplayWriter {
         if (this.state == STATE_WRITING_SNAPSHOT) {
             this.state = STATE_WRITING_DATA;
 
-            if (this.snapshotSizeWriterIndex < 0) {
-                throw new IllegalStateException("Snapshot size index wasn't set (" + this.snapshotSizeWriterIndex + ")");
+            if (this.snapshotSizePosition < 0) {
+                throw new IllegalStateException("Snapshot size index wasn't set (" + this.snapshotSizePosition + ")");
             }
 
-            int endPosition = this.dataBuffer.writerIndex();
-            int written = this.dataBuffer.writerIndex() - this.snapshotSizeWriterIndex - 4;
-
-            this.dataBuffer.writerIndex(this.snapshotSizeWriterIndex);
-            this.dataBuffer.writeInt(written);
-            this.dataBuffer.writerIndex(endPosition);
-
-            this.snapshotSizeWriterIndex = -1;
+            this.patchSize(this.snapshotSizePosition);
+            this.snapshotSizePosition = -1;
+            this.flushIfNeeded();
         } else {
             throw new IllegalStateException("Can only end snapshot in STATE_WRITING_SNAPSHOT");
         }
     }
 
+    public void startSeekPoint(int tick) {
+        if (this.state != STATE_WRITING_DATA) {
+            throw new IllegalStateException("Can only start seek point in STATE_WRITING_DATA");
+        }
+        if (this.writingAction != null) {
+            throw new IllegalStateException("startSeekPoint() called while still writing " + this.writingAction.name());
+        }
+
+        int id = this.registeredActions.getInt(ActionSeekPoint.INSTANCE);
+        if (id < 0) {
+            throw new RuntimeException("Unknown action: " + ActionSeekPoint.INSTANCE.name());
+        }
+
+        this.state = STATE_WRITING_SEEK_POINT;
+        this.seekPointTick = tick;
+        this.seekPoints.put(tick, Math.toIntExact(this.position()));
+
+        this.dataBuffer.writeVarInt(id);
+        this.seekPointSizePosition = this.position();
+        this.dataBuffer.writeInt(0xDEADBEEF);
+    }
+
+    public void endSeekPoint() {
+        if (this.state != STATE_WRITING_SEEK_POINT) {
+            throw new IllegalStateException("Can only end seek point in STATE_WRITING_SEEK_POINT");
+        }
+        if (this.writingAction != null) {
+            throw new IllegalStateException("endSeekPoint() called while still writing " + this.writingAction.name());
+        }
+        if (this.seekPointSizePosition < 0) {
+            throw new IllegalStateException("Seek point size index wasn't set (" + this.seekPointSizePosition + ")");
+        }
+
+        this.state = STATE_WRITING_DATA;
+
+        this.patchSize(this.seekPointSizePosition);
+        this.seekPointSizePosition = -1;
+        this.seekPointTick = -1;
+        this.flushIfNeeded();
+    }
+
+    // Drops the seek point that is being written, nothing is flushed while writing one so it is still in the buffer
+    public void abortSeekPoint() {
+        if (this.state != STATE_WRITING_SEEK_POINT) {
+            throw new IllegalStateException("Can only abort seek point in STATE_WRITING_SEEK_POINT");
+        }
+        if (this.writingAction != null) {
+            throw new IllegalStateException("abortSeekPoint() called while still writing " + this.writingAction.name());
+        }
+
+        int start = this.seekPoints.remove(this.seekPointTick);
+        this.dataBuffer.writerIndex(Math.toIntExact(start - this.flushedBytes));
+
+        this.state = STATE_WRITING_DATA;
+        this.seekPointSizePosition = -1;
+        this.seekPointTick = -1;
+    }
+
+    public TreeMap<Integer, Integer> getSeekPoints() {
+        return this.seekPoints;
+    }
+
     public void startAndFinishAction(Action action) {
         Objects.requireNonNull(action);
         if (this.writingAction != null) {
@@ -112,6 +204,8 @@ public class ReplayWriter {
         this.dataBuffer.writeInt(0);
 
         this.actionSizeWriterIndex = -1;
+        this.metrics.recordAction(action.name(), 0);
+        this.flushIfNeeded();
     }
 
     public void startAction(Action action) {
@@ -153,6 +247,64 @@ public class ReplayWriter {
         this.dataBuffer.writerIndex(endPosition);
 
         this.actionSizeWriterIndex = -1;
+        this.metrics.recordAction(action.name(), written);
+        this.flushIfNeeded();
+    }
+
+    private long position() {
+        return this.flushedBytes + this.dataBuffer.writerIndex();
+    }
+
+    // Writes the number of bytes written after the size int at sizePosition
+    private void patchSize(long sizePosition) {
+        int written = Math.toIntExact(this.position() - sizePosition - 4);
+
+        if (sizePosition >= this.flushedBytes) {
+            this.dataBuffer.setInt((int) (sizePosition - this.flushedBytes), written);
+            return;
+        }
+
+        try {
+            ByteBuffer sizeBuffer = ByteBuffer.allocate(4).putInt(0, written);
+            while (sizeBuffer.hasRemaining()) {
+                this.channel.write(sizeBuffer, sizePosition + sizeBuffer.position());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write to " + this.partFile, e);
+        }
+    }
+
+    private void flushIfNeeded() {
+        if (this.state != STATE_WRITING_SEEK_POINT && this.dataBuffer.writerIndex() >= FLUSH_THRESHOLD) {
+            this.flush();
+        }
+    }
+
+    private void flush() {
+        int bytes = this.dataBuffer.writerIndex();
+        if (bytes == 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            ByteBuffer nioBuffer = this.dataBufferInner.nioBuffer(0, bytes);
+            long position = this.flushedBytes;
+            while (nioBuffer.hasRemaining()) {
+                position += this.channel.write(nioBuffer, position);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write to " + this.partFile, e);
+        }
+
+        this.flushedBytes += bytes;
+        this.dataBuffer.writerIndex(0);
+        this.metrics.record(RecordingMetrics.Stage.CHUNK_FLUSH, start);
+
+        // A single large action may have grown the buffer, shrink it back down
+        if (this.dataBufferInner.capacity() > FLUSH_THRESHOLD * 4) {
+            this.dataBufferInner.capacity(FLUSH_THRESHOLD);
+        }
     }
 
     public RegistryFriendlyByteBuf friendlyByteBuf() {
@@ -163,17 +315,38 @@ public class ReplayWriter {
         return this.registryAccess;
     }
 
-    public byte[] popBytes() {
+    // Finishes the current chunk, moving it to destination, and starts a new one
+    public void finishChunk(Path destination) {
         if (this.writingAction != null) {
-            throw new IllegalStateException("popBytes() called while still writing action " + this.writingAction.name());
+            throw new IllegalStateException("finishChunk() called while still writing action " + this.writingAction.name());
+        }
+        if (this.state == STATE_WRITING_SEEK_POINT) {
+            throw new IllegalStateException("finishChunk() called while still writing seek point for tick " + this.seekPointTick);
         }
 
-        byte[] replay = new byte[this.dataBuffer.writerIndex()];
-        this.dataBuffer.getBytes(0, replay);
+        long start = System.nanoTime();
+        try {
+            this.flush();
+            this.channel.force(false);
+            this.channel.close();
+            Files.move(this.partFile, destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to finish replay chunk " + destination, e);
+        }
+        this.metrics.record(RecordingMetrics.Stage.CHUNK_FINISH, start);
 
         this.writeHeader();
+    }
 
-        return replay;
+    // Discards the chunk that is currently being written
+    public void close() {
+        try {
+            this.channel.close();
+            Files.deleteIfExists(this.partFile);
+        } catch (IOException e) {
+            Flashback.LOGGER.error("Unable to delete {}", this.partFile, e);
+        }
+        this.dataBufferInner.release();
     }
 
 }
@@ -0,0 +1,230 @@
+package com.moulberry.flashback.io;
+
+import com.moulberry.flashback.Flashback;
+import com.moulberry.flashback.action.ActionGamePacket;
+import com.moulberry.flashback.action.ActionLevelChunkCached;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.Int2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientGamePacketListener;
+import net.minecraft.network.protocol.game.ClientboundBlockEntityDataPacket;
+import net.minecraft.network.protocol.game.ClientboundBlockUpdatePacket;
+import net.minecraft.network.protocol.game.ClientboundChunksBiomesPacket;
+import net.minecraft.network.protocol.game.ClientboundForgetLevelChunkPacket;
+import net.minecraft.network.protocol.game.ClientboundLightUpdatePacket;
+import net.minecraft.network.protocol.game.ClientboundLoginPacket;
+import net.minecraft.network.protocol.game.ClientboundMapItemDataPacket;
+import net.minecraft.network.protocol.game.ClientboundRespawnPacket;
+import net.minecraft.network.protocol.game.ClientboundSectionBlocksUpdatePacket;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.saveddata.maps.MapDecoration;
+import net.minecraft.world.level.saveddata.maps.MapId;
+import net.minecraft.world.level.saveddata.maps.MapItemSavedData;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+// Follows the chunks and maps that playback has loaded at the current point of the recording, using only the packets
+// that have been written. Seek points are built from this instead of capturing every chunk on the client again:
+// a chunk is written as a reference to its chunk cache entry followed by the changes since, and a map as its merged state
+// Only valid after a full snapshot has been written, and until the recorded changes grow too large
+// Saver thread only
+class SeekPointTracker {
+
+    private static final int MAX_CHANGE_BYTES = 16 * 1024 * 1024;
+    private static final int MAP_SIZE = 128;
+
+    private static class TrackedChunk {
+        private int cacheIndex;
+        private final List<byte[]> changes = new ArrayList<>(0);
+        private int changeBytes = 0;
+
+        private TrackedChunk(int cacheIndex) {
+            this.cacheIndex = cacheIndex;
+        }
+    }
+
+    private static class TrackedMap {
+        private byte scale = 0;
+        private boolean locked = false;
+        private List<MapDecoration> decorations = List.of();
+        private byte[] colors = null;
+    }
+
+    private final Long2ObjectMap<TrackedChunk> chunks = new Long2ObjectLinkedOpenHashMap<>();
+    private final Int2ObjectMap<TrackedMap> maps = new Int2ObjectLinkedOpenHashMap<>();
+    private ResourceKey<Level> dimension = null;
+    private int changeBytes = 0;
+    private boolean complete = false;
+    private boolean suspended = false;
+    private RegistryFriendlyByteBuf encodeBuffer = null;
+
+    public boolean isComplete() {
+        return this.complete;
+    }
+
+    // Called before a full snapshot, which writes every chunk and map that is loaded
+    public void reset() {
+        this.clear();
+        this.complete = true;
+    }
+
+    // The packets of a seek point itself don't change what is loaded
+    public void setSuspended(boolean suspended) {
+        this.suspended = suspended;
+    }
+
+    private void clear() {
+        this.chunks.clear();
+        this.maps.clear();
+        this.changeBytes = 0;
+    }
+
+    public void onChunkCached(int x, int z, int cacheIndex) {
+        if (!this.complete || this.suspended) {
+            return;
+        }
+
+        long pos = ChunkPos.asLong(x, z);
+        TrackedChunk chunk = this.chunks.get(pos);
+        if (chunk == null) {
+            this.chunks.put(pos, new TrackedChunk(cacheIndex));
+        } else {
+            chunk.cacheIndex = cacheIndex;
+            this.changeBytes -= chunk.changeBytes;
+            chunk.changes.clear();
+            chunk.changeBytes = 0;
+        }
+    }
+
+    public void onGamePacket(Packet<? super ClientGamePacketListener> packet, StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> codec,
+            RegistryAccess registryAccess) {
+        if (!this.complete || this.suspended) {
+            return;
+        }
+
+        switch (packet) {
+            case ClientboundLoginPacket loginPacket -> {
+                this.clear();
+                this.dimension = loginPacket.commonPlayerSpawnInfo().dimension();
+            }
+            case ClientboundRespawnPacket respawnPacket -> {
+                ResourceKey<Level> dimension = respawnPacket.commonPlayerSpawnInfo().dimension();
+                if (dimension != this.dimension) {
+                    this.chunks.clear();
+                    this.changeBytes = 0;
+                    this.dimension = dimension;
+                }
+            }
+            case ClientboundForgetLevelChunkPacket forgetPacket -> {
+                TrackedChunk chunk = this.chunks.remove(forgetPacket.pos().toLong());
+                if (chunk != null) {
+                    this.changeBytes -= chunk.changeBytes;
+                }
+            }
+            case ClientboundBlockUpdatePacket blockUpdatePacket ->
+                this.addChange(ChunkPos.asLong(blockUpdatePacket.getPos()), packet, codec, registryAccess);
+            case ClientboundSectionBlocksUpdatePacket sectionBlocksUpdatePacket ->
+                this.addChange(ChunkPos.asLong(sectionBlocksUpdatePacket.sectionPos.x(), sectionBlocksUpdatePacket.sectionPos.z()),
+                    packet, codec, registryAccess);
+            case ClientboundBlockEntityDataPacket blockEntityDataPacket ->
+                this.addChange(ChunkPos.asLong(blockEntityDataPacket.getPos()), packet, codec, registryAccess);
+            case ClientboundLightUpdatePacket lightUpdatePacket ->
+                this.addChange(ChunkPos.asLong(lightUpdatePacket.getX(), lightUpdatePacket.getZ()), packet, codec, registryAccess);
+            case ClientboundChunksBiomesPacket biomesPacket -> {
+                // Split up so that every chunk only keeps its own biomes
+                for (ClientboundChunksBiomesPacket.ChunkBiomeData biomeData : biomesPacket.chunkBiomeData()) {
+                    this.addChange(biomeData.pos().toLong(), new ClientboundChunksBiomesPacket(List.of(biomeData)), codec, registryAccess);
+                }
+            }
+            case ClientboundMapItemDataPacket mapPacket -> this.updateMap(mapPacket);
+            default -> {}
+        }
+    }
+
+    private void addChange(long pos, Packet<? super ClientGamePacketListener> packet, StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> codec,
+            RegistryAccess registryAccess) {
+        TrackedChunk chunk = this.chunks.get(pos);
+        if (chunk == null) {
+            // Changes to chunks that aren't loaded are ignored by playback as well
+            return;
+        }
+
+        if (this.encodeBuffer == null || this.encodeBuffer.registryAccess() != registryAccess) {
+            this.encodeBuffer = new RegistryFriendlyByteBuf(Unpooled.buffer(), registryAccess);
+        }
+        this.encodeBuffer.clear();
+        codec.encode(this.encodeBuffer, packet);
+
+        byte[] bytes = new byte[this.encodeBuffer.writerIndex()];
+        this.encodeBuffer.getBytes(0, bytes);
+        chunk.changes.add(bytes);
+        chunk.changeBytes += bytes.length;
+        this.changeBytes += bytes.length;
+
+        if (this.changeBytes > MAX_CHANGE_BYTES) {
+            Flashback.LOGGER.info("Too many chunk changes since the last snapshot, skipping seek points until the next replay chunk");
+            this.clear();
+            this.complete = false;
+        }
+    }
+
+    private void updateMap(ClientboundMapItemDataPacket packet) {
+        TrackedMap map = this.maps.computeIfAbsent(packet.mapId().id(), id -> new TrackedMap());
+        map.scale = packet.scale();
+        map.locked = packet.locked();
+        packet.decorations().ifPresent(decorations -> map.decorations = List.copyOf(decorations));
+        packet.colorPatch().ifPresent(patch -> {
+            if (map.colors == null) {
+                map.colors = new byte[MAP_SIZE * MAP_SIZE];
+            }
+            for (int x = 0; x < patch.width(); x++) {
+                for (int y = 0; y < patch.height(); y++) {
+                    int mapX = patch.startX() + x;
+                    int mapY = patch.startY() + y;
+                    if (mapX < MAP_SIZE && mapY < MAP_SIZE) {
+                        map.colors[mapX + mapY * MAP_SIZE] = patch.mapColors()[x + y * patch.width()];
+                    }
+                }
+            }
+        });
+    }
+
+    public void writeChunks(ReplayWriter writer) {
+        for (TrackedChunk chunk : this.chunks.values()) {
+            writer.startAction(ActionLevelChunkCached.INSTANCE);
+            writer.friendlyByteBuf().writeVarInt(chunk.cacheIndex);
+            writer.finishAction(ActionLevelChunkCached.INSTANCE);
+
+            for (byte[] change : chunk.changes) {
+                writer.startAction(ActionGamePacket.INSTANCE);
+                writer.friendlyByteBuf().writeBytes(change);
+                writer.finishAction(ActionGamePacket.INSTANCE);
+            }
+        }
+    }
+
+    public void writeMaps(ReplayWriter writer, StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> codec) {
+        for (Int2ObjectMap.Entry<TrackedMap> entry : this.maps.int2ObjectEntrySet()) {
+            TrackedMap map = entry.getValue();
+            Optional<MapItemSavedData.MapPatch> patch = map.colors == null ? Optional.empty() :
+                Optional.of(new MapItemSavedData.MapPatch(0, 0, MAP_SIZE, MAP_SIZE, map.colors));
+
+            writer.startAction(ActionGamePacket.INSTANCE);
+            codec.encode(writer.friendlyByteBuf(), new ClientboundMapItemDataPacket(new MapId(entry.getIntKey()), map.scale,
+                map.locked, Optional.of(map.decorations), patch));
+            writer.finishAction(ActionGamePacket.INSTANCE);
+        }
+    }
+
+}
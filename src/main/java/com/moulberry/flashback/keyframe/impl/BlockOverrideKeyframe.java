@@ -27,6 +27,8 @@ import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.chunk.PalettedContainer;
 
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
@@ -45,6 +47,10 @@ public class BlockOverrideKeyframe extends Keyframe {
     private long lastPos = MIN_POSITION_LONG;
     private PalettedContainer<BlockState> lastContainer = null;
 
+    // Overridden blocks of a section, positions are packed the same way as in ClientboundSectionBlocksUpdatePacket
+    public record SectionOverrides(long sectionPos, short[] positions, BlockState[] states) {}
+    private List<SectionOverrides> compiled = null;
+
     public BlockOverrideKeyframe() {
         this.interpolationType(InterpolationType.LINEAR);
     }
@@ -61,6 +67,55 @@ public class BlockOverrideKeyframe extends Keyframe {
             lastContainer = blocks.computeIfAbsent(chunk, l -> new PalettedContainer<>(Block.BLOCK_STATE_REGISTRY, EMPTY_STATE, PalettedContainer.Strategy.SECTION_STATES));
         }
         lastContainer.set(x & 0xF, y & 0xF, z & 0xF, blockState);
+        this.compiled = null;
+    }
+
+    // Computed once and reused every time the keyframe is applied, until the keyframe is changed
+    public List<SectionOverrides> getSectionOverrides() {
+        if (this.compiled != null) {
+            return this.compiled;
+        }
+
+        List<SectionOverrides> compiled = new ArrayList<>();
+        for (Long2ObjectMap.Entry<PalettedContainer<BlockState>> entry : this.blocks.long2ObjectEntrySet()) {
+            PalettedContainer<BlockState> container = entry.getValue();
+
+            // Only the palette is checked here, sections that were only ever cleared are skipped entirely
+            if (!container.maybeHas(state -> state != EMPTY_STATE)) {
+                continue;
+            }
+
+            int[] nonEmpty = new int[1];
+            container.count((state, count) -> {
+                if (state != EMPTY_STATE) {
+                    nonEmpty[0] += count;
+                }
+            });
+            int remaining = nonEmpty[0];
+            if (remaining == 0) {
+                continue;
+            }
+
+            short[] positions = new short[remaining];
+            BlockState[] states = new BlockState[remaining];
+            int count = 0;
+            for (int index = 0; index < 4096 && count < remaining; index++) {
+                int x = index & 0xF;
+                int z = (index >> 4) & 0xF;
+                int y = index >> 8;
+                BlockState state = container.get(x, y, z);
+                if (state != EMPTY_STATE) {
+                    positions[count] = (short) ((x << 8) | (z << 4) | y);
+                    states[count] = state;
+                    count += 1;
+                }
+            }
+
+            compiled.add(new SectionOverrides(entry.getLongKey(), positions, states));
+        }
+
+        this.compiled = compiled;
+        return compiled;
     }
 
     @Override
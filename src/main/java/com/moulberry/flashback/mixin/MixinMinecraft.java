@@ -10,8 +10,8 @@ import com.moulberry.flashback.combo_options.GlowingOverride;
 import com.moulberry.flashback.configuration.FlashbackConfig;
 import com.moulberry.flashback.editor.ui.windows.ExportDoneWindow;
 import com.moulberry.flashback.editor.ui.windows.WindowType;
-import com.moulberry.flashback.exporting.ExportJob;
 import com.moulberry.flashback.exporting.ExportJobQueue;
+import com.moulberry.flashback.exporting.TranscodeQueue;
 import com.moulberry.flashback.keyframe.handler.MinecraftKeyframeHandler;
 import com.moulberry.flashback.keyframe.handler.TickrateKeyframeCapture;
 import com.moulberry.flashback.state.EditorState;
@@ -27,6 +27,7 @@ import net.minecraft.CrashReport;
 import net.minecraft.ReportedException;
 import net.minecraft.Util;
 import net.minecraft.client.*;
+import net.minecraft.client.gui.screens.ConfirmScreen;
 import net.minecraft.client.gui.screens.LevelLoadingScreen;
 import net.minecraft.client.gui.screens.Overlay;
 import net.minecraft.client.gui.screens.Screen;
@@ -55,6 +56,7 @@ import net.minecraft.world.entity.Entity;
 import net.minecraft.world.level.block.entity.SkullBlockEntity;
 import net.minecraft.world.level.storage.LevelStorageSource;
 import org.jetbrains.annotations.Nullable;
+import org.lwjgl.glfw.GLFW;
 import org.lwjgl.opengl.GL11;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
@@ -158,6 +160,41 @@ public abstract class MixinMinecraft implements MinecraftExt {
         }
     }
 
+    @Unique
+    private boolean confirmedQuitWithPendingTranscodes = false;
+
+    @Unique
+    private boolean showingPendingTranscodesWarning = false;
+
+    @Inject(method = "stop", at = @At("HEAD"), cancellable = true)
+    public void stop(CallbackInfo ci) {
+        if (this.confirmedQuitWithPendingTranscodes || !TranscodeQueue.hasPendingTasks()) {
+            return;
+        }
+
+        // Quitting would leave the lossless intermediates behind without a finished video, so ask first
+        ci.cancel();
+        Minecraft minecraft = (Minecraft) (Object) this;
+        GLFW.glfwSetWindowShouldClose(minecraft.getWindow().getWindow(), false);
+
+        if (this.showingPendingTranscodesWarning) {
+            return;
+        }
+        this.showingPendingTranscodesWarning = true;
+
+        Screen previous = minecraft.screen;
+        this.setScreen(new ConfirmScreen(value -> {
+            this.showingPendingTranscodesWarning = false;
+            if (value) {
+                this.confirmedQuitWithPendingTranscodes = true;
+                minecraft.stop();
+            } else {
+                this.setScreen(previous);
+            }
+        }, Component.literal("Exports Still Transcoding"),
+            Component.literal("Some exports are still being transcoded in the background. If you quit now they will be lost and deleted the next time the game starts")));
+    }
+
     @Inject(method = "renderNames", at = @At("HEAD"), cancellable = true)
     private static void renderNames(CallbackInfoReturnable<Boolean> cir) {
         EditorState editorState = EditorStateManager.getCurrent();
@@ -328,7 +365,7 @@ public abstract class MixinMinecraft implements MinecraftExt {
             if (ExportJobQueue.queuedJobs.isEmpty()) {
                 ExportJobQueue.drainingQueue = false;
             } else if (Flashback.EXPORT_JOB == null) {
-                Flashback.EXPORT_JOB = new ExportJob(ExportJobQueue.queuedJobs.removeFirst());
+                Flashback.EXPORT_JOB = ExportJobQueue.takeNextJob();
             }
         }
 
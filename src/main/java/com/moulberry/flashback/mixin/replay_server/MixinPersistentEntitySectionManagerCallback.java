@@ -0,0 +1,55 @@
+package com.moulberry.flashback.mixin.replay_server;
+
+import com.moulberry.flashback.ext.ServerLevelExt;
+import com.moulberry.flashback.playback.EntityChunkTickets;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.level.entity.EntityAccess;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(targets = "net.minecraft.world.level.entity.PersistentEntitySectionManager$Callback")
+public class MixinPersistentEntitySectionManagerCallback {
+
+    @Shadow
+    @Final
+    private EntityAccess entity;
+
+    @Inject(method = "<init>", at = @At("RETURN"))
+    public void init(CallbackInfo ci) {
+        EntityChunkTickets tickets = this.getEntityChunkTickets();
+        if (tickets != null) {
+            tickets.onAdd((Entity) this.entity);
+        }
+    }
+
+    @Inject(method = "onMove", at = @At("RETURN"))
+    public void onMove(CallbackInfo ci) {
+        EntityChunkTickets tickets = this.getEntityChunkTickets();
+        if (tickets != null) {
+            tickets.onMove((Entity) this.entity);
+        }
+    }
+
+    @Inject(method = "onRemove", at = @At("RETURN"))
+    public void onRemove(Entity.RemovalReason reason, CallbackInfo ci) {
+        EntityChunkTickets tickets = this.getEntityChunkTickets();
+        if (tickets != null) {
+            tickets.onRemove((Entity) this.entity);
+        }
+    }
+
+    @Unique
+    private EntityChunkTickets getEntityChunkTickets() {
+        if (this.entity instanceof Entity entity && entity.level() instanceof ServerLevel serverLevel) {
+            return ((ServerLevelExt) serverLevel).flashback$getEntityChunkTickets();
+        }
+        return null;
+    }
+
+}
@@ -3,6 +3,7 @@ package com.moulberry.flashback.mixin.replay_server;
 import com.llamalad7.mixinextras.injector.wrapoperation.Operation;
 import com.llamalad7.mixinextras.injector.wrapoperation.WrapOperation;
 import com.moulberry.flashback.ext.ServerLevelExt;
+import com.moulberry.flashback.playback.EntityChunkTickets;
 import com.moulberry.flashback.playback.ReplayServer;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
@@ -61,6 +62,17 @@ public abstract class MixinServerLevel implements ServerLevelExt {
         this.canSpawnEntities = canSpawnEntities;
     }
 
+    @Unique
+    private EntityChunkTickets entityChunkTickets = null;
+
+    @Override
+    public EntityChunkTickets flashback$getEntityChunkTickets() {
+        if (this.entityChunkTickets == null && this.getServer() instanceof ReplayServer) {
+            this.entityChunkTickets = new EntityChunkTickets((ServerLevel) (Object) this);
+        }
+        return this.entityChunkTickets;
+    }
+
     @Inject(method = "addFreshEntity", at = @At("HEAD"), cancellable = true)
     public void addFreshEntity(Entity entity, CallbackInfoReturnable<Boolean> cir) {
         if (!(entity instanceof Player) && !this.canSpawnEntities) {
@@ -0,0 +1,32 @@
+package com.moulberry.flashback.packet;
+
+import com.moulberry.flashback.Flashback;
+import it.unimi.dsi.fastutil.ints.IntList;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
+
+// Removes every entity on the client other than players that isn't in entityIds
+public record FlashbackRetainEntities(IntList entityIds) implements CustomPacketPayload {
+    public static final Type<FlashbackRetainEntities> TYPE = new Type<>(Flashback.createResourceLocation("retain_entities"));
+
+    public static final StreamCodec<FriendlyByteBuf, FlashbackRetainEntities> STREAM_CODEC = new RetainEntitiesStreamCodec();
+
+    @Override
+    public Type<? extends CustomPacketPayload> type() {
+        return TYPE;
+    }
+
+    public static class RetainEntitiesStreamCodec implements StreamCodec<FriendlyByteBuf, FlashbackRetainEntities> {
+        @Override
+        public FlashbackRetainEntities decode(FriendlyByteBuf friendlyByteBuf) {
+            return new FlashbackRetainEntities(friendlyByteBuf.readIntIdList());
+        }
+
+        @Override
+        public void encode(FriendlyByteBuf friendlyByteBuf, FlashbackRetainEntities retainEntities) {
+            friendlyByteBuf.writeIntIdList(retainEntities.entityIds);
+        }
+    }
+
+}
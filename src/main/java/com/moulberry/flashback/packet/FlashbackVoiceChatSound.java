@@ -63,6 +63,11 @@ public interface FlashbackVoiceChatSound extends CustomPacketPayload {
                 samples[i] = friendlyByteBuf.readShort();
             }
 
+            return decodeExtraData(friendlyByteBuf, uuid, samples);
+        }
+
+        // Reads the data written by writeExtraData, for actions that store the samples in a different way
+        public static FlashbackVoiceChatSound decodeExtraData(FriendlyByteBuf friendlyByteBuf, UUID uuid, short[] samples) {
             byte type = friendlyByteBuf.readByte();
 
             switch (type) {
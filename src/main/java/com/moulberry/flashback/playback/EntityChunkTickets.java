@@ -0,0 +1,75 @@
+package com.moulberry.flashback.playback;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2LongOpenHashMap;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.level.ChunkPos;
+
+// Keeps the chunks around entities loaded in the replay server
+// Tickets never time out, instead the ticketed chunk of every entity is tracked and tickets are only changed when an
+// entity is added, removed or crosses into another chunk. Entities in the same chunk share a single ticket
+// Updated from MixinPersistentEntitySectionManagerCallback, server thread only
+public class EntityChunkTickets {
+
+    private static final int RADIUS = 3;
+
+    private final ServerLevel level;
+    private final Reference2LongOpenHashMap<Entity> ticketedChunks = new Reference2LongOpenHashMap<>();
+    private final Long2IntOpenHashMap chunkReferences = new Long2IntOpenHashMap();
+
+    public EntityChunkTickets(ServerLevel level) {
+        this.level = level;
+        this.ticketedChunks.defaultReturnValue(ChunkPos.INVALID_CHUNK_POS);
+    }
+
+    public void onAdd(Entity entity) {
+        long chunkPos = entity.chunkPosition().toLong();
+        long previous = this.ticketedChunks.put(entity, chunkPos);
+        if (previous == chunkPos) {
+            return;
+        }
+
+        this.acquire(chunkPos);
+        if (previous != ChunkPos.INVALID_CHUNK_POS) {
+            this.release(previous);
+        }
+    }
+
+    public void onMove(Entity entity) {
+        long previous = this.ticketedChunks.getLong(entity);
+        if (previous == ChunkPos.INVALID_CHUNK_POS) {
+            return;
+        }
+
+        long chunkPos = entity.chunkPosition().toLong();
+        if (previous == chunkPos) {
+            return;
+        }
+
+        this.ticketedChunks.put(entity, chunkPos);
+        this.acquire(chunkPos);
+        this.release(previous);
+    }
+
+    public void onRemove(Entity entity) {
+        long previous = this.ticketedChunks.removeLong(entity);
+        if (previous != ChunkPos.INVALID_CHUNK_POS) {
+            this.release(previous);
+        }
+    }
+
+    private void acquire(long chunkPos) {
+        if (this.chunkReferences.addTo(chunkPos, 1) == 0) {
+            this.level.getChunkSource().addTicketWithRadius(ReplayServer.ENTITY_LOAD_TICKET, new ChunkPos(chunkPos), RADIUS);
+        }
+    }
+
+    private void release(long chunkPos) {
+        if (this.chunkReferences.addTo(chunkPos, -1) <= 1) {
+            this.chunkReferences.remove(chunkPos);
+            this.level.getChunkSource().removeTicketWithRadius(ReplayServer.ENTITY_LOAD_TICKET, new ChunkPos(chunkPos), RADIUS);
+        }
+    }
+
+}
@@ -0,0 +1,310 @@
+package com.moulberry.flashback.playback;
+
+import com.moulberry.flashback.Flashback;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientGamePacketListener;
+import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class LevelChunkCache {
+
+    private static final long MAX_CACHED_BYTES = 128L * 1024L * 1024L;
+    private static final int MAX_PREFETCHING = 512;
+    private static final int LEGACY_CACHE_INDEX = -1;
+
+    private record CacheFile(FileChannel channel, long[] offsets, int[] sizes) {
+        int count() {
+            return this.offsets.length;
+        }
+    }
+
+    private record CachedPacket(ClientboundLevelChunkWithLightPacket packet, int size) {}
+
+    private final FileSystem playbackFileSystem;
+    private final Path extractFolder;
+    // Guarded by this
+    private RegistryAccess registryAccess;
+    private StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> gamePacketCodec;
+
+    // Guarded by cacheFiles, null values mean the file doesn't exist
+    private final Int2ObjectMap<CacheFile> cacheFiles = new Int2ObjectOpenHashMap<>();
+
+    // Guarded by this
+    private final LinkedHashMap<Integer, CachedPacket> cachedPackets = new LinkedHashMap<>(256, 0.75f, true);
+    // Prefetches that are still queued, moved to loading once the prefetch thread starts on them
+    private final Int2ObjectMap<CompletableFuture<ClientboundLevelChunkWithLightPacket>> prefetching = new Int2ObjectOpenHashMap<>();
+    private final Int2ObjectMap<CompletableFuture<ClientboundLevelChunkWithLightPacket>> loading = new Int2ObjectOpenHashMap<>();
+    private long cachedBytes = 0;
+    // Bumped when the registries change, packets decoded for an older generation are dropped instead of cached
+    private int generation = 0;
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Flashback Level Chunk Prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LevelChunkCache(FileSystem playbackFileSystem, Path extractFolder, RegistryAccess registryAccess,
+            StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> gamePacketCodec) {
+        this.playbackFileSystem = playbackFileSystem;
+        this.extractFolder = extractFolder;
+        this.registryAccess = registryAccess;
+        this.gamePacketCodec = gamePacketCodec;
+    }
+
+    public synchronized void setGamePacketCodec(RegistryAccess registryAccess, StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> gamePacketCodec) {
+        this.registryAccess = registryAccess;
+        this.gamePacketCodec = gamePacketCodec;
+
+        // Packets decoded with the old registries can't be used anymore, prefetches that are still running
+        // will finish but their results are discarded
+        this.generation += 1;
+        this.cachedPackets.clear();
+        this.cachedBytes = 0;
+        this.prefetching.clear();
+        this.loading.clear();
+    }
+
+    @Nullable
+    public ClientboundLevelChunkWithLightPacket get(int index) {
+        CompletableFuture<ClientboundLevelChunkWithLightPacket> running;
+        CompletableFuture<ClientboundLevelChunkWithLightPacket> queued;
+        synchronized (this) {
+            CachedPacket cachedPacket = this.cachedPackets.get(index);
+            if (cachedPacket != null) {
+                return cachedPacket.packet;
+            }
+            running = this.loading.get(index);
+            // A queued prefetch may be behind hundreds of others, so it's claimed and loaded here instead
+            queued = running == null ? this.prefetching.remove(index) : null;
+        }
+
+        if (running != null) {
+            return running.join();
+        }
+
+        ClientboundLevelChunkWithLightPacket packet = this.load(index);
+        if (queued != null) {
+            queued.complete(packet);
+        }
+        return packet;
+    }
+
+    // Returns false if too many chunks are already being prefetched
+    public boolean prefetch(int index) {
+        CompletableFuture<ClientboundLevelChunkWithLightPacket> future = new CompletableFuture<>();
+
+        synchronized (this) {
+            if (this.cachedPackets.containsKey(index) || this.prefetching.containsKey(index) || this.loading.containsKey(index)) {
+                return true;
+            }
+            if (this.prefetching.size() + this.loading.size() >= MAX_PREFETCHING) {
+                return false;
+            }
+            this.prefetching.put(index, future);
+        }
+
+        try {
+            this.prefetchExecutor.execute(() -> {
+                synchronized (this) {
+                    // Already claimed by get, or dropped because the registries changed
+                    if (!this.prefetching.remove(index, future)) {
+                        return;
+                    }
+                    this.loading.put(index, future);
+                }
+
+                ClientboundLevelChunkWithLightPacket packet = this.load(index);
+                synchronized (this) {
+                    this.loading.remove(index, future);
+                }
+                future.complete(packet);
+            });
+        } catch (Exception e) {
+            synchronized (this) {
+                this.prefetching.remove(index, future);
+            }
+            future.complete(null);
+        }
+
+        return true;
+    }
+
+    @Nullable
+    private ClientboundLevelChunkWithLightPacket load(int index) {
+        int generation;
+        RegistryAccess registryAccess;
+        StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> gamePacketCodec;
+        synchronized (this) {
+            generation = this.generation;
+            registryAccess = this.registryAccess;
+            gamePacketCodec = this.gamePacketCodec;
+        }
+
+        try {
+            CacheFile cacheFile = this.getCacheFile(LEGACY_CACHE_INDEX);
+            int localIndex = index;
+
+            if (cacheFile == null || index >= cacheFile.count()) {
+                cacheFile = this.getCacheFile(index / ReplayServer.CHUNK_CACHE_SIZE);
+                localIndex = index % ReplayServer.CHUNK_CACHE_SIZE;
+            }
+
+            if (cacheFile == null || localIndex >= cacheFile.count()) {
+                return null;
+            }
+
+            int size = cacheFile.sizes[localIndex];
+            ByteBuffer byteBuffer = ByteBuffer.allocate(size);
+            long position = cacheFile.offsets[localIndex];
+            while (byteBuffer.hasRemaining()) {
+                int read = cacheFile.channel.read(byteBuffer, position + byteBuffer.position());
+                if (read < 0) {
+                    throw new EOFException("Ran out of bytes while reading level chunk cache entry " + index);
+                }
+            }
+
+            RegistryFriendlyByteBuf registryFriendlyByteBuf = new RegistryFriendlyByteBuf(Unpooled.wrappedBuffer(byteBuffer.array()), registryAccess);
+            Packet<?> packet = gamePacketCodec.decode(registryFriendlyByteBuf);
+            if (packet instanceof ClientboundLevelChunkWithLightPacket levelChunkWithLightPacket) {
+                this.put(index, levelChunkWithLightPacket, size, generation);
+                return levelChunkWithLightPacket;
+            } else {
+                throw new IllegalStateException("Level chunk cache contains wrong packet: " + packet);
+            }
+        } catch (Exception e) {
+            Flashback.LOGGER.error("Encountered error while reading level chunk cache", e);
+            return null;
+        }
+    }
+
+    private synchronized void put(int index, ClientboundLevelChunkWithLightPacket packet, int size, int generation) {
+        if (generation != this.generation) {
+            return;
+        }
+
+        CachedPacket old = this.cachedPackets.put(index, new CachedPacket(packet, size));
+        if (old != null) {
+            this.cachedBytes -= old.size;
+        }
+        this.cachedBytes += size;
+
+        Iterator<Map.Entry<Integer, CachedPacket>> iterator = this.cachedPackets.entrySet().iterator();
+        while (this.cachedBytes > MAX_CACHED_BYTES && iterator.hasNext()) {
+            Map.Entry<Integer, CachedPacket> eldest = iterator.next();
+            if (eldest.getKey() == index) {
+                continue;
+            }
+            this.cachedBytes -= eldest.getValue().size;
+            iterator.remove();
+        }
+    }
+
+    @Nullable
+    private CacheFile getCacheFile(int cacheIndex) throws IOException {
+        synchronized (this.cacheFiles) {
+            if (this.cacheFiles.containsKey(cacheIndex)) {
+                return this.cacheFiles.get(cacheIndex);
+            }
+
+            String name = cacheIndex == LEGACY_CACHE_INDEX ? "/level_chunk_cache" : "/level_chunk_caches/" + cacheIndex;
+            CacheFile cacheFile = this.openCacheFile(name, cacheIndex);
+            this.cacheFiles.put(cacheIndex, cacheFile);
+            return cacheFile;
+        }
+    }
+
+    @Nullable
+    private CacheFile openCacheFile(String name, int cacheIndex) throws IOException {
+        Path levelChunkCachePath = this.playbackFileSystem.getPath(name);
+        if (!Files.exists(levelChunkCachePath)) {
+            return null;
+        }
+
+        // Extract the cache file so that individual entries can be read without decompressing the whole file
+        Path extractedPath = this.extractFolder.resolve(cacheIndex == LEGACY_CACHE_INDEX ? "level_chunk_cache" : "level_chunk_caches_" + cacheIndex);
+        Path tempPath = extractedPath.resolveSibling(extractedPath.getFileName() + ".tmp");
+        Files.copy(levelChunkCachePath, tempPath, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tempPath, extractedPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // Build index of entry offsets
+        LongArrayList offsets = new LongArrayList();
+        IntArrayList sizes = new IntArrayList();
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(extractedPath)))) {
+            long fileSize = Files.size(extractedPath);
+            long position = 0;
+            while (position + 4 <= fileSize) {
+                int size = dis.readInt();
+                position += 4;
+
+                if (size < 0 || position + size > fileSize) {
+                    Flashback.LOGGER.error("Ran out of bytes while reading level_chunk_cache, needed {}, had {}",
+                        size, fileSize - position);
+                    break;
+                }
+
+                offsets.add(position);
+                sizes.add(size);
+
+                dis.skipNBytes(size);
+                position += size;
+            }
+        }
+
+        Flashback.LOGGER.info("Indexed {} with {} entries", name, offsets.size());
+
+        FileChannel channel = FileChannel.open(extractedPath, StandardOpenOption.READ);
+        return new CacheFile(channel, offsets.toLongArray(), sizes.toIntArray());
+    }
+
+    public void close() {
+        this.prefetchExecutor.shutdownNow();
+
+        synchronized (this) {
+            this.cachedPackets.clear();
+            this.cachedBytes = 0;
+        }
+
+        synchronized (this.cacheFiles) {
+            for (CacheFile cacheFile : this.cacheFiles.values()) {
+                if (cacheFile == null) {
+                    continue;
+                }
+                try {
+                    cacheFile.channel.close();
+                } catch (IOException e) {
+                    Flashback.LOGGER.error("Failed to close level chunk cache", e);
+                }
+            }
+            this.cacheFiles.clear();
+        }
+    }
+
+}
@@ -1,39 +1,92 @@
 package com.moulberry.flashback.playback;
 
+import com.moulberry.flashback.Flashback;
 import com.moulberry.flashback.io.ReplayReader;
 import com.moulberry.flashback.record.FlashbackChunkMeta;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.util.internal.PlatformDependent;
 import net.minecraft.core.RegistryAccess;
 
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 public class PlayableChunk {
 
     public final FlashbackChunkMeta chunkMeta;
     public final Path path;
+    private final Path extractedPath;
     private ReplayReader replayReader;
+    private MappedByteBuffer mappedByteBuffer;
+    private long loadedSize = 0;
 
-    public PlayableChunk(FlashbackChunkMeta chunkMeta, Path path) {
+    public PlayableChunk(FlashbackChunkMeta chunkMeta, Path path, Path extractedPath) {
         this.chunkMeta = chunkMeta;
         this.path = path;
+        this.extractedPath = extractedPath;
     }
 
     public ReplayReader getOrLoadReplayReader(RegistryAccess registryAccess) {
         if (this.replayReader == null) {
+            ByteBuf byteBuf;
             try {
-                byte[] bytes = Files.readAllBytes(this.path);
-                this.replayReader = new ReplayReader(Unpooled.wrappedBuffer(bytes), registryAccess);
+                byteBuf = this.mapExtractedChunk();
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                Flashback.LOGGER.warn("Unable to memory-map {}, falling back to reading into memory", this.path, e);
+                try {
+                    byteBuf = Unpooled.wrappedBuffer(Files.readAllBytes(this.path));
+                } catch (IOException e2) {
+                    throw new RuntimeException(e2);
+                }
             }
+            this.loadedSize = byteBuf.writerIndex();
+            this.replayReader = new ReplayReader(byteBuf, registryAccess);
         }
 
         this.replayReader.changeRegistryAccess(registryAccess);
         return this.replayReader;
     }
 
+    private ByteBuf mapExtractedChunk() throws IOException {
+        // Chunks inside the zip may be compressed, so they're extracted to a temp file first
+        if (!Files.exists(this.extractedPath)) {
+            Path tempPath = this.extractedPath.resolveSibling(this.extractedPath.getFileName() + ".tmp");
+            Files.copy(this.path, tempPath, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempPath, this.extractedPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        try (FileChannel channel = FileChannel.open(this.extractedPath, StandardOpenOption.READ)) {
+            this.mappedByteBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return Unpooled.wrappedBuffer(this.mappedByteBuffer);
+        }
+    }
+
+    public boolean isLoaded() {
+        return this.replayReader != null;
+    }
 
+    public long getLoadedSize() {
+        return this.loadedSize;
+    }
+
+    public void unload() {
+        if (this.replayReader != null) {
+            this.replayReader.close();
+            this.replayReader = null;
+        }
+        this.loadedSize = 0;
+
+        // Unmapped right away instead of waiting for the garbage collector, otherwise the extracted file
+        // can't be deleted on Windows. Arena-backed mappings are still a preview API on Java 21
+        if (this.mappedByteBuffer != null) {
+            PlatformDependent.freeDirectBuffer(this.mappedByteBuffer);
+            this.mappedByteBuffer = null;
+        }
+    }
 
 }
@@ -50,6 +50,10 @@ public class ReplayConfigurationPacketHandler implements ClientConfigurationPack
         this.replayServer = replayServer;
     }
 
+    public boolean hasPendingConfiguration() {
+        return this.dirty;
+    }
+
     public void flushPendingConfiguration() {
         if (!this.dirty) {
             return;
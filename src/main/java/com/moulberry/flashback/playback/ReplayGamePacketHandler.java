@@ -16,6 +16,8 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerWorldEvents;
@@ -85,6 +87,10 @@ public class ReplayGamePacketHandler implements ClientGamePacketListener {
     private final ReplayServer replayServer;
     private final Map<UUID, PlayerInfo> playerInfoMap = new HashMap<>();
     private Int2ObjectMap<Entity> pendingEntities = new Int2ObjectOpenHashMap<>();
+    // Entities that existed before the snapshot currently being played, they are reused if the snapshot adds the same
+    // entity again and discarded once it's done, so unchanged entities aren't removed and recreated on the client
+    private final IntSet staleSnapshotEntities = new IntOpenHashSet();
+    private ServerLevel staleSnapshotLevel = null;
     private ResourceKey<Level> currentDimension = null;
     public int localPlayerId = -1;
     public LongSet forceSendChunksDueToMovingPistonShenanigans = new LongOpenHashSet();
@@ -124,11 +130,14 @@ public class ReplayGamePacketHandler implements ClientGamePacketListener {
                 continue;
             }
 
+            boolean wasStale = level == this.staleSnapshotLevel && this.staleSnapshotEntities.remove(pendingEntity.getId());
+
             Entity existingEntity = level.getEntity(pendingEntity.getId());
             if (existingEntity != null) {
                 if (existingEntity instanceof ServerPlayer existingPlayer) {
                     existingPlayer.discard();
-                } else if (existingEntity.getType().equals(pendingEntity.getType())) {
+                } else if (existingEntity.getType().equals(pendingEntity.getType()) &&
+                        (!wasStale || existingEntity.getUUID().equals(pendingEntity.getUUID()))) {
                     try {
                         existingEntity.restoreFrom(pendingEntity);
                         existingEntity.setPos(pendingEntity.getX(), pendingEntity.getY(), pendingEntity.getZ());
@@ -155,8 +164,6 @@ public class ReplayGamePacketHandler implements ClientGamePacketListener {
             ((ServerLevelExt) level).flashback$setCanSpawnEntities(true);
             try {
                 level.addFreshEntity(pendingEntity);
-                ChunkPos chunkPos = new ChunkPos(pendingEntity.blockPosition());
-                level.getChunkSource().addTicketWithRadius(ReplayServer.ENTITY_LOAD_TICKET, chunkPos, 3);
             } catch (Exception e) {
                 Flashback.LOGGER.error("Unable to spawn entity", e);
             }
@@ -165,6 +172,22 @@ public class ReplayGamePacketHandler implements ClientGamePacketListener {
         this.pendingEntities.clear();
     }
 
+    public void discardStaleSnapshotEntities() {
+        this.flushPendingEntities();
+
+        if (this.staleSnapshotLevel != null) {
+            for (int entityId : this.staleSnapshotEntities) {
+                Entity entity = this.staleSnapshotLevel.getEntity(entityId);
+                if (entity != null && !(entity instanceof ServerPlayer)) {
+                    entity.discard();
+                }
+            }
+        }
+
+        this.staleSnapshotEntities.clear();
+        this.staleSnapshotLevel = null;
+    }
+
     private Entity getEntityOrPending(int entityId) {
         if (this.pendingEntities.containsKey(entityId)) {
             return this.pendingEntities.get(entityId);
@@ -732,7 +755,12 @@ public class ReplayGamePacketHandler implements ClientGamePacketListener {
         if (forceReset) {
             this.replayServer.clearReplayTempFolder();
             if (this.currentDimension == dimension) {
-                this.replayServer.clearLevel(this.level());
+                if (this.replayServer.isProcessingSnapshot && this.level() != null) {
+                    this.staleSnapshotLevel = this.level();
+                    this.replayServer.clearLevelForSnapshot(this.staleSnapshotLevel, this.staleSnapshotEntities);
+                } else {
+                    this.replayServer.clearLevel(this.level());
+                }
             }
         }
 
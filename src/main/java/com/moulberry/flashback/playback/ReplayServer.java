@@ -5,7 +5,7 @@ import com.google.gson.JsonObject;
 import com.mojang.authlib.GameProfile;
 import com.moulberry.flashback.Flashback;
 import com.moulberry.flashback.PacketHelper;
-import com.moulberry.flashback.SneakyThrow;
+import com.moulberry.flashback.action.QuantizedEntityPosition;
 import com.moulberry.flashback.configuration.FlashbackConfig;
 import com.moulberry.flashback.ext.ConnectionExt;
 import com.moulberry.flashback.ext.LevelChunkExt;
@@ -24,6 +24,7 @@ import com.moulberry.flashback.packet.FlashbackRemoteExperience;
 import com.moulberry.flashback.packet.FlashbackRemoteFoodData;
 import com.moulberry.flashback.packet.FlashbackRemoteSelectHotbarSlot;
 import com.moulberry.flashback.packet.FlashbackRemoteSetSlot;
+import com.moulberry.flashback.packet.FlashbackRetainEntities;
 import com.moulberry.flashback.packet.FlashbackSetBorderLerpStartTime;
 import com.moulberry.flashback.state.EditorScene;
 import com.moulberry.flashback.state.EditorState;
@@ -37,15 +38,18 @@ import com.moulberry.flashback.record.FlashbackMeta;
 import com.moulberry.flashback.record.Recorder;
 import com.moulberry.flashback.state.KeyframeTrack;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.DecoderException;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntIterator;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.ints.IntSet;
-import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.shorts.ShortIterator;
+import it.unimi.dsi.fastutil.shorts.ShortOpenHashSet;
+import it.unimi.dsi.fastutil.shorts.ShortSet;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerWorldEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
 import net.minecraft.Util;
@@ -53,6 +57,7 @@ import net.minecraft.client.Minecraft;
 import net.minecraft.client.server.IntegratedServer;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Registry;
+import net.minecraft.core.SectionPos;
 import net.minecraft.core.registries.Registries;
 import net.minecraft.network.Connection;
 import net.minecraft.network.RegistryFriendlyByteBuf;
@@ -93,9 +98,10 @@ import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.WorldDataConfiguration;
+import net.minecraft.world.level.block.entity.BlockEntity;
 import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.chunk.LevelChunk;
-import net.minecraft.world.level.chunk.PalettedContainer;
+import net.minecraft.world.level.chunk.LevelChunkSection;
 import net.minecraft.world.level.storage.LevelResource;
 import net.minecraft.world.level.storage.LevelStorageSource;
 import net.minecraft.world.phys.Vec3;
@@ -103,7 +109,6 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
@@ -124,6 +129,10 @@ public class ReplayServer extends IntegratedServer {
     public static int REPLAY_VIEWER_IDS_START = -981723987;
     public static String REPLAY_VIEWER_NAME = "Replay Viewer";
     public static final int CHUNK_CACHE_SIZE = 10000;
+    private static final int SEEK_POINT_FORWARD_JUMP_TICKS = 30 * 20;
+    // When seeking, actions up to this many ticks before the target are applied in a single step. The remaining ticks
+    // are still run one at a time so that the world looks the same as it would during normal playback
+    private static final int FAST_FORWARD_SIMULATED_TICKS = 20;
 
     public volatile int jumpToTick = -1;
     public volatile boolean replayPaused = true;
@@ -149,9 +158,16 @@ public class ReplayServer extends IntegratedServer {
     private final List<ReplayPlayer> replayViewers = new ArrayList<>();
     public boolean followLocalPlayerNextTickIfWrongDimension = false;
     public boolean isProcessingSnapshot = false;
+    private final Int2ObjectMap<QuantizedEntityPosition> lastEntityPositions = new Int2ObjectOpenHashMap<>();
     private boolean processedSnapshot = false;
     public volatile boolean fastForwarding = false;
 
+    // Set while handleActions is applying more than a single tick of actions at once. Only the end result is visible,
+    // so updates that would be sent to viewers for every step are collapsed to the final one
+    private boolean coalescingActions = false;
+    private record UnknownEntityTeleport(ResourceKey<Level> dimension, double x, double y, double z, byte yRot, byte xRot, boolean onGround) {}
+    private final Int2ObjectMap<UnknownEntityTeleport> coalescedUnknownTeleports = new Int2ObjectOpenHashMap<>();
+
     private record BlockAtPosition(long pos, BlockState blockState) {}
     private List<BlockAtPosition> pendingBlockOverrides = new ArrayList<>();
 
@@ -160,8 +176,10 @@ public class ReplayServer extends IntegratedServer {
     private final UUID playbackUUID;
     private final FlashbackMeta metadata;
     private final TreeMap<Integer, PlayableChunk> playableChunksByStart = new TreeMap<>();
-    private final Int2ObjectMap<ClientboundLevelChunkWithLightPacket> levelChunkCachedPackets = new Int2ObjectOpenHashMap<>();
-    private final IntSet loadedChunkCacheFiles = new IntOpenHashSet();
+    private final LinkedHashSet<PlayableChunk> recentlyUsedPlayableChunks = new LinkedHashSet<>();
+    private static final int MAX_LOADED_PLAYABLE_CHUNKS = 8;
+    private static final long MAX_LOADED_PLAYABLE_CHUNK_BYTES = 256L * 1024L * 1024L;
+    private LevelChunkCache levelChunkCache = null;
     private ReplayReader currentReplayReader = null;
 
     private record RemotePack(UUID id, String url, String hash){}
@@ -196,66 +214,25 @@ public class ReplayServer extends IntegratedServer {
                 throw new RuntimeException("Invalid metadata file");
             }
 
+            Path playbackCacheFolder = TempFolderProvider.createTemp(TempFolderProvider.TempFolderType.PLAYBACK_CACHE, this.playbackUUID);
+
             int ticks = 0;
             for (Map.Entry<String, FlashbackChunkMeta> entry : this.metadata.chunks.entrySet()) {
-                var chunkMetaWithPath = new PlayableChunk(entry.getValue(), this.playbackFileSystem.getPath("/"+entry.getKey()));
+                var chunkMetaWithPath = new PlayableChunk(entry.getValue(), this.playbackFileSystem.getPath("/"+entry.getKey()),
+                    playbackCacheFolder.resolve(entry.getKey()));
                 this.playableChunksByStart.put(ticks, chunkMetaWithPath);
                 ticks += entry.getValue().duration;
             }
 
             this.totalTicks = ticks;
 
-            Path levelChunkCachePath = this.playbackFileSystem.getPath("/level_chunk_cache");
-            if (Files.exists(levelChunkCachePath)) {
-                loadLevelChunkCache(levelChunkCachePath, 0, "/level_chunk_cache");
-            }
+            this.levelChunkCache = new LevelChunkCache(this.playbackFileSystem, playbackCacheFolder,
+                this.registryAccess(), this.gamePacketCodec);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void loadLevelChunkCache(Path levelChunkCachePath, int chunkCacheIndex, String name) throws IOException {
-        int startIndex = chunkCacheIndex;
-
-        try (InputStream is = Files.newInputStream(levelChunkCachePath)) {
-            while (true) {
-                byte[] sizeBuffer = is.readNBytes(4);
-                if (sizeBuffer.length < 4) {
-                    break;
-                }
-
-                int size = (sizeBuffer[0] & 0xff) << 24 |
-                    (sizeBuffer[1] & 0xff) << 16 |
-                    (sizeBuffer[2] & 0xff) <<  8 |
-                    sizeBuffer[3] & 0xff;
-
-                byte[] chunk = is.readNBytes(size);
-                if (chunk.length < size) {
-                    Flashback.LOGGER.error("Ran out of bytes while reading level_chunk_cache, needed {}, had {}",
-                        size, chunk.length);
-                    break;
-                }
-
-                RegistryFriendlyByteBuf registryFriendlyByteBuf = new RegistryFriendlyByteBuf(Unpooled.wrappedBuffer(chunk), this.registryAccess());
-
-                try {
-                    Packet<?> packet = this.gamePacketCodec.decode(registryFriendlyByteBuf);
-                    if (packet instanceof ClientboundLevelChunkWithLightPacket levelChunkWithLightPacket) {
-                        this.levelChunkCachedPackets.put(chunkCacheIndex, levelChunkWithLightPacket);
-                    } else {
-                        throw new IllegalStateException("Level chunk cache contains wrong packet: " + packet);
-                    }
-                } catch (Exception e) {
-                    Flashback.LOGGER.error("Encountered error while reading level_chunk_cache", e);
-                }
-
-                chunkCacheIndex += 1;
-            }
-        }
-
-        Flashback.LOGGER.info("Loaded {} with {} entries", name, chunkCacheIndex - startIndex);
-    }
-
     public FlashbackMeta getMetadata() {
         return this.metadata;
     }
@@ -274,6 +251,7 @@ public class ReplayServer extends IntegratedServer {
         this.reloadResources(Set.of());
 
         this.gamePacketCodec = GameProtocols.CLIENTBOUND_TEMPLATE.bind(RegistryFriendlyByteBuf.decorator(this.registryAccess())).codec();
+        this.levelChunkCache.setGamePacketCodec(this.registryAccess(), this.gamePacketCodec);
 
         if (this.currentReplayReader != null) {
             this.currentReplayReader.changeRegistryAccess(this.registryAccess());
@@ -629,12 +607,31 @@ public class ReplayServer extends IntegratedServer {
             friendlyByteBuf.readerIndex(friendlyByteBuf.writerIndex());
             return;
         }
+        this.applyGamePacket(packet);
+    }
+
+    // Used for packets that were already decoded on the decoder thread, see PacketDecodeAhead
+    public void handleDecodedGamePacket(Packet<? super ClientGamePacketListener> packet) {
+        this.configurationPacketHandler.flushPendingConfiguration();
+        this.applyGamePacket(packet);
+    }
+
+    private void applyGamePacket(Packet<? super ClientGamePacketListener> packet) {
         if (!AllowPendingEntityPacketSet.allowPendingEntity(packet)) {
             this.gamePacketHandler.flushPendingEntities();
         }
         packet.handle(this.gamePacketHandler);
     }
 
+    public StreamCodec<ByteBuf, Packet<? super ClientGamePacketListener>> getGamePacketCodec() {
+        return this.gamePacketCodec;
+    }
+
+    // Packets decoded ahead of time use the current codec, which is about to be replaced
+    public boolean hasPendingConfiguration() {
+        return this.configurationPacketHandler.hasPendingConfiguration();
+    }
+
     public void handleCreateLocalPlayer(RegistryFriendlyByteBuf friendlyByteBuf) {
         this.configurationPacketHandler.flushPendingConfiguration();
         this.gamePacketHandler.flushPendingEntities();
@@ -643,7 +640,7 @@ public class ReplayServer extends IntegratedServer {
 
     public void handleAccuratePlayerPosition(RegistryFriendlyByteBuf friendlyByteBuf) {
         FlashbackConfig config = Flashback.getConfig();
-        if (config.disableIncreasedFirstPersonUpdates) {
+        if (config.disableIncreasedFirstPersonUpdates || this.coalescingActions || this.fastForwarding) {
             friendlyByteBuf.readerIndex(friendlyByteBuf.writerIndex());
             return;
         }
@@ -681,36 +678,102 @@ public class ReplayServer extends IntegratedServer {
                 boolean onGround = friendlyByteBuf.readBoolean();
 
                 if (level != null) {
-                    Entity entity = level.getEntity(id);
-                    if (entity != null) {
-                        if (entity.isPassenger()) {
-                            entity.setYRot(yaw);
-                            entity.setXRot(pitch);
-                        } else {
-                            entity.snapTo(x, y, z, yaw, pitch);
-                            updatePositionOfPassengers(entity);
-                        }
+                    this.moveEntity(level, positionUpdateSet, id, x, y, z, yaw, pitch, headYaw, onGround);
+                }
+            }
+        }
+    }
 
-                        entity.setYHeadRot(headYaw);
-                        if (entity.onGround() != onGround) {
-                            entity.setOnGround(onGround);
-                        }
+    public void handleMoveEntitiesDelta(RegistryFriendlyByteBuf friendlyByteBuf) {
+        this.gamePacketHandler.flushPendingEntities();
+        this.configurationPacketHandler.flushPendingConfiguration();
 
-                        if (entity instanceof ItemEntity || entity instanceof ExperienceOrb) {
-                            continue;
-                        }
+        int levelCount = friendlyByteBuf.readVarInt();
+        for (int i = 0; i < levelCount; i++) {
+            ResourceKey<Level> dimension = friendlyByteBuf.readResourceKey(Registries.DIMENSION);
+            ServerLevel level = this.levels.get(dimension);
 
-                        positionUpdateSet.add(id);
-                    } else if (!this.isFrozen) {
-                        byte yRot = (byte) Mth.floor(yaw * 256.0F / 360.0F);
-                        byte xRot = (byte) Mth.floor(pitch * 256.0F / 360.0F);
-                        this.getPlayerList().broadcastAll(PacketHelper.createTeleportForUnknown(id, x, y, z, yRot, xRot, onGround));
-                    }
+            IntSet positionUpdateSet = null;
+            if (level != null) {
+                positionUpdateSet = this.needsPositionUpdate.computeIfAbsent(dimension, k -> new IntOpenHashSet());
+            }
+
+            int count = friendlyByteBuf.readVarInt();
+            int id = 0;
+            for (int j = 0; j < count; j++) {
+                id += QuantizedEntityPosition.unZigZag(friendlyByteBuf.readVarInt());
+
+                // Always decoded, even for missing levels, so that the next delta has the right base
+                QuantizedEntityPosition position = QuantizedEntityPosition.read(friendlyByteBuf, this.lastEntityPositions.get(id));
+                this.lastEntityPositions.put(id, position);
+
+                if (level != null) {
+                    this.moveEntity(level, positionUpdateSet, id, position.decodeX(), position.decodeY(), position.decodeZ(),
+                        position.decodeYaw(), position.decodePitch(), position.decodeHeadYaw(), position.onGround());
                 }
             }
         }
     }
 
+    // Called at the start of every replay chunk, snapshot and seek point, see QuantizedEntityPosition
+    public void resetEntityPositionDeltas() {
+        this.lastEntityPositions.clear();
+    }
+
+    private void moveEntity(ServerLevel level, IntSet positionUpdateSet, int id, double x, double y, double z,
+            float yaw, float pitch, float headYaw, boolean onGround) {
+        Entity entity = level.getEntity(id);
+        if (entity != null) {
+            if (entity.isPassenger()) {
+                entity.setYRot(yaw);
+                entity.setXRot(pitch);
+            } else {
+                entity.snapTo(x, y, z, yaw, pitch);
+                updatePositionOfPassengers(entity);
+            }
+
+            entity.setYHeadRot(headYaw);
+            if (entity.onGround() != onGround) {
+                entity.setOnGround(onGround);
+            }
+
+            if (entity instanceof ItemEntity || entity instanceof ExperienceOrb) {
+                return;
+            }
+
+            positionUpdateSet.add(id);
+        } else if (!this.isFrozen) {
+            byte yRot = (byte) Mth.floor(yaw * 256.0F / 360.0F);
+            byte xRot = (byte) Mth.floor(pitch * 256.0F / 360.0F);
+            if (this.coalescingActions) {
+                this.coalescedUnknownTeleports.put(id, new UnknownEntityTeleport(level.dimension(), x, y, z, yRot, xRot, onGround));
+            } else {
+                this.getPlayerList().broadcastAll(PacketHelper.createTeleportForUnknown(id, x, y, z, yRot, xRot, onGround));
+            }
+        }
+    }
+
+    private void flushCoalescedUnknownTeleports() {
+        if (this.coalescedUnknownTeleports.isEmpty()) {
+            return;
+        }
+
+        for (Int2ObjectMap.Entry<UnknownEntityTeleport> entry : this.coalescedUnknownTeleports.int2ObjectEntrySet()) {
+            int id = entry.getIntKey();
+            UnknownEntityTeleport teleport = entry.getValue();
+
+            // The entity may have been added to the level since
+            ServerLevel level = this.levels.get(teleport.dimension);
+            if (level != null && level.getEntity(id) != null) {
+                continue;
+            }
+
+            this.getPlayerList().broadcastAll(PacketHelper.createTeleportForUnknown(id, teleport.x, teleport.y, teleport.z,
+                teleport.yRot, teleport.xRot, teleport.onGround));
+        }
+        this.coalescedUnknownTeleports.clear();
+    }
+
     private void updatePositionOfPassengers(Entity vehicle) {
         for (Entity passenger : vehicle.getPassengers()) {
             vehicle.positionRider(passenger);
@@ -718,23 +781,12 @@ public class ReplayServer extends IntegratedServer {
         }
     }
 
+    public boolean prefetchLevelChunk(int index) {
+        return this.levelChunkCache.prefetch(index);
+    }
+
     public void handleLevelChunkCached(int index) {
-        ClientboundLevelChunkWithLightPacket packet = this.levelChunkCachedPackets.get(index);
-        if (packet == null) {
-            int cacheIndex = index / ReplayServer.CHUNK_CACHE_SIZE;
-            if (this.loadedChunkCacheFiles.add(cacheIndex)) {
-                String pathString = "/level_chunk_caches/" + cacheIndex;
-                Path levelChunkCachePath = this.playbackFileSystem.getPath(pathString);
-                if (Files.exists(levelChunkCachePath)) {
-                    try {
-                        loadLevelChunkCache(levelChunkCachePath, cacheIndex * ReplayServer.CHUNK_CACHE_SIZE, pathString);
-                    } catch (IOException e) {
-                        SneakyThrow.sneakyThrow(e);
-                    }
-                }
-                packet = this.levelChunkCachedPackets.get(index);
-            }
-        }
+        ClientboundLevelChunkWithLightPacket packet = this.levelChunkCache.get(index);
 
         if (packet != null) {
             this.configurationPacketHandler.flushPendingConfiguration();
@@ -768,7 +820,8 @@ public class ReplayServer extends IntegratedServer {
         return false;
     }
 
-    public static final TicketType ENTITY_LOAD_TICKET = new TicketType(20L, false, TicketType.TicketUse.LOADING_AND_SIMULATION);
+    // Doesn't time out, tickets are removed by EntityChunkTickets once no entity is in the chunk anymore
+    public static final TicketType ENTITY_LOAD_TICKET = new TicketType(0L, false, TicketType.TicketUse.LOADING_AND_SIMULATION);
 
     @Override
     public void loadLevel() {
@@ -792,10 +845,42 @@ public class ReplayServer extends IntegratedServer {
         }
     }
 
-    public void clearLevel(ServerLevel serverLevel) {
-        if (serverLevel == null) {
+    // Like clearLevel, but entities other than players are kept and collected into staleEntities instead
+    // The snapshot then reuses the ones it adds again, see ReplayGamePacketHandler#discardStaleSnapshotEntities
+    public void clearLevelForSnapshot(ServerLevel serverLevel, IntSet staleEntities) {
+        this.clearPlayers(serverLevel);
+        for (Entity entity : serverLevel.getAllEntities()) {
+            if (entity != null && !(entity instanceof ServerPlayer)) {
+                staleEntities.add(entity.getId());
+            }
+        }
+        serverLevel.setDayTime(0);
+    }
+
+    public void discardStaleSnapshotEntities() {
+        this.gamePacketHandler.discardStaleSnapshotEntities();
+
+        // The client can also have entities that were never added on the server, such as ones that failed to spawn or that
+        // were only moved with createTeleportForUnknown, those would otherwise survive the snapshot
+        ServerLevel level = this.gamePacketHandler.level();
+        if (level == null) {
             return;
         }
+        IntList entityIds = new IntArrayList();
+        for (Entity entity : level.getAllEntities()) {
+            if (entity != null && !(entity instanceof ServerPlayer)) {
+                entityIds.add(entity.getId());
+            }
+        }
+        FlashbackRetainEntities retainEntities = new FlashbackRetainEntities(entityIds);
+        for (ServerPlayer player : level.players()) {
+            if (player instanceof ReplayPlayer replayPlayer) {
+                ServerPlayNetworking.send(replayPlayer, retainEntities);
+            }
+        }
+    }
+
+    private void clearPlayers(ServerLevel serverLevel) {
         for (ServerPlayer player : new ArrayList<>(serverLevel.players())) {
             if (player instanceof ReplayPlayer replayPlayer) {
                 replayPlayer.lastFirstPersonDataUUID = null;
@@ -803,6 +888,13 @@ public class ReplayServer extends IntegratedServer {
             }
             player.discard();
         }
+    }
+
+    public void clearLevel(ServerLevel serverLevel) {
+        if (serverLevel == null) {
+            return;
+        }
+        this.clearPlayers(serverLevel);
         List<Entity> entities = new ArrayList<>();
         for (Entity entity : serverLevel.getAllEntities()) {
             if (entity instanceof ServerPlayer) {
@@ -852,7 +944,7 @@ public class ReplayServer extends IntegratedServer {
             this.initializedWithSnapshot = true;
 
             // Play initial snapshot
-            ReplayReader replayReader = this.playableChunksByStart.get(0).getOrLoadReplayReader(this.registryAccess());
+            ReplayReader replayReader = this.getReplayReader(this.playableChunksByStart.get(0));
             replayReader.handleSnapshot(this);
         }
 
@@ -914,10 +1006,10 @@ public class ReplayServer extends IntegratedServer {
             int realTargetTick = this.targetTick;
 
             if (this.targetTick < this.currentTick) {
-                int minTick = this.playableChunksByStart.floorKey(this.targetTick) + 1;
-                this.targetTick = Math.max(minTick, realTargetTick - 20);
+                int minTick = this.getSeekStartTick(this.targetTick) + 1;
+                this.targetTick = Math.max(minTick, realTargetTick - FAST_FORWARD_SIMULATED_TICKS);
             } else {
-                this.targetTick = Math.max(this.currentTick+1, realTargetTick - 20);
+                this.targetTick = Math.max(this.currentTick+1, realTargetTick - FAST_FORWARD_SIMULATED_TICKS);
             }
 
             if (this.targetTick >= realTargetTick) {
@@ -1118,22 +1210,14 @@ public class ReplayServer extends IntegratedServer {
             this.handleActions();
         }
 
-        // Add tickets for keeping entities loaded
-        for (ServerLevel level : this.getAllLevels()) {
-            for (Entity entity : level.getAllEntities()) {
-                ChunkPos chunkPos = new ChunkPos(entity.blockPosition());
-                level.getChunkSource().addTicketWithRadius(ENTITY_LOAD_TICKET, chunkPos, 3);
-            }
-        }
-
         // Tick underlying server
         super.tickServer(booleanSupplier);
 
         // Apply block changes
         applyBlockOverridesToTimeline();
 
-        // Teleport entities
-        if (!this.isFrozen && !this.needsPositionUpdate.isEmpty()) {
+        // Teleport entities, while fast-forwarding the set keeps growing and only the final positions are sent
+        if (!this.isFrozen && !this.fastForwarding && !this.needsPositionUpdate.isEmpty()) {
             for (Map.Entry<ResourceKey<Level>, IntSet> entry : this.needsPositionUpdate.entrySet()) {
                 ResourceKey<Level> dimension = entry.getKey();
                 IntSet entities = entry.getValue();
@@ -1302,16 +1386,28 @@ public class ReplayServer extends IntegratedServer {
             }
         }
 
+        // Jump forwards to a seek point if it lets us skip over a large number of actions
+        if (!shouldJump && this.getSeekStartTick(this.targetTick) >= this.currentTick + SEEK_POINT_FORWARD_JUMP_TICKS) {
+            shouldJump = true;
+        }
+
         if (shouldJump) {
             this.processedSnapshot = true;
 
             this.clearDataForPlayingSnapshot();
 
             Map.Entry<Integer, PlayableChunk> entry = this.playableChunksByStart.floorEntry(this.targetTick);
-            ReplayReader replayReader = entry.getValue().getOrLoadReplayReader(this.registryAccess());
-            replayReader.handleSnapshot(this);
-            entry.getValue().getOrLoadReplayReader(this.registryAccess()).resetToStart();
-            this.currentTick = entry.getKey();
+            ReplayReader replayReader = this.getReplayReader(entry.getValue());
+
+            Map.Entry<Integer, Integer> seekPoint = entry.getValue().chunkMeta.seekPoints.floorEntry(this.targetTick - entry.getKey());
+            if (seekPoint != null && seekPoint.getKey() > 0) {
+                replayReader.handleSeekPoint(this, seekPoint.getValue());
+                this.currentTick = entry.getKey() + seekPoint.getKey();
+            } else {
+                replayReader.handleSnapshot(this);
+                replayReader.resetToStart(this);
+                this.currentTick = entry.getKey();
+            }
         }
 
         Map.Entry<Integer, PlayableChunk> entry = this.playableChunksByStart.floorEntry(this.currentTick);
@@ -1319,9 +1415,9 @@ public class ReplayServer extends IntegratedServer {
             return;
         }
 
-        this.currentReplayReader = entry.getValue().getOrLoadReplayReader(this.registryAccess());
+        this.currentReplayReader = this.getReplayReader(entry.getValue());
         if (this.currentTick == entry.getKey()) {
-            this.currentReplayReader.resetToStart();
+            this.currentReplayReader.resetToStart(this);
 
             if (!this.processedSnapshot && entry.getValue().chunkMeta.forcePlaySnapshot) {
                 this.processedSnapshot = true;
@@ -1330,6 +1426,8 @@ public class ReplayServer extends IntegratedServer {
             }
         }
 
+        this.coalescingActions = this.targetTick - this.currentTick > 1;
+
         EditorState editorState = getEditorState();
         long stamp = editorState.acquireRead();
         try {
@@ -1372,8 +1470,8 @@ public class ReplayServer extends IntegratedServer {
                         return;
                     }
 
-                    this.currentReplayReader = entry.getValue().getOrLoadReplayReader(this.registryAccess());
-                    this.currentReplayReader.resetToStart();
+                    this.currentReplayReader = this.getReplayReader(entry.getValue());
+                    this.currentReplayReader.resetToStart(this);
 
                     if (entry.getValue().chunkMeta.forcePlaySnapshot) {
                         this.processedSnapshot = true;
@@ -1402,42 +1500,119 @@ public class ReplayServer extends IntegratedServer {
                 editorState.release(stamp);
             }
             this.currentReplayReader = null;
+
+            this.coalescingActions = false;
+            this.flushCoalescedUnknownTeleports();
         }
     }
 
+    private ReplayReader getReplayReader(PlayableChunk playableChunk) {
+        ReplayReader replayReader = playableChunk.getOrLoadReplayReader(this.registryAccess());
+        this.recentlyUsedPlayableChunks.addLast(playableChunk);
+
+        // Unload the least recently used chunks
+        long loadedBytes = 0;
+        for (PlayableChunk loaded : this.recentlyUsedPlayableChunks) {
+            loadedBytes += loaded.getLoadedSize();
+        }
+
+        Iterator<PlayableChunk> iterator = this.recentlyUsedPlayableChunks.iterator();
+        while (iterator.hasNext() && this.recentlyUsedPlayableChunks.size() > 1) {
+            if (this.recentlyUsedPlayableChunks.size() <= MAX_LOADED_PLAYABLE_CHUNKS && loadedBytes <= MAX_LOADED_PLAYABLE_CHUNK_BYTES) {
+                break;
+            }
+
+            PlayableChunk leastRecentlyUsed = iterator.next();
+            if (leastRecentlyUsed == playableChunk) {
+                continue;
+            }
+
+            loadedBytes -= leastRecentlyUsed.getLoadedSize();
+            leastRecentlyUsed.unload();
+            iterator.remove();
+        }
+
+        return replayReader;
+    }
+
+    private int getSeekStartTick(int tick) {
+        Map.Entry<Integer, PlayableChunk> entry = this.playableChunksByStart.floorEntry(tick);
+        if (entry == null) {
+            return 0;
+        }
+
+        Integer seekPointTick = entry.getValue().chunkMeta.seekPoints.floorKey(tick - entry.getKey());
+        if (seekPointTick != null && seekPointTick > 0) {
+            return entry.getKey() + seekPointTick;
+        } else {
+            return entry.getKey();
+        }
+    }
+
+    // Reused for every section, the section update packet copies the positions
+    private final ShortSet changedBlockOverridePositions = new ShortOpenHashSet();
+
     private void applyBlockOverrideKeyframes(Map<Integer, Keyframe> blockOverrideKeyframes, int tick) {
         ServerLevel level = this.gamePacketHandler.level();
         if (level != null) {
             BlockOverrideKeyframe keyframe = (BlockOverrideKeyframe) blockOverrideKeyframes.get(tick);
             if (keyframe != null) {
                 BlockPos.MutableBlockPos mutableBlockPos = new BlockPos.MutableBlockPos();
-                BlockState emptyState = BlockOverrideKeyframe.EMPTY_STATE;
-                for (Long2ObjectMap.Entry<PalettedContainer<BlockState>> chunkEntry : keyframe.blocks.long2ObjectEntrySet()) {
-                    long chunkPos = chunkEntry.getLongKey();
-                    int chunkX = BlockPos.getX(chunkPos);
-                    int chunkY = BlockPos.getY(chunkPos);
-                    int chunkZ = BlockPos.getZ(chunkPos);
+                ShortSet changed = this.changedBlockOverridePositions;
+                for (BlockOverrideKeyframe.SectionOverrides sectionOverrides : keyframe.getSectionOverrides()) {
+                    long sectionPos = sectionOverrides.sectionPos();
+                    int chunkX = BlockPos.getX(sectionPos);
+                    int chunkY = BlockPos.getY(sectionPos);
+                    int chunkZ = BlockPos.getZ(sectionPos);
 
                     if (chunkY < level.getMinSectionY() || chunkY > level.getMaxSectionY()) {
                         continue;
                     }
 
-                    PalettedContainer<BlockState> container = chunkEntry.getValue();
-
                     LevelChunk levelChunk = level.getChunk(chunkX, chunkZ);
-                    for (int x = 0; x < 16; x++) {
-                        for (int y = 0; y < 16; y++) {
-                            for (int z = 0; z < 16; z++) {
-                                BlockState blockState = container.get(x, y, z);
-                                if (blockState == emptyState) continue;
-
-                                mutableBlockPos.set((chunkX << 4) + x, (chunkY << 4) + y, (chunkZ << 4) + z);
-                                BlockState old = ((LevelChunkExt)levelChunk).flashback$setBlockStateWithoutUpdates(mutableBlockPos, blockState);
-                                if (old != null) {
-                                    level.sendBlockUpdated(mutableBlockPos, old, blockState, 3);
+                    short[] positions = sectionOverrides.positions();
+                    BlockState[] states = sectionOverrides.states();
+
+                    // Blocks that already match the override are skipped, so applying the same overrides again is cheap
+                    for (int i = 0; i < positions.length; i++) {
+                        short position = positions[i];
+                        mutableBlockPos.set((chunkX << 4) + SectionPos.sectionRelativeX(position),
+                            (chunkY << 4) + SectionPos.sectionRelativeY(position),
+                            (chunkZ << 4) + SectionPos.sectionRelativeZ(position));
+                        BlockState old = ((LevelChunkExt)levelChunk).flashback$setBlockStateWithoutUpdates(mutableBlockPos, states[i]);
+                        if (old != null) {
+                            changed.add(position);
+                        }
+                    }
+
+                    if (!changed.isEmpty()) {
+                        LevelChunkSection section = levelChunk.getSection(level.getSectionIndexFromSectionY(chunkY));
+                        ClientboundSectionBlocksUpdatePacket packet = new ClientboundSectionBlocksUpdatePacket(SectionPos.of(chunkX, chunkY, chunkZ), changed, section);
+                        List<ServerPlayer> players = level.getChunkSource().chunkMap.getPlayers(levelChunk.getPos(), false);
+                        for (ServerPlayer player : players) {
+                            player.connection.send(packet);
+                        }
+
+                        // Block entity data normally follows the block changes in ChunkHolder#broadcastChanges
+                        ShortIterator iterator = changed.iterator();
+                        while (iterator.hasNext()) {
+                            short position = iterator.nextShort();
+                            mutableBlockPos.set((chunkX << 4) + SectionPos.sectionRelativeX(position),
+                                (chunkY << 4) + SectionPos.sectionRelativeY(position),
+                                (chunkZ << 4) + SectionPos.sectionRelativeZ(position));
+                            BlockEntity blockEntity = levelChunk.getBlockEntity(mutableBlockPos);
+                            if (blockEntity == null) {
+                                continue;
+                            }
+                            Packet<ClientGamePacketListener> blockEntityPacket = blockEntity.getUpdatePacket();
+                            if (blockEntityPacket != null) {
+                                for (ServerPlayer player : players) {
+                                    player.connection.send(blockEntityPacket);
                                 }
                             }
                         }
+
+                        changed.clear();
                     }
                 }
             }
@@ -1451,6 +1626,7 @@ public class ReplayServer extends IntegratedServer {
             }
         }
         this.bossEvents.clear();
+        this.coalescedUnknownTeleports.clear();
     }
 
     public void blockChangeOccurred(BlockPos blockPos, BlockState result) {
@@ -1531,8 +1707,15 @@ public class ReplayServer extends IntegratedServer {
             }
         }
 
-        this.levelChunkCachedPackets.clear();
+        if (this.levelChunkCache != null) {
+            this.levelChunkCache.close();
+        }
+        for (PlayableChunk playableChunk : this.playableChunksByStart.values()) {
+            playableChunk.unload();
+        }
         this.playableChunksByStart.clear();
+        this.recentlyUsedPlayableChunks.clear();
+        TempFolderProvider.deleteTemp(TempFolderProvider.TempFolderType.PLAYBACK_CACHE, this.playbackUUID);
     }
 
     public void clearReplayTempFolder() {
@@ -1,19 +1,37 @@
 package com.moulberry.flashback.record;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Map;
+import java.util.TreeMap;
+
 public class FlashbackChunkMeta {
     public int duration = 0;
     public boolean forcePlaySnapshot = false;
 
+    // Tick offset within the chunk -> byte offset of the seek point action in the chunk file
+    public TreeMap<Integer, Integer> seekPoints = new TreeMap<>();
+
     public JsonObject toJson() {
         JsonObject chunkMeta = new JsonObject();
         chunkMeta.addProperty("duration", this.duration);
         chunkMeta.addProperty("forcePlaySnapshot", this.forcePlaySnapshot);
+        if (!this.seekPoints.isEmpty()) {
+            chunkMeta.add("seekPoints", seekPointsToJson(this.seekPoints));
+        }
         return chunkMeta;
     }
 
+    public static JsonObject seekPointsToJson(TreeMap<Integer, Integer> seekPoints) {
+        JsonObject jsonSeekPoints = new JsonObject();
+        for (Map.Entry<Integer, Integer> entry : seekPoints.entrySet()) {
+            jsonSeekPoints.addProperty(""+entry.getKey(), entry.getValue());
+        }
+        return jsonSeekPoints;
+    }
+
     @Nullable
     public static FlashbackChunkMeta fromJson(JsonObject chunkMeta) {
         FlashbackChunkMeta flashbackChunkMeta = new FlashbackChunkMeta();
@@ -25,6 +43,15 @@ public class FlashbackChunkMeta {
         if (chunkMeta.has("forcePlaySnapshot")) {
             flashbackChunkMeta.forcePlaySnapshot = chunkMeta.get("forcePlaySnapshot").getAsBoolean();
         }
+        if (chunkMeta.has("seekPoints")) {
+            JsonObject seekPoints = chunkMeta.getAsJsonObject("seekPoints");
+            for (Map.Entry<String, JsonElement> entry : seekPoints.entrySet()) {
+                try {
+                    int tick = Integer.parseInt(entry.getKey());
+                    flashbackChunkMeta.seekPoints.put(tick, entry.getValue().getAsInt());
+                } catch (Exception ignored) {}
+            }
+        }
 
         return flashbackChunkMeta;
     }
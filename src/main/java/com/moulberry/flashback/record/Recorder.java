@@ -1,7 +1,5 @@
 package com.moulberry.flashback.record;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.mojang.authlib.GameProfile;
 import com.mojang.blaze3d.platform.NativeImage;
 import com.mojang.datafixers.util.Pair;
@@ -14,6 +12,8 @@ import com.moulberry.flashback.io.ReplayWriter;
 import com.moulberry.flashback.mixin.compat.bobby.FakeChunkManagerAccessor;
 import com.moulberry.flashback.packet.FlashbackAccurateEntityPosition;
 import io.netty.buffer.ByteBuf;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import net.fabricmc.loader.api.FabricLoader;
 import net.minecraft.SharedConstants;
 import net.minecraft.client.Minecraft;
@@ -83,6 +83,7 @@ import net.minecraft.world.scores.*;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.file.Path;
 import java.util.*;
@@ -94,7 +95,6 @@ import java.util.function.Consumer;
 
 public class Recorder {
 
-    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
     public static final int CHUNK_LENGTH_SECONDS = 5 * 60;
 
     private final AsyncReplaySaver asyncReplaySaver;
@@ -118,6 +118,11 @@ public class Recorder {
         }
     }
     private final WeakHashMap<Entity, Position> lastPositions = new WeakHashMap<>();
+    private final RecordingMetrics metrics = new RecordingMetrics();
+    // Base for the delta encoding of ActionMoveEntitiesDelta, cleared at every snapshot
+    private final Int2ObjectMap<QuantizedEntityPosition> lastWrittenPositions = new Int2ObjectOpenHashMap<>();
+    // Registry configuration of the last snapshot, reused by seek points
+    private List<Packet<? super ClientConfigurationPacketListener>> snapshotRegistryPackets = null;
 
     // Local player data
     private WeakReference<LocalPlayer> lastLocalPlayer = null;
@@ -146,7 +151,7 @@ public class Recorder {
     private volatile boolean wasPaused = false;
 
     public Recorder(RegistryAccess registryAccess) {
-        this.asyncReplaySaver = new AsyncReplaySaver(registryAccess);
+        this.asyncReplaySaver = new AsyncReplaySaver(registryAccess, this.metrics);
         this.configurationPacketCodec = ConfigurationProtocols.CLIENTBOUND.codec();
         this.gamePacketCodec = GameProtocols.CLIENTBOUND_TEMPLATE.bind(RegistryFriendlyByteBuf.decorator(registryAccess)).codec();
 
@@ -223,6 +228,10 @@ public class Recorder {
         return builder.toString();
     }
 
+    public RecordingMetrics getMetrics() {
+        return this.metrics;
+    }
+
     private PositionAndAngle lastPlayerPositionAndAngle = null;
     private float lastPlayerPositionAndAnglePartialTick;
     private final TreeMap<Float, PositionAndAngle> partialPositions = new TreeMap<>();
@@ -253,12 +262,16 @@ public class Recorder {
             this.wasPaused = true;
         }
 
+        long endTickStart = System.nanoTime();
+
         if (this.needsInitialSnapshot) {
             this.needsInitialSnapshot = false;
             this.writeSnapshot(true);
         }
 
+        long flushPacketsStart = System.nanoTime();
         this.finishedConfiguration |= this.flushPackets();
+        this.metrics.record(RecordingMetrics.Stage.FLUSH_PACKETS, flushPacketsStart);
 
         Minecraft minecraft = Minecraft.getInstance();
 
@@ -271,7 +284,9 @@ public class Recorder {
 
         if (minecraft.level != null && (minecraft.getOverlay() == null || !minecraft.getOverlay().isPauseScreen()) &&
                 !minecraft.isPaused() && !this.isPaused && isLevelLoaded) {
+            long entityPositionsStart = System.nanoTime();
             this.writeEntityPositions();
+            this.metrics.record(RecordingMetrics.Stage.ENTITY_POSITIONS, entityPositionsStart);
             this.writeLocalData();
 
             if (trackAccurateFirstPersonPosition) {
@@ -332,9 +347,8 @@ public class Recorder {
             chunkMeta.duration = this.writtenTicksInChunk;
             this.metadata.chunks.put(chunkName, chunkMeta);
             this.metadata.totalTicks = this.writtenTicks;
-            String metadata = GSON.toJson(this.metadata.toJson());
 
-            this.asyncReplaySaver.writeReplayChunk(chunkName, metadata);
+            this.asyncReplaySaver.writeReplayChunk(chunkName, this.metadata.toJson());
 
             this.writtenTicksInChunk = 0;
 
@@ -354,11 +368,21 @@ public class Recorder {
             if (minecraft.level != null) {
                 this.lastDimensionType = minecraft.level.dimension();
             }
+        } else if (wroteNewTick) {
+            // Write a seek point so that seeking doesn't need to play from the start of the chunk
+            int seekPointInterval = Flashback.getConfig().seekPointIntervalSeconds * 20;
+            if (seekPointInterval > 0 && this.writtenTicksInChunk % seekPointInterval == 0 && this.asyncReplaySaver.canWriteSeekPoint()) {
+                this.asyncReplaySaver.startSeekPoint(this.writtenTicksInChunk);
+                this.writeSnapshot(false, true);
+                this.asyncReplaySaver.endSeekPoint();
+            }
         }
 
         if (!this.isPaused) {
             this.wasPaused = false;
         }
+
+        this.metrics.record(RecordingMetrics.Stage.END_TICK, endTickStart);
     }
 
     private void writeAccurateFirstPersonPosition(int localPlayerUpdatesPerSecond) {
@@ -460,7 +484,17 @@ public class Recorder {
     }
 
     public Path finish() {
-        return this.asyncReplaySaver.finish();
+        Path recordFolder = this.asyncReplaySaver.finish();
+
+        if (Flashback.getConfig().recordingMetrics) {
+            try {
+                this.metrics.writeTo(Flashback.getDataDirectory().resolve("metrics"), this.metadata.replayIdentifier.toString());
+            } catch (IOException e) {
+                Flashback.LOGGER.error("Failed to write recording metrics", e);
+            }
+        }
+
+        return recordFolder;
     }
 
     private void writeLocalData() {
@@ -601,10 +635,11 @@ public class Recorder {
         ClientLevel level = Minecraft.getInstance().level;
         if (level == null) {
             this.lastPositions.clear();
+            this.lastWrittenPositions.clear();
             return;
         }
 
-        record IdWithPosition(int id, Position position) {}
+        record IdWithPosition(int id, QuantizedEntityPosition position, @Nullable QuantizedEntityPosition previous) {}
         List<IdWithPosition> changedPositions = new ArrayList<>();
 
         for (Entity entity : level.entitiesForRendering()) {
@@ -631,7 +666,13 @@ public class Recorder {
 
             if (!Objects.equals(position, lastPosition)) {
                 this.lastPositions.put(entity, position);
-                changedPositions.add(new IdWithPosition(entity.getId(), position));
+
+                QuantizedEntityPosition quantized = QuantizedEntityPosition.quantize(position.x, position.y, position.z,
+                    position.yaw, position.pitch, position.headYRot, position.onGround);
+                QuantizedEntityPosition previous = this.lastWrittenPositions.put(entity.getId(), quantized);
+                if (!quantized.equals(previous)) {
+                    changedPositions.add(new IdWithPosition(entity.getId(), quantized, previous));
+                }
             }
         }
 
@@ -639,26 +680,25 @@ public class Recorder {
             return;
         }
 
+        // Sorted so that ids can be written as small differences
+        changedPositions.sort(Comparator.comparingInt(IdWithPosition::id));
+
         this.asyncReplaySaver.submit(writer -> {
-            writer.startAction(ActionMoveEntities.INSTANCE);
+            writer.startAction(ActionMoveEntitiesDelta.INSTANCE);
             RegistryFriendlyByteBuf friendlyByteBuf = writer.friendlyByteBuf();
 
             friendlyByteBuf.writeVarInt(1);
             friendlyByteBuf.writeResourceKey(level.dimension());
 
             friendlyByteBuf.writeVarInt(changedPositions.size());
+            int lastId = 0;
             for (IdWithPosition changedPosition : changedPositions) {
-                friendlyByteBuf.writeVarInt(changedPosition.id);
-                friendlyByteBuf.writeDouble(changedPosition.position.x);
-                friendlyByteBuf.writeDouble(changedPosition.position.y);
-                friendlyByteBuf.writeDouble(changedPosition.position.z);
-                friendlyByteBuf.writeFloat(changedPosition.position.yaw);
-                friendlyByteBuf.writeFloat(changedPosition.position.pitch);
-                friendlyByteBuf.writeFloat(changedPosition.position.headYRot);
-                friendlyByteBuf.writeBoolean(changedPosition.position.onGround);
+                friendlyByteBuf.writeVarInt(QuantizedEntityPosition.zigZag(changedPosition.id - lastId));
+                lastId = changedPosition.id;
+                changedPosition.position.write(friendlyByteBuf, changedPosition.previous);
             }
 
-            writer.finishAction(ActionMoveEntities.INSTANCE);
+            writer.finishAction(ActionMoveEntitiesDelta.INSTANCE);
         });
     }
 
@@ -832,23 +872,9 @@ public class Recorder {
         this.pendingPackets.add(new PacketWithPhase(packet, phase));
     }
 
-    public void writeSnapshot(boolean asActualSnapshot) {
-        if (asActualSnapshot) {
-            this.asyncReplaySaver.submit(ReplayWriter::startSnapshot);
-        }
-
-        ClientLevel level = Minecraft.getInstance().level;
-        LocalPlayer localPlayer = Minecraft.getInstance().player;
-        ClientPacketListener connection = Minecraft.getInstance().getConnection();
-        MultiPlayerGameMode gameMode = Minecraft.getInstance().gameMode;
-        ClientChunkCache clientChunkCache = level.getChunkSource();
-
-        AtomicReferenceArray<LevelChunk> chunks = clientChunkCache.storage.chunks;
-
-        // Configuration data
-
-        List<Packet<? super ClientConfigurationPacketListener>> configurationPackets = new ArrayList<>();
-
+    // Enabled features, registries and tags, these only change during configuration
+    private void writeSnapshotRegistryPackets(ClientLevel level, LocalPlayer localPlayer,
+            List<Packet<? super ClientConfigurationPacketListener>> configurationPackets) {
         // Enabled features
         configurationPackets.add(new ClientboundUpdateEnabledFeaturesPacket(FeatureFlags.REGISTRY.toNames(level.enabledFeatures())));
 
@@ -881,6 +907,44 @@ public class Recorder {
         });
 
         configurationPackets.add(new ClientboundUpdateTagsPacket(serializedTags));
+    }
+
+    public void writeSnapshot(boolean asActualSnapshot) {
+        this.writeSnapshot(asActualSnapshot, false);
+    }
+
+    // Seek points reuse the configuration of the last snapshot and let the saver thread build chunks and maps from what
+    // it has already written, so that they don't stall the client thread, see SeekPointTracker
+    private void writeSnapshot(boolean asActualSnapshot, boolean asSeekPoint) {
+        long start = System.nanoTime();
+
+        // Movement after a snapshot must be decodable when playback starts from that snapshot
+        this.lastWrittenPositions.clear();
+
+        if (asActualSnapshot) {
+            this.asyncReplaySaver.submit(ReplayWriter::startSnapshot);
+        }
+        if (!asSeekPoint) {
+            this.asyncReplaySaver.resetSeekPointTracking();
+        }
+
+        ClientLevel level = Minecraft.getInstance().level;
+        LocalPlayer localPlayer = Minecraft.getInstance().player;
+        ClientPacketListener connection = Minecraft.getInstance().getConnection();
+        MultiPlayerGameMode gameMode = Minecraft.getInstance().gameMode;
+        ClientChunkCache clientChunkCache = level.getChunkSource();
+
+        AtomicReferenceArray<LevelChunk> chunks = clientChunkCache.storage.chunks;
+
+        // Configuration data
+
+        List<Packet<? super ClientConfigurationPacketListener>> configurationPackets = new ArrayList<>();
+        if (asSeekPoint && this.snapshotRegistryPackets != null) {
+            configurationPackets.addAll(this.snapshotRegistryPackets);
+        } else {
+            this.writeSnapshotRegistryPackets(level, localPlayer, configurationPackets);
+            this.snapshotRegistryPackets = List.copyOf(configurationPackets);
+        }
 
         // Resource packs
         configurationPackets.add(new ClientboundResourcePackPopPacket(Optional.empty()));
@@ -1016,7 +1080,11 @@ public class Recorder {
         gamePackets.add(new ClientboundGameEventPacket(ClientboundGameEventPacket.THUNDER_LEVEL_CHANGE, level.getThunderLevel(1.0f)));
 
         // Chunk data
-        if (Runtime.getRuntime().availableProcessors() <= 1) {
+        if (asSeekPoint) {
+            this.asyncReplaySaver.writeGamePackets(this.gamePacketCodec, gamePackets);
+            gamePackets.clear();
+            this.asyncReplaySaver.writeSeekPointChunks();
+        } else if (Runtime.getRuntime().availableProcessors() <= 1) {
             List<ClientboundLevelChunkWithLightPacket> levelChunkPackets = new ArrayList<>();
 
             for (int i = 0; i < chunks.length(); i++) {
@@ -1157,38 +1225,45 @@ public class Recorder {
             }
         }
 
-        // Map data
-        for (Map.Entry<MapId, MapItemSavedData> entry : level.mapData.entrySet()) {
-            MapItemSavedData data = entry.getValue();
+        // Map data, seek points use the state tracked by the saver thread
+        if (!asSeekPoint) {
+            for (Map.Entry<MapId, MapItemSavedData> entry : level.mapData.entrySet()) {
+                MapItemSavedData data = entry.getValue();
 
-            int offsetX = 0;
-            int offsetY = 0;
-            int sizeX = 128;
-            int sizeY = 128;
+                int offsetX = 0;
+                int offsetY = 0;
+                int sizeX = 128;
+                int sizeY = 128;
 
-            if (data.colors.length != sizeX * sizeY) {
-                Flashback.LOGGER.error("Unable to save snapshot of map data, expected colour array to be size {}, got {} instead", sizeX * sizeY, data.colors.length);
-                continue;
-            }
+                if (data.colors.length != sizeX * sizeY) {
+                    Flashback.LOGGER.error("Unable to save snapshot of map data, expected colour array to be size {}, got {} instead", sizeX * sizeY, data.colors.length);
+                    continue;
+                }
 
-            byte[] colorsCopy = new byte[sizeX * sizeY];
-            System.arraycopy(data.colors, 0, colorsCopy, 0, sizeX * sizeY);
-            MapItemSavedData.MapPatch patch = new MapItemSavedData.MapPatch(offsetX, offsetY, sizeX, sizeY, colorsCopy);
+                byte[] colorsCopy = new byte[sizeX * sizeY];
+                System.arraycopy(data.colors, 0, colorsCopy, 0, sizeX * sizeY);
+                MapItemSavedData.MapPatch patch = new MapItemSavedData.MapPatch(offsetX, offsetY, sizeX, sizeY, colorsCopy);
 
-            ArrayList<MapDecoration> decorations = new ArrayList<>();
-            for (MapDecoration decoration : data.getDecorations()) {
-                decorations.add(decoration);
-            }
+                ArrayList<MapDecoration> decorations = new ArrayList<>();
+                for (MapDecoration decoration : data.getDecorations()) {
+                    decorations.add(decoration);
+                }
 
-            var packet = new ClientboundMapItemDataPacket(entry.getKey(), data.scale, data.locked, decorations, patch);
-            gamePackets.add(packet);
+                var packet = new ClientboundMapItemDataPacket(entry.getKey(), data.scale, data.locked, decorations, patch);
+                gamePackets.add(packet);
+            }
         }
 
         this.asyncReplaySaver.writeGamePackets(this.gamePacketCodec, gamePackets);
 
+        if (asSeekPoint) {
+            this.asyncReplaySaver.writeSeekPointMaps(this.gamePacketCodec);
+        }
         if (asActualSnapshot) {
             this.asyncReplaySaver.submit(ReplayWriter::endSnapshot);
         }
+
+        this.metrics.record(asSeekPoint ? RecordingMetrics.Stage.SEEK_POINT : RecordingMetrics.Stage.SNAPSHOT, start);
     }
 
 }
@@ -0,0 +1,236 @@
+package com.moulberry.flashback.record;
+
+import com.google.gson.JsonObject;
+import com.moulberry.flashback.FlashbackGson;
+import net.minecraft.resources.ResourceLocation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Timings and counters for the cost of recording, written to from both the client thread and the saver thread
+public class RecordingMetrics {
+
+    public enum Stage {
+        // Client thread
+        END_TICK("end_tick"),
+        ENTITY_POSITIONS("entity_positions"),
+        SNAPSHOT("snapshot"),
+        SEEK_POINT("seek_point"),
+        FLUSH_PACKETS("flush_packets"),
+        SUBMIT_WAIT("submit_wait"),
+        // Saver thread
+        SAVER_TASK("saver_task"),
+        CHUNK_ENCODE("chunk_encode"),
+        CHUNK_CACHE_WRITE("chunk_cache_write"),
+        CHUNK_CACHE_SYNC("chunk_cache_sync"),
+        CHUNK_FLUSH("chunk_flush"),
+        CHUNK_FINISH("chunk_finish");
+
+        private final String id;
+
+        Stage(String id) {
+            this.id = id;
+        }
+    }
+
+    private static final double[] PERCENTILES = new double[]{0.5, 0.9, 0.99};
+
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+    private final Map<ResourceLocation, ActionStats> actionStats = new ConcurrentHashMap<>();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private volatile int queueDepth = 0;
+    private final LongAdder chunkCacheHits = new LongAdder();
+    private final LongAdder chunkCacheMisses = new LongAdder();
+
+    public RecordingMetrics() {
+        for (int i = 0; i < this.histograms.length; i++) {
+            this.histograms[i] = new Histogram();
+        }
+    }
+
+    public void record(Stage stage, long startNanos) {
+        this.histograms[stage.ordinal()].add(System.nanoTime() - startNanos);
+    }
+
+    public void recordQueueDepth(int depth) {
+        this.queueDepth = depth;
+        this.maxQueueDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    public void recordAction(ResourceLocation action, int bytes) {
+        ActionStats stats = this.actionStats.computeIfAbsent(action, k -> new ActionStats());
+        stats.count.increment();
+        stats.bytes.add(bytes);
+    }
+
+    public void recordChunkCacheLookup(boolean hit) {
+        if (hit) {
+            this.chunkCacheHits.increment();
+        } else {
+            this.chunkCacheMisses.increment();
+        }
+    }
+
+    public List<String> getDebugLines() {
+        List<String> lines = new ArrayList<>();
+
+        long hits = this.chunkCacheHits.sum();
+        long lookups = hits + this.chunkCacheMisses.sum();
+        lines.add(String.format(Locale.ROOT, "[Flashback] Queue: %d (max %d). Chunk dedup: %.1f%% of %d",
+            this.queueDepth, this.maxQueueDepth.get(), lookups == 0 ? 0.0 : hits * 100.0 / lookups, lookups));
+
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = this.histograms[stage.ordinal()];
+            long count = histogram.count.sum();
+            if (count == 0) {
+                continue;
+            }
+            lines.add(String.format(Locale.ROOT, "[Flashback] %s: avg %.2fms, p99 %.2fms, max %.2fms (%d)", stage.id,
+                histogram.total.sum() / 1e6 / count, histogram.percentile(0.99) / 1e6, histogram.max.get() / 1e6, count));
+        }
+
+        return lines;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+
+        JsonObject stages = new JsonObject();
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = this.histograms[stage.ordinal()];
+
+            JsonObject stageJson = new JsonObject();
+            stageJson.addProperty("count", histogram.count.sum());
+            stageJson.addProperty("total_ns", histogram.total.sum());
+            stageJson.addProperty("max_ns", histogram.max.get());
+            for (double percentile : PERCENTILES) {
+                stageJson.addProperty("p" + Math.round(percentile * 100) + "_ns", histogram.percentile(percentile));
+            }
+
+            // Upper bound of each bucket in nanoseconds -> number of samples
+            JsonObject buckets = new JsonObject();
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                long bucketCount = histogram.buckets.get(i);
+                if (bucketCount > 0) {
+                    buckets.addProperty(String.valueOf(Histogram.upperBound(i)), bucketCount);
+                }
+            }
+            stageJson.add("histogram", buckets);
+
+            stages.add(stage.id, stageJson);
+        }
+        json.add("stages", stages);
+
+        JsonObject actions = new JsonObject();
+        for (Map.Entry<ResourceLocation, ActionStats> entry : new TreeMap<>(this.actionStats).entrySet()) {
+            JsonObject actionJson = new JsonObject();
+            actionJson.addProperty("count", entry.getValue().count.sum());
+            actionJson.addProperty("bytes", entry.getValue().bytes.sum());
+            actions.add(entry.getKey().toString(), actionJson);
+        }
+        json.add("actions", actions);
+
+        JsonObject queue = new JsonObject();
+        queue.addProperty("max_depth", this.maxQueueDepth.get());
+        json.add("queue", queue);
+
+        JsonObject chunkCache = new JsonObject();
+        chunkCache.addProperty("hits", this.chunkCacheHits.sum());
+        chunkCache.addProperty("misses", this.chunkCacheMisses.sum());
+        json.add("chunk_cache", chunkCache);
+
+        return json;
+    }
+
+    // One row per stage and per action type, so the file can be opened directly in a spreadsheet
+    public String toCsv() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("type,name,count,total,max,p50,p90,p99\n");
+
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = this.histograms[stage.ordinal()];
+            builder.append("stage_ns,").append(stage.id).append(',')
+                .append(histogram.count.sum()).append(',')
+                .append(histogram.total.sum()).append(',')
+                .append(histogram.max.get());
+            for (double percentile : PERCENTILES) {
+                builder.append(',').append(histogram.percentile(percentile));
+            }
+            builder.append('\n');
+        }
+
+        for (Map.Entry<ResourceLocation, ActionStats> entry : new TreeMap<>(this.actionStats).entrySet()) {
+            builder.append("action_bytes,").append(entry.getKey()).append(',')
+                .append(entry.getValue().count.sum()).append(',')
+                .append(entry.getValue().bytes.sum()).append(",,,,\n");
+        }
+
+        builder.append("queue_depth,max,,,").append(this.maxQueueDepth.get()).append(",,,\n");
+        builder.append("chunk_cache,hits,").append(this.chunkCacheHits.sum()).append(",,,,,\n");
+        builder.append("chunk_cache,misses,").append(this.chunkCacheMisses.sum()).append(",,,,,\n");
+
+        return builder.toString();
+    }
+
+    public void writeTo(Path folder, String name) throws IOException {
+        Files.createDirectories(folder);
+        Files.writeString(folder.resolve(name + ".json"), FlashbackGson.PRETTY.toJson(this.toJson()));
+        Files.writeString(folder.resolve(name + ".csv"), this.toCsv());
+    }
+
+    private static class ActionStats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+    }
+
+    // Power-of-two buckets, bucket i holds durations in [2^(i-1), 2^i) nanoseconds
+    private static class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        private void add(long nanos) {
+            nanos = Math.max(0, nanos);
+            this.buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+            this.count.increment();
+            this.total.add(nanos);
+            this.max.accumulateAndGet(nanos, Math::max);
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket >= 63 ? Long.MAX_VALUE : 1L << bucket;
+        }
+
+        // Upper bound of the bucket containing the percentile, accurate to within a factor of two
+        private long percentile(double percentile) {
+            long count = this.count.sum();
+            if (count == 0) {
+                return 0;
+            }
+
+            long target = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += this.buckets.get(i);
+                if (seen >= target) {
+                    return Math.min(upperBound(i), this.max.get());
+                }
+            }
+            return this.max.get();
+        }
+    }
+
+}
@@ -4,20 +4,22 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.moulberry.flashback.Flashback;
+import com.moulberry.flashback.action.ActionNextTick;
+import com.moulberry.flashback.io.AsyncReplaySaver;
+import com.moulberry.flashback.io.ParallelZipWriter;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.FriendlyByteBuf;
 import org.apache.commons.io.FileUtils;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.zip.Deflater;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 public class ReplayExporter {
 
@@ -50,6 +52,8 @@ public class ReplayExporter {
             }
         });
 
+        recoverPartialChunk(recordFolder, meta);
+
         if (meta.chunks.isEmpty()) {
             Flashback.LOGGER.error("Cannot export, no chunk files exist");
             return;
@@ -62,62 +66,38 @@ public class ReplayExporter {
         }
 
         try {
-            FileOutputStream fos = new FileOutputStream(outputFile.toFile());
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            ZipOutputStream zipOut = new ZipOutputStream(bos);
-            zipOut.setLevel(Deflater.BEST_SPEED);
-
-            // Write metadata
-            ZipEntry zipEntry = new ZipEntry("metadata.json");
-            zipOut.putNextEntry(zipEntry);
-            zipOut.write(GSON.toJson(meta.toJson()).getBytes(StandardCharsets.UTF_8));
-            zipOut.closeEntry();
-
-            // Write chunked level chunk caches
-            Path levelChunkCaches = recordFolder.resolve("level_chunk_caches");
-            if (Files.exists(levelChunkCaches) && Files.isDirectory(levelChunkCaches)) {
-                try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(levelChunkCaches)) {
-                    for (Path path : directoryStream) {
-                        zipEntry = new ZipEntry("level_chunk_caches/" + path.getFileName().toString());
-                        zipOut.putNextEntry(zipEntry);
-                        Files.copy(path, zipOut);
-                        zipOut.closeEntry();
+            try (ParallelZipWriter zipWriter = new ParallelZipWriter(outputFile, Deflater.BEST_SPEED, Flashback.getConfig().storeLargeReplayFiles)) {
+                // Write metadata
+                zipWriter.putBytes("metadata.json", GSON.toJson(meta.toJson()).getBytes(StandardCharsets.UTF_8));
+
+                // Write chunked level chunk caches
+                Path levelChunkCaches = recordFolder.resolve("level_chunk_caches");
+                if (Files.exists(levelChunkCaches) && Files.isDirectory(levelChunkCaches)) {
+                    try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(levelChunkCaches)) {
+                        for (Path path : directoryStream) {
+                            zipWriter.putFile("level_chunk_caches/" + path.getFileName().toString(), path);
+                        }
                     }
                 }
-            }
 
-            // Write level chunk cache
-            Path levelChunkCachePath = recordFolder.resolve("level_chunk_cache");
-            if (Files.exists(levelChunkCachePath)) {
-                zipEntry = new ZipEntry("level_chunk_cache");
-                zipOut.putNextEntry(zipEntry);
-                Files.copy(levelChunkCachePath, zipOut);
-                zipOut.closeEntry();
-            }
-
-            // Write icon
-            Path iconPath = recordFolder.resolve("icon.png");
-            if (Files.exists(iconPath)) {
-                zipEntry = new ZipEntry("icon.png");
-                zipOut.putNextEntry(zipEntry);
-                Files.copy(iconPath, zipOut);
-                zipOut.closeEntry();
-            }
+                // Write level chunk cache
+                Path levelChunkCachePath = recordFolder.resolve("level_chunk_cache");
+                if (Files.exists(levelChunkCachePath)) {
+                    zipWriter.putFile("level_chunk_cache", levelChunkCachePath);
+                }
 
-            // Write chunks
-            for (String chunkName : meta.chunks.keySet()) {
-                Path chunkPath = recordFolder.resolve(chunkName);
+                // Write icon
+                Path iconPath = recordFolder.resolve("icon.png");
+                if (Files.exists(iconPath)) {
+                    zipWriter.putFile("icon.png", iconPath);
+                }
 
-                zipEntry = new ZipEntry(chunkName);
-                zipOut.putNextEntry(zipEntry);
-                Files.copy(chunkPath, zipOut);
-                zipOut.closeEntry();
+                // Write chunks
+                for (String chunkName : meta.chunks.keySet()) {
+                    zipWriter.putFile(chunkName, recordFolder.resolve(chunkName));
+                }
             }
 
-            zipOut.close();
-            bos.close();
-            fos.close();
-
             // Delete record folder
             try {
                 FileUtils.deleteDirectory(recordFolder.toFile());
@@ -129,6 +109,82 @@ public class ReplayExporter {
         }
     }
 
+    // If the game crashed while recording, the chunk that was being written is still in the part file
+    // Recover it up to the last complete tick
+    private static void recoverPartialChunk(Path recordFolder, FlashbackMeta meta) {
+        Path partPath = recordFolder.resolve(AsyncReplaySaver.CURRENT_CHUNK_FILE);
+        if (!Files.exists(partPath)) {
+            return;
+        }
+
+        try {
+            byte[] bytes = Files.readAllBytes(partPath);
+            FriendlyByteBuf friendlyByteBuf = new FriendlyByteBuf(Unpooled.wrappedBuffer(bytes));
+
+            int ticks = 0;
+            int validLength = 0;
+
+            try {
+                if (friendlyByteBuf.readInt() != Flashback.MAGIC) {
+                    throw new RuntimeException("Invalid magic");
+                }
+
+                int nextTickId = -1;
+                int actionCount = friendlyByteBuf.readVarInt();
+                for (int i = 0; i < actionCount; i++) {
+                    if (friendlyByteBuf.readResourceLocation().equals(ActionNextTick.INSTANCE.name())) {
+                        nextTickId = i;
+                    }
+                }
+
+                // Snapshot size is only written once the snapshot is complete
+                int snapshotSize = friendlyByteBuf.readInt();
+                if (snapshotSize >= 0 && snapshotSize <= friendlyByteBuf.readableBytes()) {
+                    friendlyByteBuf.skipBytes(snapshotSize);
+
+                    while (friendlyByteBuf.isReadable()) {
+                        int id = friendlyByteBuf.readVarInt();
+                        int size = friendlyByteBuf.readInt();
+                        if (size < 0 || size > friendlyByteBuf.readableBytes()) {
+                            break;
+                        }
+                        friendlyByteBuf.skipBytes(size);
+
+                        if (id == nextTickId) {
+                            ticks += 1;
+                            validLength = friendlyByteBuf.readerIndex();
+                        }
+                    }
+                }
+            } catch (IndexOutOfBoundsException ignored) {}
+
+            if (ticks > 0) {
+                int chunkId = meta.chunks.size();
+                while (meta.chunks.containsKey("c" + chunkId + ".flashback") || Files.exists(recordFolder.resolve("c" + chunkId + ".flashback"))) {
+                    chunkId += 1;
+                }
+                String chunkName = "c" + chunkId + ".flashback";
+
+                try (OutputStream outputStream = Files.newOutputStream(recordFolder.resolve(chunkName))) {
+                    outputStream.write(bytes, 0, validLength);
+                }
+
+                FlashbackChunkMeta chunkMeta = new FlashbackChunkMeta();
+                chunkMeta.duration = ticks;
+                meta.chunks.put(chunkName, chunkMeta);
+                if (meta.totalTicks >= 0) {
+                    meta.totalTicks += ticks;
+                }
+
+                Flashback.LOGGER.info("Recovered {} ticks from unfinished chunk as {}", ticks, chunkName);
+            }
+
+            Files.delete(partPath);
+        } catch (Exception e) {
+            Flashback.LOGGER.error("Unable to recover unfinished chunk", e);
+        }
+    }
+
     @Nullable
     private static FlashbackMeta tryReadMeta(Path file) {
         Flashback.LOGGER.info("Trying to read metadata json {}", file);
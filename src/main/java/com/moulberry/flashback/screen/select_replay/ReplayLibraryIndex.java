@@ -0,0 +1,173 @@
+package com.moulberry.flashback.screen.select_replay;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.moulberry.flashback.Flashback;
+import com.moulberry.flashback.record.FlashbackMeta;
+import com.moulberry.flashback.screen.ReplaySummary;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Remembers the metadata and icon of every replay that has been shown in the replay list, keyed by path
+// An entry is only reused while the size and modified time of the zip are unchanged
+public class ReplayLibraryIndex {
+
+    private static final int MAGIC = 0x464C4958;
+    private static final int VERSION = 1;
+
+    private static ReplayLibraryIndex instance = null;
+
+    private final Path indexFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    private record Entry(long filesize, long lastModified, String metadataJson, @Nullable byte[] iconBytes, FlashbackMeta metadata) {
+    }
+
+    private ReplayLibraryIndex(Path indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    public static synchronized ReplayLibraryIndex get() {
+        if (instance == null) {
+            instance = new ReplayLibraryIndex(Flashback.getDataDirectory().resolve("replay_index.bin"));
+            instance.load();
+        }
+        return instance;
+    }
+
+    @Nullable
+    public ReplaySummary getSummary(Path path, long lastModified, long filesize) {
+        Entry entry = this.entries.get(path.toString());
+        if (entry == null || entry.filesize != filesize || entry.lastModified != lastModified) {
+            return null;
+        }
+        return new ReplaySummary(path, entry.metadata, path.getFileName().toString(), lastModified, filesize, entry.iconBytes);
+    }
+
+    // Every indexed replay directly inside the folder, as of when it was indexed. Doesn't touch the filesystem
+    public List<ReplaySummary> getSummariesInFolder(Path folder) {
+        List<ReplaySummary> summaries = new ArrayList<>();
+        for (Map.Entry<String, Entry> mapEntry : this.entries.entrySet()) {
+            Path path = Path.of(mapEntry.getKey());
+            if (folder.equals(path.getParent())) {
+                Entry entry = mapEntry.getValue();
+                summaries.add(new ReplaySummary(path, entry.metadata, path.getFileName().toString(), entry.lastModified, entry.filesize, entry.iconBytes));
+            }
+        }
+        return summaries;
+    }
+
+    public void put(Path path, long lastModified, long filesize, String metadataJson, @Nullable byte[] iconBytes, FlashbackMeta metadata) {
+        this.entries.put(path.toString(), new Entry(filesize, lastModified, metadataJson, iconBytes, metadata));
+        this.dirty = true;
+    }
+
+    // Forgets entries directly inside the folder that weren't seen by the latest scan of that folder
+    public void retainInFolder(Path folder, Set<Path> seen) {
+        boolean removed = this.entries.keySet().removeIf(key -> {
+            Path path = Path.of(key);
+            return folder.equals(path.getParent()) && !seen.contains(path);
+        });
+        if (removed) {
+            this.dirty = true;
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(this.indexFile)) {
+            return;
+        }
+
+        Gson gson = new Gson();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long filesize = in.readLong();
+                long lastModified = in.readLong();
+
+                byte[] metadataBytes = new byte[in.readInt()];
+                in.readFully(metadataBytes);
+                String metadataJson = new String(metadataBytes, StandardCharsets.UTF_8);
+
+                byte[] iconBytes = null;
+                int iconLength = in.readInt();
+                if (iconLength >= 0) {
+                    iconBytes = new byte[iconLength];
+                    in.readFully(iconBytes);
+                }
+
+                FlashbackMeta metadata;
+                try {
+                    metadata = FlashbackMeta.fromJson(gson.fromJson(metadataJson, JsonObject.class));
+                } catch (Exception e) {
+                    metadata = null;
+                }
+                if (metadata != null) {
+                    this.entries.put(path, new Entry(filesize, lastModified, metadataJson, iconBytes, metadata));
+                }
+            }
+        } catch (Exception e) {
+            Flashback.LOGGER.error("Failed to load replay index, replays will be rescanned", e);
+            this.entries.clear();
+        }
+    }
+
+    public synchronized void saveIfDirty() {
+        if (!this.dirty) {
+            return;
+        }
+        this.dirty = false;
+
+        try {
+            Files.createDirectories(this.indexFile.getParent());
+            Path tempFile = this.indexFile.resolveSibling(this.indexFile.getFileName() + ".tmp");
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+
+                // Snapshot first, the map may be modified by a concurrent scan
+                var snapshot = Map.copyOf(this.entries);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> mapEntry : snapshot.entrySet()) {
+                    Entry entry = mapEntry.getValue();
+                    out.writeUTF(mapEntry.getKey());
+                    out.writeLong(entry.filesize);
+                    out.writeLong(entry.lastModified);
+
+                    byte[] metadataBytes = entry.metadataJson.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(metadataBytes.length);
+                    out.write(metadataBytes);
+
+                    if (entry.iconBytes == null) {
+                        out.writeInt(-1);
+                    } else {
+                        out.writeInt(entry.iconBytes.length);
+                        out.write(entry.iconBytes);
+                    }
+                }
+            }
+
+            Files.move(tempFile, this.indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Flashback.LOGGER.error("Failed to save replay index", e);
+        }
+    }
+
+}
@@ -27,12 +27,23 @@ import java.util.*;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ReplaySelectionList extends ObjectSelectionList<ReplaySelectionEntry> {
+    // Rebuilding the list uploads every icon again, so updates from the scan are batched
+    private static final long SCAN_REFRESH_INTERVAL_MILLIS = 1000;
+
     private final SelectReplayScreen screen;
     private CompletableFuture<List<PendingSelectionEntry>> pendingReplays;
+    private ScanProgress scanProgress;
     @Nullable
     private List<PendingSelectionEntry> currentlyDisplayedReplays;
+    private boolean displayingIndexedReplays = false;
+    @Nullable
+    private ScanProgress displayedScanProgress = null;
+    private int displayedScanVersion = 0;
+    private long lastScanRefreshMillis = 0;
     private String filter;
     private ReplaySorting replaySorting;
     private boolean sortDescending;
@@ -49,7 +60,12 @@ public class ReplaySelectionList extends ObjectSelectionList<ReplaySelectionEntr
         this.filter = filter;
         this.replaySorting = replaySorting;
         this.sortDescending = sortDescending;
-        this.pendingReplays = replaySelectionList != null ? replaySelectionList.pendingReplays : this.loadReplays();
+        if (replaySelectionList != null) {
+            this.pendingReplays = replaySelectionList.pendingReplays;
+            this.scanProgress = replaySelectionList.scanProgress;
+        } else {
+            this.pendingReplays = this.loadReplays();
+        }
         this.fillLoadingReplays();
     }
 
@@ -60,9 +76,9 @@ public class ReplaySelectionList extends ObjectSelectionList<ReplaySelectionEntr
     }
 
     @Nullable
-    private List<PendingSelectionEntry> pollReplaysIgnoreErrors() {
+    private static List<PendingSelectionEntry> pollReplaysIgnoreErrors(CompletableFuture<List<PendingSelectionEntry>> future) {
         try {
-            return this.pendingReplays.getNow(null);
+            return future.getNow(null);
         } catch (CancellationException | CompletionException runtimeException) {
             return null;
         }
@@ -88,8 +104,33 @@ public class ReplaySelectionList extends ObjectSelectionList<ReplaySelectionEntr
 
     @Override
     public void renderWidget(GuiGraphics guiGraphics, int i, int j, float f) {
-        List<PendingSelectionEntry> list = this.pollReplaysIgnoreErrors();
-        if (this.currentlyDisplayedReplays != list) {
+        List<PendingSelectionEntry> list = pollReplaysIgnoreErrors(this.pendingReplays);
+        boolean indexed = false;
+        if (list == null) {
+            // Show the replays that were already in the index while the rest are being scanned,
+            // refreshing as the scan revalidates them
+            list = this.currentlyDisplayedReplays;
+            indexed = true;
+
+            ScanProgress scanProgress = this.scanProgress;
+            int version = scanProgress.version.get();
+            if (scanProgress != this.displayedScanProgress) {
+                list = null;
+                if (version > 0) {
+                    list = scanProgress.snapshot();
+                    this.displayedScanProgress = scanProgress;
+                    this.displayedScanVersion = version;
+                    this.lastScanRefreshMillis = Util.getMillis();
+                }
+            } else if (version != this.displayedScanVersion && Util.getMillis() - this.lastScanRefreshMillis >= SCAN_REFRESH_INTERVAL_MILLIS) {
+                list = scanProgress.snapshot();
+                this.displayedScanVersion = version;
+                this.lastScanRefreshMillis = Util.getMillis();
+            }
+        }
+        indexed &= list != null;
+        if (this.currentlyDisplayedReplays != list || this.displayingIndexedReplays != indexed) {
+            this.displayingIndexedReplays = indexed;
             if (list == null) {
                 this.fillLoadingReplays();
             } else {
@@ -119,95 +160,174 @@ public class ReplaySelectionList extends ObjectSelectionList<ReplaySelectionEntr
     private CompletableFuture<List<PendingSelectionEntry>> loadReplays() {
         Path replayDir = this.screen.path;
 
+        ScanProgress scanProgress = new ScanProgress();
+        this.scanProgress = scanProgress;
+
         if (!Files.exists(replayDir) || !Files.isDirectory(replayDir)) {
+            scanProgress.publish();
             return CompletableFuture.completedFuture(new ArrayList<>());
         }
 
-        ArrayList<CompletableFuture<PendingSelectionEntry>> futures = new ArrayList<>();
-
-        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(replayDir)) {
-            for (Path path : directoryStream) {
-                if (Files.isDirectory(path)) {
-                    futures.add(CompletableFuture.supplyAsync(() -> {
-                        try {
-                            BasicFileAttributeView attributeView = Files.getFileAttributeView(path, BasicFileAttributeView.class);
-                            BasicFileAttributes basicFileAttributes = attributeView.readAttributes();
-
-                            long lastModified = Math.max(basicFileAttributes.creationTime().toMillis(), basicFileAttributes.lastModifiedTime().toMillis());
-
-                            int replaysInFolder = 0;
-                            try (DirectoryStream<Path> filesInFolder = Files.newDirectoryStream(path)) {
-                                for (Path fileInFolder : filesInFolder) {
-                                    if (fileInFolder.toString().endsWith(".zip")) {
-                                        replaysInFolder += 1;
-                                    }
-                                }
-                            }
-
-                            return new PendingSelectionEntry.Folder(path, lastModified, replaysInFolder);
-                        } catch (IOException e) {
-                            Flashback.LOGGER.error("Failed to load replay folder", e);
-                        }
-                        return null;
-                    }, Util.backgroundExecutor()));
-                    continue;
-                }
+        return CompletableFuture.supplyAsync(() -> {
+            ReplayLibraryIndex index = ReplayLibraryIndex.get();
 
-                if (!path.toString().endsWith(".zip")) {
-                    continue;
-                }
+            // Publish what the index already has before touching the folder, so the list can be shown right away
+            for (ReplaySummary summary : index.getSummariesInFolder(replayDir)) {
+                scanProgress.entries.put(summary.getPath(), new PendingSelectionEntry.Replay(summary));
+            }
+            scanProgress.publish();
+
+            ArrayList<CompletableFuture<PendingSelectionEntry>> futures = new ArrayList<>();
+            Set<Path> seenReplays = new HashSet<>();
+            Set<Path> seenPaths = new HashSet<>();
+
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(replayDir)) {
+                for (Path path : directoryStream) {
+                    if (Files.isDirectory(path)) {
+                        seenPaths.add(path);
+                        futures.add(CompletableFuture.supplyAsync(() -> scanProgress.update(path, loadFolder(path)), Util.backgroundExecutor()));
+                        continue;
+                    }
 
-                futures.add(CompletableFuture.supplyAsync(() -> {
-                    try {
-                        String fileName = path.getFileName().toString();
+                    if (!path.toString().endsWith(".zip")) {
+                        continue;
+                    }
 
+                    seenReplays.add(path);
+                    seenPaths.add(path);
+
+                    long lastModified;
+                    long filesize;
+                    try {
                         BasicFileAttributeView attributeView = Files.getFileAttributeView(path, BasicFileAttributeView.class);
                         BasicFileAttributes basicFileAttributes = attributeView.readAttributes();
 
-                        long lastModified = Math.max(basicFileAttributes.creationTime().toMillis(), basicFileAttributes.lastModifiedTime().toMillis());
-                        long filesize = basicFileAttributes.size();
+                        lastModified = Math.max(basicFileAttributes.creationTime().toMillis(), basicFileAttributes.lastModifiedTime().toMillis());
+                        filesize = basicFileAttributes.size();
+                    } catch (IOException e) {
+                        Flashback.LOGGER.error("Failed to load replay", e);
+                        scanProgress.update(path, null);
+                        continue;
+                    }
 
-                        byte[] iconBytes = null;
-                        String metadataString = null;
+                    ReplaySummary indexedSummary = index.getSummary(path, lastModified, filesize);
+                    if (indexedSummary != null) {
+                        // Unchanged, keep the entry that was published from the index
+                        PendingSelectionEntry entry = scanProgress.entries.get(path);
+                        if (entry == null) {
+                            entry = scanProgress.update(path, new PendingSelectionEntry.Replay(indexedSummary));
+                        }
+                        futures.add(CompletableFuture.completedFuture(entry));
+                    } else {
+                        futures.add(CompletableFuture.supplyAsync(() -> scanProgress.update(path, loadReplay(index, path, lastModified, filesize)),
+                            Util.backgroundExecutor()));
+                    }
+                }
+            } catch (IOException e) {
+                SneakyThrow.sneakyThrow(e);
+            }
 
-                        try (FileSystem fs = FileSystems.newFileSystem(path)) {
-                            Path iconPath = fs.getPath("/icon.png");
-                            if (Files.exists(iconPath)) {
-                                iconBytes = Files.readAllBytes(iconPath);
-                            }
+            // Replays that were indexed but no longer exist
+            if (scanProgress.entries.keySet().removeIf(path -> !seenPaths.contains(path))) {
+                scanProgress.publish();
+            }
 
-                            Path metadataPath = fs.getPath("/metadata.json");
-                            if (Files.exists(metadataPath)) {
-                                metadataString = Files.readString(metadataPath);
-                            }
-                        } catch (IOException e) {
-                            SneakyThrow.sneakyThrow(e);
-                        }
+            index.retainInFolder(replayDir, seenReplays);
+            return futures;
+        }, Util.backgroundExecutor()).thenCompose(Util::sequenceFailFastAndCancel).thenApply(list -> {
+            list.removeIf(Objects::isNull);
+            ReplayLibraryIndex.get().saveIfDirty();
+            return list;
+        });
+    }
 
-                        if (metadataString == null) {
-                            return null;
-                        }
+    // Entries of the replay folder while it is being scanned, starting out with what the index has for it
+    // Entries are replaced as the scan revalidates them, the version is bumped for every change
+    private static class ScanProgress {
+        private final Map<Path, PendingSelectionEntry> entries = new ConcurrentHashMap<>();
+        private final AtomicInteger version = new AtomicInteger(0);
 
-                        JsonObject metadataJson = new Gson().fromJson(metadataString, JsonObject.class);
-                        FlashbackMeta metadata = FlashbackMeta.fromJson(metadataJson);
-                        if (metadata != null) {
-                            ReplaySummary summary = new ReplaySummary(path, metadata, fileName, lastModified, filesize, iconBytes);
-                            return new PendingSelectionEntry.Replay(summary);
-                        }
-                    } catch (IOException e) {
-                        Flashback.LOGGER.error("Failed to load replay", e);
+        private void publish() {
+            this.version.incrementAndGet();
+        }
+
+        @Nullable
+        private PendingSelectionEntry update(Path path, @Nullable PendingSelectionEntry entry) {
+            if (entry == null) {
+                this.entries.remove(path);
+            } else {
+                this.entries.put(path, entry);
+            }
+            this.publish();
+            return entry;
+        }
+
+        private List<PendingSelectionEntry> snapshot() {
+            return new ArrayList<>(this.entries.values());
+        }
+    }
+
+    @Nullable
+    private static PendingSelectionEntry loadFolder(Path path) {
+        try {
+            BasicFileAttributeView attributeView = Files.getFileAttributeView(path, BasicFileAttributeView.class);
+            BasicFileAttributes basicFileAttributes = attributeView.readAttributes();
+
+            long lastModified = Math.max(basicFileAttributes.creationTime().toMillis(), basicFileAttributes.lastModifiedTime().toMillis());
+
+            int replaysInFolder = 0;
+            try (DirectoryStream<Path> filesInFolder = Files.newDirectoryStream(path)) {
+                for (Path fileInFolder : filesInFolder) {
+                    if (fileInFolder.toString().endsWith(".zip")) {
+                        replaysInFolder += 1;
                     }
-                    return null;
-                }, Util.backgroundExecutor()));
+                }
             }
+
+            return new PendingSelectionEntry.Folder(path, lastModified, replaysInFolder);
         } catch (IOException e) {
-            SneakyThrow.sneakyThrow(e);
+            Flashback.LOGGER.error("Failed to load replay folder", e);
         }
+        return null;
+    }
 
-        return Util.sequenceFailFastAndCancel(futures).thenApply(list -> {
-            list.removeIf(Objects::isNull);
-            return list;
-        });
+    @Nullable
+    private static PendingSelectionEntry loadReplay(ReplayLibraryIndex index, Path path, long lastModified, long filesize) {
+        try {
+            String fileName = path.getFileName().toString();
+
+            byte[] iconBytes = null;
+            String metadataString = null;
+
+            try (FileSystem fs = FileSystems.newFileSystem(path)) {
+                Path iconPath = fs.getPath("/icon.png");
+                if (Files.exists(iconPath)) {
+                    iconBytes = Files.readAllBytes(iconPath);
+                }
+
+                Path metadataPath = fs.getPath("/metadata.json");
+                if (Files.exists(metadataPath)) {
+                    metadataString = Files.readString(metadataPath);
+                }
+            } catch (IOException e) {
+                SneakyThrow.sneakyThrow(e);
+            }
+
+            if (metadataString == null) {
+                return null;
+            }
+
+            JsonObject metadataJson = new Gson().fromJson(metadataString, JsonObject.class);
+            FlashbackMeta metadata = FlashbackMeta.fromJson(metadataJson);
+            if (metadata != null) {
+                index.put(path, lastModified, filesize, metadataString, iconBytes, metadata);
+                ReplaySummary summary = new ReplaySummary(path, metadata, fileName, lastModified, filesize, iconBytes);
+                return new PendingSelectionEntry.Replay(summary);
+            }
+        } catch (IOException e) {
+            Flashback.LOGGER.error("Failed to load replay", e);
+        }
+        return null;
     }
 
     private void fillReplays(String filter, List<PendingSelectionEntry> list) {
@@ -219,6 +339,9 @@ public class ReplaySelectionList extends ObjectSelectionList<ReplaySelectionEntr
                 this.addEntry(entry.createEntry(this, this.minecraft));
             }
         }
+        if (this.displayingIndexedReplays) {
+            this.addEntry(this.loadingHeader);
+        }
         this.notifyListUpdated();
     }
 
@@ -65,4 +65,17 @@ public class ShaderManager {
                       .build()
     );
 
+    public static RenderPipeline BLIT_SCREEN_YUV420P = RenderPipelines.register(
+        RenderPipeline.builder()
+                      .withLocation(ResourceLocation.fromNamespaceAndPath("flashback", "pipeline/flashback_blit_screen_yuv420p"))
+                      .withVertexShader("core/blit_screen")
+                      .withFragmentShader(ResourceLocation.fromNamespaceAndPath("flashback", "core/blit_screen_yuv420p"))
+                      .withSampler("InSampler")
+                      .withDepthWrite(false)
+                      .withCull(false)
+                      .withDepthTestFunction(DepthTestFunction.NO_DEPTH_TEST)
+                      .withVertexFormat(DefaultVertexFormat.POSITION, VertexFormat.Mode.QUADS)
+                      .build()
+    );
+
 }